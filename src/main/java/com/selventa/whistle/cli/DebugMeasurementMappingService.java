@@ -1,9 +1,11 @@
 package com.selventa.whistle.cli;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.openbel.framework.api.Kam.KamNode;
 
@@ -24,7 +26,7 @@ public class DebugMeasurementMappingService extends
     /**
      * Measurements that were not mapped to any kam node
      */
-    private final Set<Measurement> unmapped = new HashSet<Measurement>();
+    private final List<Measurement> unmapped = new ArrayList<Measurement>();
     /**
      * Measurements mapped to the KAM but not to the population
      */
@@ -36,9 +38,10 @@ public class DebugMeasurementMappingService extends
     private final Map<Integer, KamNode> inPopulation = new HashMap<Integer, KamNode>();
 
     /**
-     * Measurements that were discarded in collapsing
+     * Measurements that were discarded in collapsing; collapsing may run on
+     * several threads
      */
-    private final Map<KamNode, Set<Measurement>> collapsed = new HashMap<KamNode, Set<Measurement>>();
+    private final Map<KamNode, List<Measurement>> collapsed = new ConcurrentHashMap<KamNode, List<Measurement>>();
 
     /**
      * {@inheritDoc} Keep track of nodes not mapped to Kam
@@ -62,20 +65,26 @@ public class DebugMeasurementMappingService extends
     }
 
     /**
-     * {@inheritDoc} Keep track of nodes discarded during collapsing
+     * {@inheritDoc} Keep track of nodes discarded during collapsing. Called
+     * concurrently when collapsing runs on several threads.
      */
     @Override
     protected MappedMeasurement collapse(KamNode kamNode,
             Set<Measurement> measurements) {
-        Set<Measurement> original = new HashSet<Measurement>(measurements);
         MappedMeasurement mm = super.collapse(kamNode, measurements);
         Measurement used = mm.getMeasurement();
-        original.remove(used);
-        collapsed.put(kamNode, original);
+        List<Measurement> discarded = new ArrayList<Measurement>(
+                measurements.size());
+        for (Measurement m : measurements) {
+            if (m != used) {
+                discarded.add(m);
+            }
+        }
+        collapsed.put(kamNode, discarded);
         return mm;
     }
 
-    public Set<Measurement> getUnmapped() {
+    public List<Measurement> getUnmapped() {
         return unmapped;
     }
 
@@ -87,7 +96,7 @@ public class DebugMeasurementMappingService extends
         return inPopulation;
     }
 
-    public Map<KamNode, Set<Measurement>> getCollapsed() {
+    public Map<KamNode, List<Measurement>> getCollapsed() {
         return collapsed;
     }
 }
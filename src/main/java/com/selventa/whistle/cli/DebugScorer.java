@@ -7,7 +7,7 @@ import java.util.Map;
 
 import org.openbel.framework.api.Kam.KamNode;
 
-import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.cli.MeasurementDebugInfo.Status;
 import com.selventa.whistle.score.model.Cutoffs;
 import com.selventa.whistle.score.model.MappedMeasurement;
 import com.selventa.whistle.score.service.Scorer;
@@ -19,13 +19,10 @@ import com.selventa.whistle.score.service.Scorer;
  */
 public class DebugScorer extends Scorer {
 
-    private static final String FAILED_CUTOFFS = "Failed cutoffs";
-    private static final String STATE_CHANGE = "State Change";
-
     /**
-     * String debug information
+     * Debug information of each measurement
      */
-    private final Map<Measurement, String> debugInfo;
+    private final MeasurementDebugInfo debugInfo;
 
     /**
      * Save the computed state change map for reporting
@@ -37,7 +34,7 @@ public class DebugScorer extends Scorer {
      * Construct
      * @param debugInfo
      */
-    public DebugScorer(Map<Measurement, String> debugInfo) {
+    public DebugScorer(MeasurementDebugInfo debugInfo) {
         this.debugInfo = debugInfo;
     }
 
@@ -63,9 +60,11 @@ public class DebugScorer extends Scorer {
         for (MappedMeasurement mm : mappedMeasurements) {
             if (cutoffs.evaluate(mm.getMeasurement())) {
                 stateChangeMap.put(mm.getKamNode(), mm);
-                debugInfo.put(mm.getMeasurement(), STATE_CHANGE);
+                debugInfo.setStatus(mm.getMeasurement(), Status.STATE_CHANGE,
+                        null);
             } else {
-                debugInfo.put(mm.getMeasurement(), FAILED_CUTOFFS);
+                debugInfo.setStatus(mm.getMeasurement(), Status.FAILED_CUTOFFS,
+                        null);
             }
         }
         return stateChangeMap;
@@ -0,0 +1,129 @@
+package com.selventa.whistle.cli;
+
+import static java.lang.String.format;
+
+import org.openbel.framework.api.Kam.KamNode;
+
+import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.data.model.MeasurementTable;
+
+/**
+ * Debug information for each row of a {@link MeasurementTable}: the
+ * {@link KamNode} a row was mapped to and a status recording what happened to
+ * it. Information is indexed by {@link Measurement#getRow() row} and held in
+ * arrays so that no {@link Measurement} is hashed.
+ */
+public class MeasurementDebugInfo {
+
+    /**
+     * Status of a row
+     */
+    public enum Status {
+        NOT_MAPPED_TO_KAM("Not mapped to KAM"),
+        NOT_PRESENT_IN_POPULATION("Not present in population: %s"),
+        COLLAPSED("Collapsed to: %s"),
+        FAILED_CUTOFFS("Failed cutoffs"),
+        STATE_CHANGE("State Change");
+
+        private static final Status[] VALUES = values();
+
+        private final String format;
+
+        private Status(String format) {
+            this.format = format;
+        }
+    }
+
+    private final MeasurementTable table;
+    /**
+     * {@link Status#ordinal()} + 1 of each row; 0 if none
+     */
+    private final byte[] statuses;
+    /**
+     * The {@link KamNode} of each row's status, if any
+     */
+    private final KamNode[] statusNodes;
+    private final KamNode[] mappedNodes;
+
+    /**
+     * @param table
+     */
+    public MeasurementDebugInfo(MeasurementTable table) {
+        this.table = table;
+        this.statuses = new byte[table.size()];
+        this.statusNodes = new KamNode[table.size()];
+        this.mappedNodes = new KamNode[table.size()];
+    }
+
+    /**
+     * @return the table this information describes
+     */
+    public MeasurementTable getTable() {
+        return table;
+    }
+
+    /**
+     * Set the status of a measurement, replacing any previous status.
+     * Measurements that are not a row of the table are ignored.
+     *
+     * @param m
+     * @param status
+     * @param node the node named by the status, or <code>null</code>
+     */
+    public void setStatus(Measurement m, Status status, KamNode node) {
+        int row = rowOf(m);
+        if (row != -1) {
+            statuses[row] = (byte) (status.ordinal() + 1);
+            statusNodes[row] = node;
+        }
+    }
+
+    /**
+     * Record the {@link KamNode} a measurement was mapped to. Measurements
+     * that are not a row of the table are ignored.
+     *
+     * @param m
+     * @param node
+     */
+    public void setMappedNode(Measurement m, KamNode node) {
+        int row = rowOf(m);
+        if (row != -1) {
+            mappedNodes[row] = node;
+        }
+    }
+
+    /**
+     * @param row
+     * @return the status of a row or <code>null</code> if none was set
+     */
+    public Status getStatus(int row) {
+        int s = statuses[row];
+        return s == 0 ? null : Status.VALUES[s - 1];
+    }
+
+    /**
+     * @param row
+     * @return the status of a row for display, <code>null</code> if none was
+     *         set
+     */
+    public String getStatusText(int row) {
+        Status s = getStatus(row);
+        if (s == null) {
+            return null;
+        }
+        KamNode node = statusNodes[row];
+        return format(s.format, node == null ? null : node.getLabel());
+    }
+
+    /**
+     * @param row
+     * @return the {@link KamNode} a row was mapped to, or <code>null</code>
+     */
+    public KamNode getMappedNode(int row) {
+        return mappedNodes[row];
+    }
+
+    private int rowOf(Measurement m) {
+        return m.getTable() == table ? m.getRow() : -1;
+    }
+}
@@ -17,7 +17,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -64,15 +63,20 @@ import org.slf4j.LoggerFactory;
 
 import au.com.bytecode.opencsv.CSVWriter;
 
+import com.selventa.whistle.cli.MeasurementDebugInfo.Status;
 import com.selventa.whistle.cli.license.LicenseAgreement;
 import com.selventa.whistle.cli.license.LicenseCallback;
 import com.selventa.whistle.cli.license.LicensePromptOptions;
 import com.selventa.whistle.data.enums.DirectionType;
 import com.selventa.whistle.data.model.Comparison;
 import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.data.model.MeasurementTable;
+import com.selventa.whistle.data.service.ComparisonSelector;
 import com.selventa.whistle.data.service.DataFileService;
+import com.selventa.whistle.data.service.DataFileService.DataFileException;
 import com.selventa.whistle.data.service.DefaultCollapsingStrategy;
 import com.selventa.whistle.data.service.DefaultIdAMPDataFileService;
+import com.selventa.whistle.data.service.IdAMPDataFileService;
 import com.selventa.whistle.score.model.Cutoffs;
 import com.selventa.whistle.score.model.Downstream;
 import com.selventa.whistle.score.model.Hypothesis;
@@ -80,8 +84,14 @@ import com.selventa.whistle.score.model.MappedMeasurement;
 import com.selventa.whistle.score.model.ScoredHypothesis;
 import com.selventa.whistle.score.service.BasicHypothesisFinder;
 import com.selventa.whistle.score.service.DefaultMeasurementMappingService;
+import com.selventa.whistle.score.service.EquivalenceIndex;
+import com.selventa.whistle.score.service.KAMStoreFactory;
+import com.selventa.whistle.score.service.KamMetadataService;
 import com.selventa.whistle.score.service.MeasurementMappingService;
 import com.selventa.whistle.score.service.MeasurementMappingService.MappingResult;
+import com.selventa.whistle.score.service.MemoizedHypothesisFinder;
+import com.selventa.whistle.score.service.ParallelHypothesisFinder;
+import com.selventa.whistle.score.service.PipelinedResolver;
 import com.selventa.whistle.score.service.Scorer;
 import com.selventa.whistle.score.service.Scorer.Prediction;
 
@@ -100,6 +110,9 @@ public class Rcr {
     private static final String KAM_LONG_OPT = "kam";
     private static final String DATA_SHORT_OPT = "f";
     private static final String DATA_LONG_OPT = "input-file";
+    private static final String STDIN = "-";
+    private static final String COMPARISON_SHORT_OPT = "c";
+    private static final String COMPARISON_LONG_OPT = "comparison";
     private static final String RUN_NAME_SHORT_OPT = "r";
     private static final String RUN_NAME_LONG_OPT = "run-name";
     private static final String FOLD_CHANGE_SHORT_OPT = "m";
@@ -117,6 +130,16 @@ public class Rcr {
     private static final String DETAIL_LONG_OPT = "detail";
     private static final String SPECIES_TAXID_SHORT_OPT = "t";
     private static final String SPECIES_TAXID_LONG_OPT = "taxid";
+    private static final String THREADS_LONG_OPT = "threads";
+    private static final String DEPTH_LONG_OPT = "depth";
+    private static final int DEFAULT_DEPTH = 2;
+    private static final String CACHE_LONG_OPT = "cache-input-file";
+    private static final String MAPPING_CACHE_LONG_OPT = "cache-mapping";
+    private static final String MAPPING_CACHE_DIRECTORY = "whistle-mapping";
+    private static final String HYPOTHESIS_CACHE_LONG_OPT = "cache-hypotheses";
+    private static final String HYPOTHESIS_CACHE_DIRECTORY = "whistle-hypotheses";
+    private static final String EQUIVALENCE_URL_LONG_OPT = "equivalence-url";
+    private static final String EQUIVALENCE_INDEX_DIRECTORY = "whistle-equivalence";
     private static final String CSV = ".csv";
     private static final String RESULT_FILE_SUFFIX = "_result" + CSV;
     private static final String MAPPING_FILE_SUFFIX = "_mapping" + CSV;
@@ -127,9 +150,6 @@ public class Rcr {
     private static final String AMBIGUOUS = "Ambiguous";
     private static final String CONTRA = "Contra";
     private static final String CORRECT = "Correct";
-    private static final String COLLAPSED_STATUS = "Collapsed to: %s";
-    private static final String NOT_PRESENT_IN_POPULATION_STATUS = "Not present in population: %s";
-    private static final String NOT_MAPPED_TO_KAM_STATUS = "Not mapped to KAM";
 
     // header constants
     private static final String ID_HEADER = "Id";
@@ -167,6 +187,7 @@ public class Rcr {
     private SystemConfiguration sysCfg;
     private DatabaseService dbService;
     private KAMStore kamStore;
+    private KamMetadataService kamMetadataService;
     private CacheableResourceService cacheService;
     private DataFileService dataFileService;
     private MeasurementMappingService mappingService;
@@ -270,13 +291,14 @@ public class Rcr {
         this.sysCfg = getSystemConfiguration();
         this.dbService = getDatabaseService();
         this.kamStore = getKamStore();
+        this.kamMetadataService = getKamMetadataService();
         this.cacheService = getCacheableResourceService();
         this.dataFileService = getDataFileService();
         this.mappingService = getMappingService();
         this.dialect = getDialect();
 
         if (sysCfg == null || dbService == null || kamStore == null
-                || cacheService == null || dataFileService == null
+                || kamMetadataService == null || cacheService == null || dataFileService == null
                 || mappingService == null || dialect == null) {
             throw new IllegalStateException("null service created");
         }
@@ -287,7 +309,7 @@ public class Rcr {
      */
     private void printHelp() {
         HelpFormatter hf = new HelpFormatter();
-        hf.printHelp(" whistle [-r <run_name> -f <data_file> -k <kam_name> -u <namespace_url>]", getCommandLineOptions());
+        hf.printHelp(" whistle [-r <run_name> -f <data_file> -k <kam_name> -u <namespace_url> [-c <comparison>]]", getCommandLineOptions());
     }
 
     /**
@@ -347,8 +369,20 @@ public class Rcr {
             valid = false;
         }
 
-        File f = new File(commandLine.getOptionValue(DATA_SHORT_OPT));
-        if (!f.exists() || !f.canRead()) {
+        if (commandLine.hasOption(EQUIVALENCE_URL_LONG_OPT)) {
+            try {
+                cacheService.resolveResource(ResourceType.EQUIVALENCES,
+                        commandLine.getOptionValue(EQUIVALENCE_URL_LONG_OPT));
+            } catch (Exception e) {
+                System.err
+                        .println("ERROR: Could not validate equivalence URL. Confirm the URL is correct and accessible.");
+                valid = false;
+            }
+        }
+
+        String data = commandLine.getOptionValue(DATA_SHORT_OPT);
+        File f = new File(data);
+        if (!STDIN.equals(data) && (!f.exists() || !f.canRead())) {
             System.err
                     .println("ERROR: Could not open data file for reading. Confirm data file path");
             valid = false;
@@ -381,6 +415,25 @@ public class Rcr {
             }
         }
 
+        if (commandLine.hasOption(THREADS_LONG_OPT)) {
+            if (!isPositiveInteger(commandLine.getOptionValue(THREADS_LONG_OPT))) {
+                System.err
+                        .println("ERROR: Invalid number of threads. Value must be a positive integer.");
+                valid = false;
+            }
+        }
+
+        if (commandLine.hasOption(DEPTH_LONG_OPT)) {
+            String depth = commandLine.getOptionValue(DEPTH_LONG_OPT);
+            if (!isPositiveInteger(depth)
+                    || Integer.parseInt(depth) < DEFAULT_DEPTH) {
+                System.err
+                        .println("ERROR: Invalid depth. Value must be an integer of at least "
+                                + DEFAULT_DEPTH + ".");
+                valid = false;
+            }
+        }
+
         return valid;
     }
 
@@ -388,67 +441,14 @@ public class Rcr {
         logger.debug("Parsing Namespace");
         Namespace ns = parseNamespace(cacheService,
                 commandLine.getOptionValue(NS_URL_SHORT_OPT));
-        File input = new File(commandLine.getOptionValue(DATA_SHORT_OPT));
-        logger.debug("Parsing input file");
-        Collection<Comparison> comparisons = dataFileService.process(input, ns);
-
-        if (comparisons.isEmpty()) {
-            System.err.println("No comparisons were found in input file.");
-            System.exit(1);
-        }
-        logger.info("Parsed {} comparisons from file", comparisons.size());
-
-        // If > 1 comparison parsed, prompt the user for the comparison they want to use
-        Comparison comparison;
-        if (comparisons.size() > 1) {
-            List<Comparison> compList = new ArrayList<Comparison>(comparisons);
-            System.out.println("Select the comparison to use:");
-            int idx = 0;
-            for (Comparison c : compList) {
-                System.out.println(++idx + ": " + c.getName());
-            }
-            BufferedReader br = new BufferedReader(new InputStreamReader(
-                    System.in));
-            int selection = -1;
-            while (selection == -1) {
-                String in = br.readLine();
-                if (StringUtils.isNumeric(in)) {
-                    int tmp = Integer.parseInt(in);
-                    if (tmp > 0 && tmp <= compList.size()) {
-                        selection = tmp;
-                    }
-                } else {
-                    System.err
-                            .println("Invalid selection. Please select a comparison");
-                }
-            }
-            comparison = compList.get(--selection);
-        } else {
-            comparison = comparisons.iterator().next();
-        }
-
-        // if details is enabled, write additional files
-        boolean showDetail = commandLine.hasOption(DETAIL_LONG_OPT);
-        Map<Measurement,String> debugInfo = new HashMap<Measurement, String>();
-
-        Collection<Measurement> measurements = comparison.getMeasurements();
-        logger.info("Comparison {} contains {} measurements",
-                comparison.getName(), measurements.size());
-
-        Cutoffs cutoffs;
-        if (commandLine.hasOption(ANLST_SHORT_OPT)) {
-            cutoffs = new Cutoffs(true);
-        } else {
-
-            cutoffs = new Cutoffs(Double.valueOf(commandLine
-                    .getOptionValue(FOLD_CHANGE_SHORT_OPT)), Double.valueOf(commandLine
-                    .getOptionValue(PVAL_SHORT_OPT)),
-                    Double.valueOf(commandLine.getOptionValue(ABUN_SHORT_OPT)));
-        }
-
+        // the KAM is loaded first so that identifiers are mapped while parsing
         String kamName = commandLine.getOptionValue(KAM_SHORT_OPT);
         Kam kam;
         logger.debug("Retrieving KAM '{}' from KamStore", kamName);
+        KamInfo info = kamMetadataService.getKamInfo(kamName);
+        // an unknown name is reported by the KamStore
+        Kam base = info == null ? kamStore.getKam(kamName) : kamStore
+                .getKam(info);
         if (commandLine.hasOption(SPECIES_TAXID_LONG_OPT)) {
             final String taxId = commandLine.getOptionValue(SPECIES_TAXID_LONG_OPT);
 
@@ -457,28 +457,106 @@ public class Rcr {
 
             logger.debug("Collapsing KAM '{}' to tax id {}.", kamName,
                     String.valueOf(speciesTaxId));
-            // load kam
-            kam = kamStore.getKam(kamName);
-            KamInfo info = kam.getKamInfo();
-            
             // orthologize
             Orthologize ortho = new DefaultOrthologize();
             int tax = Integer.valueOf(taxId);
             SpeciesDialect sd = new DefaultSpeciesDialect(info, kamStore, tax, true);
-            kam = ortho.orthologize(kam, kamStore, sd);
+            kam = ortho.orthologize(base, kamStore, sd);
         } else {
-            kam = new KamDialect(kamStore.getKam(kamName), dialect);
+            kam = new KamDialect(base, dialect);
         }
         logger.info("Completed KAM retrieval");
 
-        logger.debug("Finding mechanisms");
-        BasicHypothesisFinder hypFinder = new BasicHypothesisFinder();
-        List<Hypothesis> hyps = hypFinder.findAll(kam, 2);
-        logger.info("Found {} mechanisms in KAM", hyps.size());
+        String input = commandLine.getOptionValue(DATA_SHORT_OPT);
+        boolean stdin = STDIN.equals(input);
+        logger.debug("Parsing input file");
+        // standard input cannot be used to prompt while it holds the data
+        ComparisonSelector selector = commandLine.hasOption(COMPARISON_SHORT_OPT)
+                ? getComparisonSelector(commandLine.getOptionValue(COMPARISON_SHORT_OPT))
+                : stdin ? new SingleComparisonSelector()
+                        : new PromptComparisonSelector();
+        if (dataFileService instanceof IdAMPDataFileService) {
+            IdAMPDataFileService idamp = (IdAMPDataFileService) dataFileService;
+            idamp.setParallelism(getThreads());
+            idamp.setCacheEnabled(commandLine.hasOption(CACHE_LONG_OPT));
+        }
+        if (mappingService instanceof DefaultMeasurementMappingService) {
+            DefaultMeasurementMappingService dmms = (DefaultMeasurementMappingService) mappingService;
+            dmms.setParallelism(getThreads());
+            if (commandLine.hasOption(EQUIVALENCE_URL_LONG_OPT)) {
+                dmms.setEquivalenceIndex(getEquivalenceIndex(
+                        commandLine.getOptionValue(NS_URL_SHORT_OPT),
+                        commandLine.getOptionValue(EQUIVALENCE_URL_LONG_OPT)));
+            }
+        }
+        PipelinedResolver pipeline = null;
+        if (dataFileService instanceof IdAMPDataFileService
+                && mappingService instanceof DefaultMeasurementMappingService) {
+            pipeline = new PipelinedResolver(
+                    ((DefaultMeasurementMappingService) mappingService)
+                            .openResolver(kam));
+            ((IdAMPDataFileService) dataFileService).setTermListener(pipeline);
+        }
+        // if details is enabled, write additional files
+        boolean showDetail = commandLine.hasOption(DETAIL_LONG_OPT);
+        MeasurementDebugInfo debugInfo;
+        Collection<Measurement> measurements;
+        Cutoffs cutoffs;
+        List<Hypothesis> hyps;
+        MappingResult mappingResult;
+        // the resolver is released however this section ends
+        try {
+            Collection<Comparison> comparisons = stdin
+                    ? dataFileService.process(System.in, ns, selector)
+                    : dataFileService.process(new File(input), ns, selector);
+            if (dataFileService instanceof DefaultIdAMPDataFileService) {
+                logger.debug("{}", ((DefaultIdAMPDataFileService) dataFileService)
+                        .getTermInterner());
+            }
+
+            if (comparisons.isEmpty()) {
+                System.err.println("No comparisons were found in input file.");
+                System.exit(1);
+            }
+            Comparison comparison = comparisons.iterator().next();
+            logger.info("Parsed comparison {} from file", comparison.getName());
+
+            debugInfo = new MeasurementDebugInfo(comparison.getTable());
+
+            measurements = comparison.getMeasurements();
+            logger.info("Comparison {} contains {} measurements",
+                    comparison.getName(), measurements.size());
+
+            if (commandLine.hasOption(ANLST_SHORT_OPT)) {
+                cutoffs = new Cutoffs(true);
+            } else {
+
+                cutoffs = new Cutoffs(Double.valueOf(commandLine
+                        .getOptionValue(FOLD_CHANGE_SHORT_OPT)), Double.valueOf(commandLine
+                        .getOptionValue(PVAL_SHORT_OPT)),
+                        Double.valueOf(commandLine.getOptionValue(ABUN_SHORT_OPT)));
+            }
 
-        logger.debug("Mapping measurements to Mechanisms");
-        MappingResult mappingResult = mappingService.map(
-                kam, hyps, measurements);
+            logger.debug("Finding mechanisms");
+            BasicHypothesisFinder hypFinder = getHypothesisFinder();
+            if (commandLine.hasOption(HYPOTHESIS_CACHE_LONG_OPT)) {
+                hypFinder.setCatalog(new File(getSystemConfiguration()
+                        .getCacheDirectory(), HYPOTHESIS_CACHE_DIRECTORY),
+                        getKamQualifier());
+            }
+            hyps = hypFinder.findAll(kam, getDepth());
+            logger.info("Found {} mechanisms in KAM", hyps.size());
+
+            logger.debug("Mapping measurements to Mechanisms");
+            mappingResult = pipeline != null
+                    ? mappingService.map(pipeline.finish(), hyps, measurements)
+                    : mappingService.map(kam, hyps, measurements);
+        } finally {
+            if (pipeline != null) {
+                ((IdAMPDataFileService) dataFileService).setTermListener(null);
+                pipeline.close();
+            }
+        }
         logger.info("Mapped {} measurements to Mechanisms", mappingResult.getMappedMeasurements().size());
 
         if (showDetail) {
@@ -486,25 +564,22 @@ public class Rcr {
             assert mappingService instanceof DebugMeasurementMappingService;
             DebugMeasurementMappingService msvc = (DebugMeasurementMappingService) mappingService;
 
-            Collection<Measurement> unmapped = msvc.getUnmapped();
-            String status = NOT_MAPPED_TO_KAM_STATUS;
-            for (Measurement m : unmapped) {
-                debugInfo.put(m, status);
+            for (Measurement m : msvc.getUnmapped()) {
+                debugInfo.setStatus(m, Status.NOT_MAPPED_TO_KAM, null);
             }
 
             Map<KamNode,Set<Measurement>> notInPopulation = msvc.getNotInPopulation();
             for (Map.Entry<KamNode, Set<Measurement>> entry : notInPopulation.entrySet()) {
-                status = format(NOT_PRESENT_IN_POPULATION_STATUS, entry.getKey().getLabel());
                 for (Measurement m : entry.getValue()) {
-                    debugInfo.put(m, status);
+                    debugInfo.setStatus(m, Status.NOT_PRESENT_IN_POPULATION,
+                            entry.getKey());
                 }
             }
 
-            Map<KamNode,Set<Measurement>> collapsed = msvc.getCollapsed();
-            for (Map.Entry<KamNode, Set<Measurement>> entry : collapsed.entrySet()) {
-                status = format(COLLAPSED_STATUS, entry.getKey().getLabel());
+            Map<KamNode,List<Measurement>> collapsed = msvc.getCollapsed();
+            for (Map.Entry<KamNode, List<Measurement>> entry : collapsed.entrySet()) {
                 for (Measurement m : entry.getValue()) {
-                    debugInfo.put(m, status);
+                    debugInfo.setStatus(m, Status.COLLAPSED, entry.getKey());
                 }
             }
         }
@@ -563,6 +638,100 @@ public class Rcr {
         }
     }
 
+    /**
+     * Obtain the {@link ComparisonSelector} for a comparison given on the
+     * command line. The value is matched against the comparison names and,
+     * failing that, is used as the 1-based position of the comparison.
+     *
+     * @param comparison
+     * @return
+     */
+    protected ComparisonSelector getComparisonSelector(final String comparison) {
+        final ComparisonSelector byName = ComparisonSelector.byName(comparison);
+        if (!StringUtils.isNumeric(comparison)) {
+            return byName;
+        }
+        final ComparisonSelector byIndex = ComparisonSelector
+                .byIndex(Integer.parseInt(comparison));
+        return new ComparisonSelector() {
+            @Override
+            public int[] select(List<String> names) throws DataFileException {
+                for (String name : names) {
+                    if (name.equalsIgnoreCase(comparison)) {
+                        return byName.select(names);
+                    }
+                }
+                return byIndex.select(names);
+            }
+        };
+    }
+
+    /**
+     * {@link ComparisonSelector} requiring the data file to define at most one
+     * comparison.
+     */
+    private static class SingleComparisonSelector extends ComparisonSelector {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int[] select(List<String> names) throws DataFileException {
+            if (names.size() > 1) {
+                throw new DataFileException("Data file defines "
+                        + names.size() + " comparisons; use -"
+                        + COMPARISON_SHORT_OPT
+                        + " to choose one when reading standard input");
+            }
+            return ALL.select(names);
+        }
+    }
+
+    /**
+     * {@link ComparisonSelector} prompting the user for the comparison to use
+     * if the data file defines more than one.
+     */
+    private static class PromptComparisonSelector extends ComparisonSelector {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int[] select(List<String> names) throws DataFileException {
+            if (names.size() <= 1) {
+                return ALL.select(names);
+            }
+            System.out.println("Select the comparison to use:");
+            int idx = 0;
+            for (String name : names) {
+                System.out.println(++idx + ": " + name);
+            }
+            BufferedReader br = new BufferedReader(new InputStreamReader(
+                    System.in));
+            int selection = -1;
+            try {
+                while (selection == -1) {
+                    String in = br.readLine();
+                    if (in == null) {
+                        throw new DataFileException("No comparison selected");
+                    }
+                    if (StringUtils.isNumeric(in)) {
+                        int tmp = Integer.parseInt(in);
+                        if (tmp > 0 && tmp <= names.size()) {
+                            selection = tmp;
+                        }
+                    } else {
+                        System.err
+                                .println("Invalid selection. Please select a comparison");
+                    }
+                }
+            } catch (IOException e) {
+                throw new DataFileException(e);
+            }
+            return new int[] { selection - 1 };
+        }
+    }
+
     /**
      * Compute the {@link KamNode hypothesis node} to
      * {@link Downstream downstreams} that are in the population measured.
@@ -667,26 +836,34 @@ public class Rcr {
         writer.close();
     }
 
+    /**
+     * Write the mapping file: the identifier, mapped {@link KamNode} and
+     * status of each row of the comparison, in file order.
+     *
+     * @param out
+     * @param mappedMeasurements
+     * @param debugInfo
+     * @throws IOException
+     */
     protected void writeMeasurementDebug(FileWriter out,
             Collection<MappedMeasurement> mappedMeasurements,
-            Map<Measurement,String> debugInfo) throws IOException {
+            MeasurementDebugInfo debugInfo) throws IOException {
 
-        Map<Measurement, KamNode> nodeMap = new HashMap<Measurement, Kam.KamNode>();
         for (MappedMeasurement mm : mappedMeasurements) {
-            nodeMap.put(mm.getMeasurement(), mm.getKamNode());
+            debugInfo.setMappedNode(mm.getMeasurement(), mm.getKamNode());
         }
 
         CSVWriter writer = new CSVWriter(out);
         String[] line = new String[] { ID_HEADER, KAM_NODE_HEADER, STATUS_HEADER };
         writer.writeNext(line);
-        Map<Measurement, String> idMap = ((DebugIdAmpDataFileService) dataFileService).getIdMap();
+        MeasurementTable table = debugInfo.getTable();
 
-        for (Map.Entry<Measurement, String> entry : idMap.entrySet()) {
-            Measurement m = entry.getKey();
+        for (int row = 0; row < table.size(); row++) {
+            KamNode node = debugInfo.getMappedNode(row);
             int idx = -1;
-            line[++idx] = entry.getValue();
-            line[++idx] = nodeMap.get(m) == null ? "" : nodeMap.get(m).getLabel();
-            line[++idx] = debugInfo.get(m);
+            line[++idx] = table.getId(row);
+            line[++idx] = node == null ? "" : node.getLabel();
+            line[++idx] = debugInfo.getStatusText(row);
             writer.writeNext(line);
         }
         writer.flush();
@@ -779,11 +956,17 @@ public class Rcr {
                 DATA_SHORT_OPT,
                 DATA_LONG_OPT,
                 true,
-                "Data set input file. The file should be in valid IdAMP format.  " +
-                "If more than one comparison is represented you will be prompted to choose one.");
+                "Data set input file, or - to read standard input. The file should be in valid IdAMP format.  " +
+                "If more than one comparison is represented you will be prompted to choose one, unless reading standard input.");
         o.setRequired(true);
         ret.addOption(o);
 
+        ret.addOption(new Option(
+                COMPARISON_SHORT_OPT,
+                COMPARISON_LONG_OPT,
+                true,
+                "Name or 1-based position of the comparison to use. Only this comparison will be read from the data set input file."));
+
         o = new Option(RUN_NAME_SHORT_OPT, RUN_NAME_LONG_OPT, true,
                 "Name of the whistle run used as a file prefix.");
         o.setRequired(true);
@@ -826,6 +1009,26 @@ public class Rcr {
         ret.addOption(new Option(SPECIES_TAXID_SHORT_OPT, SPECIES_TAXID_LONG_OPT, true,
                 "The species taxonomy id used to collapse orthologous nodes."));
 
+        ret.addOption(new Option(THREADS_LONG_OPT, true,
+                "Number of threads used to process the data set input file, to look up identifiers in the KAM and to find mechanisms. Each thread looking up identifiers opens its own KAM database connection. The default is 1."));
+
+        ret.addOption(new Option(DEPTH_LONG_OPT, true,
+                "Maximum depth of the search for mechanisms. The default of "
+                        + DEFAULT_DEPTH
+                        + " finds mechanisms directly upstream of RNA abundances. Deeper searches reuse the downstreams found for each intermediate node and run on one thread."));
+
+        ret.addOption(new Option(CACHE_LONG_OPT, false,
+                "Store the parsed data set input file in a binary file next to it. Later runs load the binary file while the input file is unchanged. The binary file holds every comparison, so a run that writes it parses all comparisons of the input file, including those not selected."));
+
+        ret.addOption(new Option(MAPPING_CACHE_LONG_OPT, false,
+                "Store the KAM nodes each identifier maps to in the cache directory. Later runs reuse them until the KAM is recompiled."));
+
+        ret.addOption(new Option(HYPOTHESIS_CACHE_LONG_OPT, false,
+                "Store the mechanisms found in the KAM in the cache directory. Later runs read them until the KAM is recompiled."));
+
+        ret.addOption(new Option(EQUIVALENCE_URL_LONG_OPT, true,
+                "The URL of the equivalence file for the namespace. Identifiers are equivalenced with an index of the file kept in the cache directory."));
+
         return ret;
     }
 
@@ -893,6 +1096,16 @@ public class Rcr {
         if (kamStore != null) {
             return kamStore;
         }
+        return createKamStore();
+    }
+
+    /**
+     * Create a {@link KamStore} with its own database connection.
+     *
+     * @return
+     * @throws Exception
+     */
+    protected KAMStore createKamStore() throws Exception {
         if (sysCfg == null) {
             throw new IllegalStateException(
                     "System Configuration must be valid for KamStore creation");
@@ -906,6 +1119,23 @@ public class Rcr {
         return new KAMStoreImpl(dbc);
     }
 
+    /**
+     * Obtain the {@link KamMetadataService} shared by the services of Rcr.
+     *
+     * @return
+     * @throws Exception
+     */
+    protected KamMetadataService getKamMetadataService() throws Exception {
+        if (kamMetadataService != null) {
+            return kamMetadataService;
+        }
+        if (kamStore == null) {
+            throw new IllegalStateException(
+                    "KamStore must be valid for KamMetadataService creation");
+        }
+        return new KamMetadataService(kamStore);
+    }
+
     /**
      * Obtain the {@link DataFileService} for use in processing the input data
      * file.
@@ -915,13 +1145,53 @@ public class Rcr {
      */
     protected DataFileService getDataFileService() throws Exception {
 
-        return dataFileService == null ?
-                (commandLine.hasOption(DETAIL_LONG_OPT)
-                        ? new DebugIdAmpDataFileService()
-                        : new DefaultIdAMPDataFileService())
+        return dataFileService == null
+                ? new DefaultIdAMPDataFileService()
                 : dataFileService;
     }
 
+    /**
+     * Obtain the number of threads to use for parallel work.<br>
+     * Defaults to 1; parallel work is enabled with the threads option.
+     *
+     * @return
+     */
+    protected int getThreads() {
+        if (commandLine.hasOption(THREADS_LONG_OPT)) {
+            return Integer.parseInt(commandLine.getOptionValue(THREADS_LONG_OPT));
+        }
+        return 1;
+    }
+
+    /**
+     * Obtain the maximum depth of the search for mechanisms.<br>
+     * Defaults to 2; deeper searches are enabled with the depth option.
+     *
+     * @return
+     */
+    protected int getDepth() {
+        if (commandLine.hasOption(DEPTH_LONG_OPT)) {
+            return Integer.parseInt(commandLine.getOptionValue(DEPTH_LONG_OPT));
+        }
+        return DEFAULT_DEPTH;
+    }
+
+    /**
+     * Obtain the {@link BasicHypothesisFinder} used to find mechanisms.<br>
+     * Searches deeper than the default use a
+     * {@link MemoizedHypothesisFinder}; otherwise the search runs on
+     * {@link #getThreads()} threads.
+     *
+     * @return
+     */
+    protected BasicHypothesisFinder getHypothesisFinder() {
+        if (getDepth() > DEFAULT_DEPTH) {
+            return new MemoizedHypothesisFinder();
+        }
+        return getThreads() > 1 ? new ParallelHypothesisFinder(getThreads())
+                : new BasicHypothesisFinder();
+    }
+
     /**
      * Obtain the {@link MeasurementMappingService} for use in mapping
      * {@link Measurement}s to a {@link Kam}
@@ -946,9 +1216,77 @@ public class Rcr {
 
         mappingService.setCollapsingStrategy(new DefaultCollapsingStrategy(commandLine.hasOption(ANLST_SHORT_OPT)));
         mappingService.setKamStore(getKamStore());
+        mappingService.setKamMetadataService(getKamMetadataService());
+        mappingService.setKamStoreFactory(new KAMStoreFactory() {
+            @Override
+            public KAMStore createKamStore() throws Exception {
+                return Rcr.this.createKamStore();
+            }
+        });
+        if (commandLine.hasOption(MAPPING_CACHE_LONG_OPT)) {
+            mappingService.setMappingCache(new File(
+                    getSystemConfiguration().getCacheDirectory(),
+                    MAPPING_CACHE_DIRECTORY), getKamQualifier());
+        }
         return mappingService;
     }
 
+    /**
+     * @return describes how the KAM is transformed for caching, or
+     *         <code>null</code> if it is not
+     */
+    private String getKamQualifier() {
+        if (commandLine.hasOption(SPECIES_TAXID_LONG_OPT)) {
+            return "taxid-"
+                    + commandLine.getOptionValue(SPECIES_TAXID_LONG_OPT);
+        }
+        return null;
+    }
+
+    /**
+     * Obtain the {@link EquivalenceIndex} of a namespace.<br>
+     * The index is built from the equivalence file on first use and kept in
+     * the cache directory; it is rebuilt when the cached copy of the
+     * equivalence file is newer.
+     *
+     * @param namespaceUrl
+     * @param equivalenceUrl URL of the equivalence file of the namespace
+     * @return
+     * @throws Exception
+     */
+    protected EquivalenceIndex getEquivalenceIndex(String namespaceUrl,
+            String equivalenceUrl) throws Exception {
+        File beleq = cacheService.resolveResource(ResourceType.EQUIVALENCES,
+                equivalenceUrl).getCacheResourceCopy();
+        File dir = new File(getSystemConfiguration().getCacheDirectory(),
+                EQUIVALENCE_INDEX_DIRECTORY);
+        File file = new File(dir, equivalenceUrl.replaceAll("[^A-Za-z0-9._]",
+                "_") + ".index");
+        if (file.isFile() && file.lastModified() >= beleq.lastModified()) {
+            try {
+                EquivalenceIndex index = EquivalenceIndex.open(file);
+                if (index.covers(namespaceUrl)) {
+                    logger.debug("Loaded equivalence index {}", file);
+                    return index;
+                }
+            } catch (IOException e) {
+                logger.warn("Ignoring equivalence index " + file, e);
+            }
+        }
+
+        logger.debug("Building equivalence index of {}", equivalenceUrl);
+        EquivalenceIndex index = new EquivalenceIndex.Builder().read(
+                namespaceUrl, beleq).build();
+        try {
+            if (dir.isDirectory() || dir.mkdirs()) {
+                index.write(file);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to write equivalence index " + file, e);
+        }
+        return index;
+    }
+
     /**
      * Obtain the {@link Dialect} for use in Rcr.<br>
      * Defaults to {@link RcrDialect}
@@ -981,6 +1319,20 @@ public class Rcr {
         return true;
     }
 
+    /**
+     * Determine if a String is a positive integer
+     *
+     * @param i
+     * @return
+     */
+    protected static boolean isPositiveInteger(String i) {
+        try {
+            return Integer.parseInt(i) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * Get a string for a number.<br>
      * This implementation returns "NA" if the number is null; useful for R processing
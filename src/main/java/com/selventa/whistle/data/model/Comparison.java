@@ -1,24 +1,24 @@
 package com.selventa.whistle.data.model;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 
 /**
  * A comparison is a collection of {@link Measurement}s for a statistical
- * analysis.
+ * analysis. The measurements are stored in a columnar {@link MeasurementTable}.
  * 
  * @author Steve Ungerer
  */
 public class Comparison {
     private final String name;
-    private final Collection<Measurement> measurements;
+    private final MeasurementTable table;
 
-    public Comparison(String name, Collection<Measurement> measurements) {
+    public Comparison(String name, MeasurementTable table) {
         this.name = name;
-        // prevent modification of Measurements
-        this.measurements = Collections
-                .unmodifiableList(new ArrayList<Measurement>(measurements));
+        this.table = table;
+    }
+
+    public Comparison(String name, Collection<Measurement> measurements) {
+        this(name, MeasurementTable.of(measurements));
     }
 
     /**
@@ -30,11 +30,20 @@ public class Comparison {
     }
 
     /**
-     * Retrieve the {@link Measurement}s for the comparison
+     * Retrieve the {@link MeasurementTable} holding the comparison's values
+     * @return
+     */
+    public MeasurementTable getTable() {
+        return table;
+    }
+
+    /**
+     * Retrieve an unmodifiable view of the {@link Measurement}s for the
+     * comparison
      * @return
      */
     public Collection<Measurement> getMeasurements() {
-        return measurements;
+        return table.asList();
     }
 
 }
@@ -13,7 +13,9 @@ import com.selventa.whistle.data.enums.DirectionType;
  * A Measurement is a biological observation that has been made but is not
  * necessarily present in any {@link Kam}.<br>
  * Currently a Measurement supports only {@link FunctionEnum#RNA_ABUNDANCE} of a
- * single parameter.
+ * single parameter.<br>
+ * Measurements parsed from a data file are views of a row of a
+ * {@link MeasurementTable}.
  *
  * @author Steve Ungerer
  */
@@ -24,6 +26,9 @@ public class Measurement {
     private final Double pValue;
     private final Double abundance;
     private final Boolean analystSelection;
+    private final MeasurementTable table;
+    private final int row;
+    private int hash;
 
     public Measurement(Term term, Double foldChange, Double pValue, Double abundance) {
         this(term, foldChange, pValue, abundance, null);
@@ -31,13 +36,7 @@ public class Measurement {
 
     public Measurement(Term term, Double directionVal, Double pValue, Double abundance, Boolean analystSelection)
             throws InvalidArgument {
-        if (term == null) {
-            throw new InvalidArgument("term must not be blank");
-        } else if (!(FunctionEnum.RNA_ABUNDANCE.equals(term.getFunctionEnum()))
-                || term.getNumberOfParameters() != 1) {
-            throw new InvalidArgument(
-                    "term must be an RNA_ABUNDANCE of a single parameter");
-        }
+        validate(term);
         this.term = term;
         if (directionVal == null) {
             throw new InvalidArgument("directionVal must not be null");
@@ -47,6 +46,36 @@ public class Measurement {
         this.pValue = pValue;
         this.abundance = abundance;
         this.analystSelection = analystSelection;
+        this.table = null;
+        this.row = -1;
+    }
+
+    /**
+     * Create a view of a {@link MeasurementTable} row.
+     *
+     * @param table
+     * @param row
+     */
+    Measurement(MeasurementTable table, int row) {
+        this.table = table;
+        this.row = row;
+        this.term = table.getTerm(row);
+        double d = table.getFoldChange(row);
+        this.directionVal = d;
+        this.direction = eval(d);
+        this.pValue = table.hasPValue(row) ? table.getPValue(row) : null;
+        this.abundance = table.hasAbundance(row) ? table.getAbundance(row) : null;
+        this.analystSelection = table.isAnalystSelection(row);
+    }
+
+    static void validate(Term term) throws InvalidArgument {
+        if (term == null) {
+            throw new InvalidArgument("term must not be blank");
+        } else if (!(FunctionEnum.RNA_ABUNDANCE.equals(term.getFunctionEnum()))
+                || term.getNumberOfParameters() != 1) {
+            throw new InvalidArgument(
+                    "term must be an RNA_ABUNDANCE of a single parameter");
+        }
     }
 
     public Term getTerm() {
@@ -75,6 +104,25 @@ public class Measurement {
         return direction;
     }
 
+    /**
+     * Retrieve the {@link MeasurementTable} this measurement is a view of.
+     *
+     * @return the table, or <code>null</code> if this measurement was not
+     *         created from a table
+     */
+    public MeasurementTable getTable() {
+        return table;
+    }
+
+    /**
+     * Retrieve the row of {@link #getTable()} this measurement is a view of.
+     *
+     * @return the row, or -1 if this measurement was not created from a table
+     */
+    public int getRow() {
+        return row;
+    }
+
     private static DirectionType eval(Double dir) {
         if (dir == null) {
             throw new InvalidArgument("dir must not be null");
@@ -91,17 +139,23 @@ public class Measurement {
     }
 
     /**
-     * {@inheritDoc}
+     * {@inheritDoc} The hash code is computed once; measurements are
+     * immutable.
      */
     @Override
     public int hashCode() {
-        return new HashCodeBuilder()
-            .append(getTerm())
-            .append(getFoldChange())
-            .append(getpValue())
-            .append(getAbundance())
-            .append(isAnalystSelection())
-            .toHashCode();
+        int h = hash;
+        if (h == 0) {
+            h = new HashCodeBuilder()
+                .append(getTerm())
+                .append(getFoldChange())
+                .append(getpValue())
+                .append(getAbundance())
+                .append(isAnalystSelection())
+                .toHashCode();
+            hash = h;
+        }
+        return h;
     }
 
     /**
@@ -0,0 +1,441 @@
+package com.selventa.whistle.data.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openbel.framework.common.InvalidArgument;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.model.Term;
+
+/**
+ * Columnar storage of the {@link Measurement}s of a {@link Comparison}.<br>
+ * Values are held in primitive arrays indexed by row; identifiers are
+ * dictionary encoded so that each row holds an <tt>int</tt> code into a
+ * table of distinct identifiers and their {@link Term}s. The identifier
+ * columns of a data file are shared by all of its comparisons.
+ * <p>
+ * {@link Measurement} objects are created on demand as views of a row via
+ * {@link #getMeasurement(int)} or {@link #asList()}.
+ * </p>
+ *
+ * @see Measurement
+ */
+public class MeasurementTable {
+    private final String[] ids;
+    private final Term[] terms;
+    private final int[] codes;
+    private final double[] foldChanges;
+    private final double[] pValues;
+    private final double[] abundances;
+    private final BitSet analystSelections;
+    private final BitSet missingPValues;
+    private final BitSet missingAbundances;
+    private final int size;
+
+    /**
+     * Construct a table. The arrays are not copied and must not be modified
+     * afterwards.
+     *
+     * @param ids distinct identifiers, indexed by code
+     * @param terms the {@link Term} of each distinct identifier, indexed by
+     *            code. Must be {@link FunctionEnum#RNA_ABUNDANCE} terms of a
+     *            single parameter.
+     * @param codes identifier code of each row
+     * @param foldChanges fold change of each row
+     * @param pValues p-value of each row, <code>null</code> if not measured
+     * @param abundances abundance of each row, <code>null</code> if not
+     *            measured
+     * @param analystSelections rows selected by the analyst
+     * @param size number of rows
+     * @throws InvalidArgument
+     */
+    public MeasurementTable(String[] ids, Term[] terms, int[] codes,
+            double[] foldChanges, double[] pValues, double[] abundances,
+            BitSet analystSelections, int size) throws InvalidArgument {
+        this(ids, terms, codes, foldChanges, pValues, abundances,
+                analystSelections, null, null, size);
+    }
+
+    /**
+     * Construct a table whose p-value and abundance columns may lack values
+     * for some rows. The arrays are not copied and must not be modified
+     * afterwards.
+     *
+     * @param ids distinct identifiers, indexed by code
+     * @param terms the {@link Term} of each distinct identifier, indexed by
+     *            code
+     * @param codes identifier code of each row
+     * @param foldChanges fold change of each row
+     * @param pValues p-value of each row, <code>null</code> if not measured
+     * @param abundances abundance of each row, <code>null</code> if not
+     *            measured
+     * @param analystSelections rows selected by the analyst
+     * @param missingPValues rows without a p-value, may be <code>null</code>
+     * @param missingAbundances rows without an abundance, may be
+     *            <code>null</code>
+     * @param size number of rows
+     * @throws InvalidArgument
+     */
+    public MeasurementTable(String[] ids, Term[] terms, int[] codes,
+            double[] foldChanges, double[] pValues, double[] abundances,
+            BitSet analystSelections, BitSet missingPValues,
+            BitSet missingAbundances, int size) throws InvalidArgument {
+        if (ids == null || terms == null || codes == null
+                || foldChanges == null || analystSelections == null) {
+            throw new InvalidArgument("columns must not be null");
+        }
+        if (ids.length != terms.length || codes.length < size
+                || foldChanges.length < size
+                || (pValues != null && pValues.length < size)
+                || (abundances != null && abundances.length < size)) {
+            throw new InvalidArgument("column sizes do not match");
+        }
+        for (Term t : terms) {
+            Measurement.validate(t);
+        }
+        this.ids = ids;
+        this.terms = terms;
+        this.codes = codes;
+        this.foldChanges = foldChanges;
+        this.pValues = pValues;
+        this.abundances = abundances;
+        this.analystSelections = analystSelections;
+        this.missingPValues = missingPValues == null
+                || missingPValues.isEmpty() ? null : missingPValues;
+        this.missingAbundances = missingAbundances == null
+                || missingAbundances.isEmpty() ? null : missingAbundances;
+        this.size = size;
+    }
+
+    /**
+     * Create a table from a collection of {@link Measurement}s. A p-value or
+     * abundance column is present if any measurement defines it; rows without
+     * a value remain without one.
+     *
+     * @param measurements
+     * @return
+     */
+    public static MeasurementTable of(Collection<Measurement> measurements) {
+        int size = measurements.size();
+        Map<Term, Integer> codeMap = new HashMap<Term, Integer>();
+        int[] codes = new int[size];
+        double[] fc = new double[size];
+        double[] pv = null;
+        double[] ab = null;
+        BitSet sel = new BitSet(size);
+        BitSet missingPv = new BitSet(size);
+        BitSet missingAb = new BitSet(size);
+        int row = 0;
+        for (Measurement m : measurements) {
+            Integer code = codeMap.get(m.getTerm());
+            if (code == null) {
+                code = codeMap.size();
+                codeMap.put(m.getTerm(), code);
+            }
+            codes[row] = code;
+            fc[row] = m.getFoldChange();
+            if (m.getpValue() != null) {
+                if (pv == null) {
+                    pv = nanArray(size);
+                }
+                pv[row] = m.getpValue();
+            } else {
+                missingPv.set(row);
+            }
+            if (m.getAbundance() != null) {
+                if (ab == null) {
+                    ab = nanArray(size);
+                }
+                ab[row] = m.getAbundance();
+            } else {
+                missingAb.set(row);
+            }
+            if (m.isAnalystSelection()) {
+                sel.set(row);
+            }
+            row++;
+        }
+        String[] ids = new String[codeMap.size()];
+        Term[] terms = new Term[codeMap.size()];
+        for (Map.Entry<Term, Integer> e : codeMap.entrySet()) {
+            terms[e.getValue()] = e.getKey();
+            ids[e.getValue()] = e.getKey().getParameters().get(0).getValue();
+        }
+        return new MeasurementTable(ids, terms, codes, fc, pv, ab, sel,
+                missingPv, missingAb, size);
+    }
+
+    private static double[] nanArray(int size) {
+        double[] ret = new double[size];
+        Arrays.fill(ret, Double.NaN);
+        return ret;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param row
+     * @return the identifier code of the row
+     */
+    public int getCode(int row) {
+        return codes[row];
+    }
+
+    /**
+     * @return the number of distinct identifiers
+     */
+    public int getCodeCount() {
+        return ids.length;
+    }
+
+    /**
+     * @param row
+     * @return the identifier of the row as given in the data file
+     */
+    public String getId(int row) {
+        return ids[codes[row]];
+    }
+
+    /**
+     * @param row
+     * @return the {@link Term} of the row
+     */
+    public Term getTerm(int row) {
+        return terms[codes[row]];
+    }
+
+    /**
+     * @param code
+     * @return the {@link Term} for an identifier code
+     */
+    public Term getTermForCode(int code) {
+        return terms[code];
+    }
+
+    /**
+     * @param code
+     * @return the identifier for an identifier code
+     */
+    public String getIdForCode(int code) {
+        return ids[code];
+    }
+
+    public double getFoldChange(int row) {
+        return foldChanges[row];
+    }
+
+    /**
+     * @return <code>true</code> if the table has a p-value column
+     */
+    public boolean hasPValues() {
+        return pValues != null;
+    }
+
+    /**
+     * @param row
+     * @return <code>true</code> if the row has a p-value
+     */
+    public boolean hasPValue(int row) {
+        return pValues != null
+                && (missingPValues == null || !missingPValues.get(row));
+    }
+
+    /**
+     * @param row
+     * @return the p-value of the row, or {@link Double#NaN} if it has none
+     */
+    public double getPValue(int row) {
+        return hasPValue(row) ? pValues[row] : Double.NaN;
+    }
+
+    /**
+     * @return <code>true</code> if the table has an abundance column
+     */
+    public boolean hasAbundances() {
+        return abundances != null;
+    }
+
+    /**
+     * @param row
+     * @return <code>true</code> if the row has an abundance
+     */
+    public boolean hasAbundance(int row) {
+        return abundances != null
+                && (missingAbundances == null || !missingAbundances.get(row));
+    }
+
+    /**
+     * @param row
+     * @return the abundance of the row, or {@link Double#NaN} if it has none
+     */
+    public double getAbundance(int row) {
+        return hasAbundance(row) ? abundances[row] : Double.NaN;
+    }
+
+    public boolean isAnalystSelection(int row) {
+        return analystSelections.get(row);
+    }
+
+    /**
+     * Create a {@link Measurement} view of a row.
+     *
+     * @param row
+     * @return
+     */
+    public Measurement getMeasurement(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + size);
+        }
+        return new Measurement(this, row);
+    }
+
+    /**
+     * Retrieve an unmodifiable {@link List} of the rows; {@link Measurement}s
+     * are created as the list is accessed.
+     *
+     * @return
+     */
+    public List<Measurement> asList() {
+        return new AbstractList<Measurement>() {
+            @Override
+            public Measurement get(int index) {
+                return getMeasurement(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Mutable builder of the value columns of a {@link MeasurementTable}.
+     * Identifier columns are supplied on {@link #build(String[], Term[], int[])}
+     * so that they may be shared between tables.
+     */
+    public static class Builder {
+        private final boolean hasPValues;
+        private final boolean hasAbundances;
+        private double[] foldChanges;
+        private double[] pValues;
+        private double[] abundances;
+        private final BitSet analystSelections = new BitSet();
+        private int size;
+
+        /**
+         * @param hasPValues whether a p-value column is measured
+         * @param hasAbundances whether an abundance column is measured
+         */
+        public Builder(boolean hasPValues, boolean hasAbundances) {
+            this.hasPValues = hasPValues;
+            this.hasAbundances = hasAbundances;
+            this.foldChanges = new double[1024];
+            this.pValues = hasPValues ? new double[1024] : null;
+            this.abundances = hasAbundances ? new double[1024] : null;
+        }
+
+        /**
+         * Append a row
+         *
+         * @param foldChange
+         * @param pValue ignored if the p-value column is not measured
+         * @param abundance ignored if the abundance column is not measured
+         * @param analystSelection
+         */
+        public void add(double foldChange, double pValue, double abundance,
+                boolean analystSelection) {
+            if (size == foldChanges.length) {
+                int n = size * 2;
+                foldChanges = Arrays.copyOf(foldChanges, n);
+                if (hasPValues) {
+                    pValues = Arrays.copyOf(pValues, n);
+                }
+                if (hasAbundances) {
+                    abundances = Arrays.copyOf(abundances, n);
+                }
+            }
+            foldChanges[size] = foldChange;
+            if (hasPValues) {
+                pValues[size] = pValue;
+            }
+            if (hasAbundances) {
+                abundances[size] = abundance;
+            }
+            if (analystSelection) {
+                analystSelections.set(size);
+            }
+            size++;
+        }
+
+        /**
+         * Append all rows of another builder with the same columns.
+         *
+         * @param other
+         */
+        public void append(Builder other) {
+            if (other.hasPValues != hasPValues
+                    || other.hasAbundances != hasAbundances) {
+                throw new InvalidArgument("builder columns do not match");
+            }
+            int n = size + other.size;
+            if (n > foldChanges.length) {
+                foldChanges = Arrays.copyOf(foldChanges, n);
+                if (hasPValues) {
+                    pValues = Arrays.copyOf(pValues, n);
+                }
+                if (hasAbundances) {
+                    abundances = Arrays.copyOf(abundances, n);
+                }
+            }
+            System.arraycopy(other.foldChanges, 0, foldChanges, size,
+                    other.size);
+            if (hasPValues) {
+                System.arraycopy(other.pValues, 0, pValues, size, other.size);
+            }
+            if (hasAbundances) {
+                System.arraycopy(other.abundances, 0, abundances, size,
+                        other.size);
+            }
+            BitSet sel = other.analystSelections;
+            for (int i = sel.nextSetBit(0); i >= 0; i = sel.nextSetBit(i + 1)) {
+                analystSelections.set(size + i);
+            }
+            size = n;
+        }
+
+        /**
+         * @return number of rows added
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Build the table.
+         *
+         * @param ids distinct identifiers, indexed by code
+         * @param terms {@link Term}s of the distinct identifiers, indexed by
+         *            code
+         * @param codes identifier code of each row
+         * @return
+         */
+        public MeasurementTable build(String[] ids, Term[] terms, int[] codes) {
+            return new MeasurementTable(ids, terms, codes,
+                    Arrays.copyOf(foldChanges, size),
+                    hasPValues ? Arrays.copyOf(pValues, size) : null,
+                    hasAbundances ? Arrays.copyOf(abundances, size) : null,
+                    analystSelections, size);
+        }
+    }
+}
@@ -0,0 +1,699 @@
+package com.selventa.whistle.data.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import com.selventa.whistle.data.service.DataFileService.DataFileException;
+
+/**
+ * Reads the columns of an Apache Arrow IPC file (including Feather V2) or
+ * stream, one record batch at a time.<br>
+ * The flatbuffer metadata of each message is decoded directly; values are
+ * read from the little-endian body of a record batch without conversion
+ * through text. Bodies read from a {@link FileChannel} are memory-mapped, so
+ * columns that are not accessed are not read.
+ * <p>
+ * A column is labelled by its {@value #COLUMN_METADATA_KEY} metadata if
+ * present, otherwise by its name, e.g. <tt>[M][comparison]</tt>.
+ * </p>
+ * <p>
+ * Integer, floating point (single and double precision), boolean and UTF-8
+ * string columns can be accessed. Columns of other types may be present but
+ * not accessed. Nested columns, compressed record batches, big-endian data
+ * and streams written before Arrow 0.15 are not supported.
+ * </p>
+ */
+final class ArrowReader {
+
+    /**
+     * Number of leading bytes needed by {@link #matches(byte[], int)}
+     */
+    static final int MAGIC_LENGTH = 6;
+
+    /**
+     * Column metadata key declaring the IdAMP header of a column
+     */
+    static final String COLUMN_METADATA_KEY = "whistle.idamp";
+
+    private static final byte[] FILE_MAGIC = { 'A', 'R', 'R', 'O', 'W', '1' };
+    private static final int FILE_MAGIC_INT = ByteBuffer.wrap(FILE_MAGIC, 0, 4)
+            .order(ByteOrder.LITTLE_ENDIAN).getInt();
+    private static final int CONTINUATION = 0xffffffff;
+    private static final int MAX_METADATA_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // message header types
+    private static final int SCHEMA = 1;
+    private static final int RECORD_BATCH = 3;
+
+    // column types
+    private static final int NULL = 1;
+    private static final int INT = 2;
+    private static final int FLOATING_POINT = 3;
+    private static final int BINARY = 4;
+    private static final int UTF8_TYPE = 5;
+    private static final int BOOL = 6;
+    private static final int LARGE_BINARY = 19;
+    private static final int LARGE_UTF8 = 20;
+    private static final int BINARY_VIEW = 23;
+    private static final int UTF8_VIEW = 24;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer scratch = ByteBuffer.allocate(8).order(
+            ByteOrder.LITTLE_ENDIAN);
+    private final String[] labels;
+    private final int[] types;
+    /**
+     * Bit width of integer and floating point columns
+     */
+    private final int[] widths;
+    private final boolean[] signed;
+    private final boolean[] dictionary;
+    /**
+     * Number of buffers of a record batch
+     */
+    private final int bufferCount;
+
+    private ByteBuffer body;
+    private int rows;
+    private final int[] validity;
+    private final int[] offsets;
+    private final int[] data;
+
+    /**
+     * Read the schema of Arrow IPC data.
+     *
+     * @param channel positioned at the start of the data
+     * @throws IOException if the data cannot be read or is not supported
+     */
+    ArrowReader(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        int first = readInt();
+        if (first == FILE_MAGIC_INT) {
+            // file format: magic, padding, then the stream format
+            readInt();
+            first = readInt();
+        }
+        ByteBuffer schema = readMessage(first);
+        if (schema == null || headerType(schema) != SCHEMA) {
+            throw new IOException("Arrow data does not start with a schema");
+        }
+        try {
+            int header = table(schema, root(schema), 2);
+            if (header == -1) {
+                throw new IOException("Arrow schema has no header");
+            }
+            if (getShort(schema, header, 0) != 0) {
+                throw new IOException("Big-endian Arrow data is not supported");
+            }
+            int fields = table(schema, header, 1);
+            int count = fields == -1 ? 0 : length(schema, fields, 4);
+            labels = new String[count];
+            types = new int[count];
+            widths = new int[count];
+            signed = new boolean[count];
+            dictionary = new boolean[count];
+            int buffers = 0;
+            for (int i = 0; i < count; i++) {
+                int field = indirect(schema, fields + 4 + i * 4);
+                buffers += readField(schema, field, i);
+            }
+            bufferCount = buffers;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt Arrow schema", e);
+        }
+        validity = new int[labels.length];
+        offsets = new int[labels.length];
+        data = new int[labels.length];
+    }
+
+    /**
+     * Detect Arrow IPC data from its leading bytes.
+     *
+     * @param head leading bytes of the data
+     * @param length number of valid bytes in <tt>head</tt>
+     * @return <code>true</code> for an Arrow IPC file or stream
+     */
+    static boolean matches(byte[] head, int length) {
+        if (length >= FILE_MAGIC.length) {
+            boolean file = true;
+            for (int i = 0; i < FILE_MAGIC.length; i++) {
+                file &= head[i] == FILE_MAGIC[i];
+            }
+            if (file) {
+                return true;
+            }
+        }
+        return length >= 4 && head[0] == -1 && head[1] == -1
+                && head[2] == -1 && head[3] == -1;
+    }
+
+    /**
+     * Detect Arrow IPC data at the start of a file without moving its
+     * position.
+     *
+     * @param channel
+     * @return
+     * @throws IOException
+     */
+    static boolean matches(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(MAGIC_LENGTH);
+        while (head.hasRemaining()
+                && channel.read(head, head.position()) > 0) {
+            // read until full or end of file
+        }
+        return matches(head.array(), head.position());
+    }
+
+    /**
+     * @return the label of each column
+     */
+    String[] getLabels() {
+        return labels.clone();
+    }
+
+    /**
+     * Advance to the next record batch, skipping dictionary batches.
+     *
+     * @return <code>false</code> at the end of the data
+     * @throws IOException if a batch cannot be read or is not supported
+     */
+    boolean nextBatch() throws IOException {
+        while (true) {
+            scratch.clear();
+            scratch.limit(4);
+            while (scratch.position() == 0) {
+                if (channel.read(scratch) < 0) {
+                    // a stream may end without an end-of-stream marker
+                    return false;
+                }
+            }
+            readFully(scratch);
+            ByteBuffer message = readMessage(scratch.getInt(0));
+            if (message == null) {
+                return false;
+            }
+            int type = headerType(message);
+            long bodyLength;
+            int header;
+            try {
+                bodyLength = getLong(message, root(message), 3);
+                header = table(message, root(message), 2);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt Arrow message", e);
+            }
+            if (bodyLength < 0 || bodyLength > Integer.MAX_VALUE) {
+                throw new IOException("Invalid Arrow message body length: "
+                        + bodyLength);
+            }
+            ByteBuffer b = readBody((int) bodyLength);
+            if (type == RECORD_BATCH) {
+                try {
+                    load(message, header, b);
+                } catch (RuntimeException e) {
+                    throw new IOException("Corrupt Arrow record batch", e);
+                }
+                return true;
+            } else if (type == SCHEMA) {
+                throw new IOException("Unexpected Arrow schema");
+            }
+        }
+    }
+
+    /**
+     * @return the number of rows of the current batch
+     */
+    int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Check that a column holds identifiers: strings or integers.
+     *
+     * @param column
+     * @throws DataFileException
+     */
+    void requireText(int column) throws DataFileException {
+        if (dictionary[column]
+                || (types[column] != UTF8_TYPE
+                        && types[column] != LARGE_UTF8 && types[column] != INT)) {
+            throw new DataFileException("Column " + labels[column]
+                    + " must be a string or integer column");
+        }
+    }
+
+    /**
+     * Check that a column holds numbers.
+     *
+     * @param column
+     * @throws DataFileException
+     */
+    void requireNumeric(int column) throws DataFileException {
+        if (dictionary[column]
+                || (types[column] != INT && !(types[column] == FLOATING_POINT && widths[column] >= 32))) {
+            throw new DataFileException("Column " + labels[column]
+                    + " must be an integer or floating point column");
+        }
+    }
+
+    /**
+     * Check that a column holds flags: booleans, integers or strings.
+     *
+     * @param column
+     * @throws DataFileException
+     */
+    void requireFlag(int column) throws DataFileException {
+        if (types[column] != BOOL) {
+            requireText(column);
+        }
+    }
+
+    /**
+     * @param column
+     * @param row row of the current batch
+     * @return <code>true</code> if the value is null
+     */
+    boolean isNull(int column, int row) {
+        if (types[column] == NULL) {
+            return true;
+        }
+        int v = validity[column];
+        return v != -1 && (body.get(v + (row >>> 3)) & (1 << (row & 7))) == 0;
+    }
+
+    /**
+     * @param column a numeric column
+     * @param row row of the current batch
+     * @return
+     */
+    double getDouble(int column, int row) {
+        if (types[column] == FLOATING_POINT) {
+            return widths[column] == 32 ? body.getFloat(data[column] + row * 4)
+                    : body.getDouble(data[column] + row * 8);
+        }
+        long v = getLong(column, row);
+        if (v < 0 && !signed[column]) {
+            // unsigned 64-bit
+            return (double) (v >>> 1) * 2 + (v & 1);
+        }
+        return v;
+    }
+
+    /**
+     * @param column a string or integer column
+     * @param row row of the current batch
+     * @return
+     */
+    String getString(int column, int row) {
+        if (types[column] == INT) {
+            long v = getLong(column, row);
+            return signed[column] ? Long.toString(v) : unsigned(v);
+        }
+        int start, end;
+        if (types[column] == UTF8_TYPE) {
+            start = body.getInt(offsets[column] + row * 4);
+            end = body.getInt(offsets[column] + row * 4 + 4);
+        } else {
+            start = (int) body.getLong(offsets[column] + row * 8);
+            end = (int) body.getLong(offsets[column] + row * 8 + 8);
+        }
+        byte[] b = new byte[end - start];
+        ByteBuffer d = body.duplicate();
+        d.position(data[column] + start);
+        d.get(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * @param column a flag column
+     * @param row row of the current batch
+     * @return <code>true</code> for a true boolean, an integer of 1 or a
+     *         string of "1"
+     */
+    boolean isTrue(int column, int row) {
+        if (types[column] == BOOL) {
+            return (body.get(data[column] + (row >>> 3)) & (1 << (row & 7))) != 0;
+        }
+        if (types[column] == INT) {
+            return getLong(column, row) == 1;
+        }
+        return "1".equals(getString(column, row));
+    }
+
+    private long getLong(int column, int row) {
+        int p = data[column];
+        boolean s = signed[column];
+        switch (widths[column]) {
+        case 8:
+            byte b = body.get(p + row);
+            return s ? b : b & 0xffL;
+        case 16:
+            short sh = body.getShort(p + row * 2);
+            return s ? sh : sh & 0xffffL;
+        case 32:
+            int i = body.getInt(p + row * 4);
+            return s ? i : i & 0xffffffffL;
+        default:
+            return body.getLong(p + row * 8);
+        }
+    }
+
+    private static String unsigned(long v) {
+        if (v >= 0) {
+            return Long.toString(v);
+        }
+        long q = (v >>> 1) / 5;
+        return Long.toString(q) + (v - q * 10);
+    }
+
+    /**
+     * Read a field of the schema.
+     *
+     * @return the number of buffers of the field in a record batch
+     * @throws IOException if the field is not supported
+     */
+    private int readField(ByteBuffer b, int field, int i) throws IOException {
+        String name = string(b, field, 0);
+        labels[i] = name == null ? "" : name;
+        int metadata = table(b, field, 6);
+        if (metadata != -1) {
+            for (int k = 0, n = length(b, metadata, 4); k < n; k++) {
+                int kv = indirect(b, metadata + 4 + k * 4);
+                if (COLUMN_METADATA_KEY.equals(string(b, kv, 0))) {
+                    String label = string(b, kv, 1);
+                    if (label != null) {
+                        labels[i] = label;
+                    }
+                }
+            }
+        }
+        int children = table(b, field, 5);
+        if (children != -1 && length(b, children, 4) > 0) {
+            throw new IOException("Nested Arrow column " + labels[i]
+                    + " is not supported");
+        }
+        // dictionary encoded columns hold indices
+        dictionary[i] = table(b, field, 4) != -1;
+        int type = getByte(b, field, 2);
+        types[i] = type;
+        int t = table(b, field, 3);
+        if (type == INT) {
+            widths[i] = t == -1 ? 0 : getInt(b, t, 0);
+            signed[i] = t != -1 && getByte(b, t, 1) != 0;
+            if (widths[i] != 8 && widths[i] != 16 && widths[i] != 32
+                    && widths[i] != 64) {
+                throw new IOException("Invalid Arrow integer width "
+                        + widths[i]);
+            }
+        } else if (type == FLOATING_POINT) {
+            widths[i] = 16 << (t == -1 ? 0 : getShort(b, t, 0));
+        }
+        if (type == BINARY_VIEW || type == UTF8_VIEW) {
+            throw new IOException("Arrow view column " + labels[i]
+                    + " is not supported");
+        }
+        return bufferCount(i);
+    }
+
+    /**
+     * @return the number of buffers of a column in a record batch
+     */
+    private int bufferCount(int i) {
+        if (dictionary[i]) {
+            return 2;
+        }
+        switch (types[i]) {
+        case NULL:
+            return 0;
+        case BINARY:
+        case UTF8_TYPE:
+        case LARGE_BINARY:
+        case LARGE_UTF8:
+            return 3;
+        default:
+            return 2;
+        }
+    }
+
+    /**
+     * Locate the buffers of each column in the body of a record batch.
+     */
+    private void load(ByteBuffer b, int batch, ByteBuffer batchBody)
+            throws IOException {
+        if (table(b, batch, 3) != -1) {
+            throw new IOException(
+                    "Compressed Arrow record batches are not supported");
+        }
+        long length = getLong(b, batch, 0);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid Arrow record batch length");
+        }
+        int nodes = table(b, batch, 1);
+        int buffers = table(b, batch, 2);
+        if (nodes == -1 || buffers == -1
+                || length(b, nodes, 16) != labels.length
+                || length(b, buffers, 16) != bufferCount) {
+            throw new IOException("Arrow record batch does not match its schema");
+        }
+        rows = (int) length;
+        body = batchBody;
+        int buffer = buffers + 4;
+        for (int i = 0; i < labels.length; i++) {
+            long nullCount = b.getLong(nodes + 4 + i * 16 + 8);
+            int count = bufferCount(i);
+            validity[i] = -1;
+            offsets[i] = -1;
+            data[i] = -1;
+            if (count == 0) {
+                continue;
+            }
+            int v = slice(b, buffer);
+            if (nullCount > 0 && b.getLong(buffer + 8) > 0) {
+                checkLength(b, buffer, (rows + 7) / 8);
+                validity[i] = v;
+            }
+            buffer += 16;
+            if (count == 3) {
+                offsets[i] = slice(b, buffer);
+                buffer += 16;
+            }
+            data[i] = slice(b, buffer);
+            buffer += 16;
+            if (!dictionary[i]) {
+                checkData(b, buffer, i);
+            }
+        }
+    }
+
+    /**
+     * Check that the buffers of a column hold a value for every row.
+     *
+     * @param b
+     * @param end the buffer following the column's last buffer
+     * @param i
+     */
+    private void checkData(ByteBuffer b, int end, int i) throws IOException {
+        switch (types[i]) {
+        case INT:
+        case FLOATING_POINT:
+            checkLength(b, end - 16, (long) rows * (widths[i] / 8));
+            break;
+        case BOOL:
+            checkLength(b, end - 16, (rows + 7) / 8);
+            break;
+        case UTF8_TYPE:
+        case LARGE_UTF8:
+            if (rows == 0) {
+                break;
+            }
+            int width = types[i] == UTF8_TYPE ? 4 : 8;
+            checkLength(b, end - 32, (long) (rows + 1) * width);
+            long previous = 0;
+            long dataLength = b.getLong(end - 16 + 8);
+            for (int r = 0; r <= rows; r++) {
+                long o = width == 4 ? body.getInt(offsets[i] + r * 4) : body
+                        .getLong(offsets[i] + r * 8);
+                if (o < previous || o > dataLength) {
+                    throw new IOException("Invalid Arrow string offsets in column "
+                            + labels[i]);
+                }
+                previous = o;
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private static void checkLength(ByteBuffer b, int buffer, long length)
+            throws IOException {
+        if (b.getLong(buffer + 8) < length) {
+            throw new IOException("Arrow buffer is too short");
+        }
+    }
+
+    /**
+     * @return the body offset of a buffer
+     * @throws IOException if the buffer is not within the body
+     */
+    private int slice(ByteBuffer b, int buffer) throws IOException {
+        long offset = b.getLong(buffer);
+        long length = b.getLong(buffer + 8);
+        if (offset < 0 || length < 0 || offset + length > body.limit()) {
+            throw new IOException("Arrow buffer is outside the message body");
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Read the flatbuffer metadata of a message.
+     *
+     * @param first the first int of the message
+     * @return the metadata or <code>null</code> at the end of the stream
+     */
+    private ByteBuffer readMessage(int first) throws IOException {
+        int size = first == CONTINUATION ? readInt() : first;
+        if (size == 0) {
+            return null;
+        }
+        if (size < 0 || size > MAX_METADATA_SIZE) {
+            throw new IOException("Invalid Arrow message size: " + size);
+        }
+        ByteBuffer ret = ByteBuffer.allocate(size).order(
+                ByteOrder.LITTLE_ENDIAN);
+        readFully(ret);
+        ret.clear();
+        return ret;
+    }
+
+    private static int headerType(ByteBuffer message) throws IOException {
+        try {
+            return getByte(message, root(message), 1);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt Arrow message", e);
+        }
+    }
+
+    private ByteBuffer readBody(int length) throws IOException {
+        ByteBuffer ret;
+        if (channel instanceof FileChannel) {
+            FileChannel fc = (FileChannel) channel;
+            long position = fc.position();
+            if (position + length > fc.size()) {
+                throw new EOFException("Truncated Arrow data");
+            }
+            ret = fc.map(FileChannel.MapMode.READ_ONLY, position, length);
+            fc.position(position + length);
+        } else {
+            // grow as the body arrives rather than trusting its length
+            ret = ByteBuffer.allocate(Math.min(length, BUFFER_SIZE));
+            readFully(ret);
+            while (ret.capacity() < length) {
+                ByteBuffer b = ByteBuffer.allocate((int) Math.min(length,
+                        2L * ret.capacity()));
+                ret.flip();
+                b.put(ret);
+                readFully(b);
+                ret = b;
+            }
+            ret.clear();
+        }
+        return ret.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int readInt() throws IOException {
+        scratch.clear();
+        scratch.limit(4);
+        readFully(scratch);
+        return scratch.getInt(0);
+    }
+
+    private void readFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) {
+                throw new EOFException("Truncated Arrow data");
+            }
+        }
+    }
+
+    // flatbuffer access
+
+    private static int root(ByteBuffer b) {
+        return b.getInt(0);
+    }
+
+    /**
+     * @return the offset of a field within a table, or 0 if it is absent
+     */
+    private static int field(ByteBuffer b, int table, int id) {
+        int vtable = table - b.getInt(table);
+        int size = b.getShort(vtable) & 0xffff;
+        int o = 4 + id * 2;
+        return o + 2 <= size ? b.getShort(vtable + o) & 0xffff : 0;
+    }
+
+    private static int indirect(ByteBuffer b, int p) {
+        return p + b.getInt(p);
+    }
+
+    /**
+     * @return the position of a referenced table, vector or string, or -1 if
+     *         it is absent
+     */
+    private static int table(ByteBuffer b, int table, int id) {
+        int f = field(b, table, id);
+        return f == 0 ? -1 : indirect(b, table + f);
+    }
+
+    /**
+     * @param elementSize byte size of each element
+     * @return the number of elements of a vector or string
+     * @throws IndexOutOfBoundsException if the elements are not within the
+     *             buffer
+     */
+    private static int length(ByteBuffer b, int vector, int elementSize) {
+        int ret = b.getInt(vector);
+        if (ret < 0 || (long) ret * elementSize > b.limit() - vector - 4) {
+            throw new IndexOutOfBoundsException("Invalid vector length " + ret);
+        }
+        return ret;
+    }
+
+    private static String string(ByteBuffer b, int table, int id) {
+        int s = table(b, table, id);
+        if (s == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length(b, s, 1)];
+        ByteBuffer d = b.duplicate();
+        d.position(s + 4);
+        d.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static int getByte(ByteBuffer b, int table, int id) {
+        int f = field(b, table, id);
+        return f == 0 ? 0 : b.get(table + f) & 0xff;
+    }
+
+    private static int getShort(ByteBuffer b, int table, int id) {
+        int f = field(b, table, id);
+        return f == 0 ? 0 : b.getShort(table + f);
+    }
+
+    private static int getInt(ByteBuffer b, int table, int id) {
+        int f = field(b, table, id);
+        return f == 0 ? 0 : b.getInt(table + f);
+    }
+
+    private static long getLong(ByteBuffer b, int table, int id) {
+        int f = field(b, table, id);
+        return f == 0 ? 0 : b.getLong(table + f);
+    }
+}
@@ -0,0 +1,103 @@
+package com.selventa.whistle.data.service;
+
+import java.util.List;
+
+import com.selventa.whistle.data.model.Comparison;
+import com.selventa.whistle.data.service.DataFileService.DataFileException;
+
+/**
+ * Chooses the {@link Comparison}s of a data file to process. A
+ * {@link DataFileService} consults the selector once the comparisons defined
+ * by the file are known and only processes the selected ones.
+ *
+ * @see DataFileService#process(java.io.File,
+ *      org.openbel.framework.common.model.Namespace, ComparisonSelector)
+ */
+public abstract class ComparisonSelector {
+
+    /**
+     * Selects every comparison
+     */
+    public static final ComparisonSelector ALL = new ComparisonSelector() {
+        @Override
+        public int[] select(List<String> names) {
+            int[] ret = new int[names.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = i;
+            }
+            return ret;
+        }
+    };
+
+    /**
+     * Select the comparisons to process.
+     *
+     * @param names the names of the comparisons defined by the data file, in
+     *            file order
+     * @return indices into <tt>names</tt> of the comparisons to process
+     * @throws DataFileException if the selection cannot be made
+     */
+    public abstract int[] select(List<String> names) throws DataFileException;
+
+    /**
+     * Apply this selector to the comparisons of a data file.
+     *
+     * @param names the names of the comparisons defined by the data file, in
+     *            file order
+     * @return whether each comparison is selected, indexed as <tt>names</tt>
+     * @throws DataFileException if the selection cannot be made or is invalid
+     */
+    boolean[] include(List<String> names) throws DataFileException {
+        int[] selected = select(names);
+        boolean[] ret = new boolean[names.size()];
+        for (int i : selected) {
+            if (i < 0 || i >= ret.length) {
+                throw new DataFileException("Invalid comparison selection: "
+                        + i);
+            }
+            ret[i] = true;
+        }
+        return ret;
+    }
+
+    /**
+     * Select a single comparison by name; names are matched ignoring case.
+     *
+     * @param name
+     * @return
+     */
+    public static ComparisonSelector byName(final String name) {
+        return new ComparisonSelector() {
+            @Override
+            public int[] select(List<String> names) throws DataFileException {
+                for (int i = 0; i < names.size(); i++) {
+                    if (names.get(i).equalsIgnoreCase(name)) {
+                        return new int[] { i };
+                    }
+                }
+                throw new DataFileException("Comparison " + name
+                        + " is not defined in the data file");
+            }
+        };
+    }
+
+    /**
+     * Select a single comparison by its position in the file.
+     *
+     * @param index 1-based position of the comparison
+     * @return
+     */
+    public static ComparisonSelector byIndex(final int index) {
+        return new ComparisonSelector() {
+            @Override
+            public int[] select(List<String> names) throws DataFileException {
+                if (index < 1 || index > names.size()) {
+                    throw new DataFileException("Comparison " + index
+                            + " is not defined in the data file; found "
+                            + names.size() + " comparisons");
+                }
+                return new int[] { index - 1 };
+            }
+        };
+    }
+}
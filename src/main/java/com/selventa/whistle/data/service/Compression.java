@@ -0,0 +1,125 @@
+package com.selventa.whistle.data.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import com.selventa.whistle.data.service.DataFileService.DataFileException;
+
+/**
+ * Compression formats of a data file, detected by their leading magic bytes.
+ */
+enum Compression {
+    NONE(new byte[0]),
+    GZIP(new byte[] { 0x1f, (byte) 0x8b }),
+    ZSTD(new byte[] { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd });
+
+    /**
+     * Number of leading bytes needed to detect any format
+     */
+    static final int MAGIC_LENGTH = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] magic;
+
+    private Compression(byte[] magic) {
+        this.magic = magic;
+    }
+
+    /**
+     * Detect the compression of data from its leading bytes.
+     *
+     * @param head leading bytes of the data
+     * @param length number of valid bytes in <tt>head</tt>
+     * @return
+     */
+    static Compression detect(byte[] head, int length) {
+        for (Compression c : values()) {
+            if (c != NONE && c.matches(head, length)) {
+                return c;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Detect the compression of a file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static Compression detect(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] head = new byte[MAGIC_LENGTH];
+            return detect(head, read(in, head));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read until <tt>b</tt> is full or the stream ends.
+     *
+     * @param in
+     * @param b
+     * @return the number of bytes read
+     * @throws IOException
+     */
+    static int read(InputStream in, byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int r = in.read(b, n, b.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    /**
+     * Wrap a stream of data in this format with a decompressing stream.
+     * Closing the decompressing stream releases the decompressor but does not
+     * close <tt>in</tt>.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     * @throws DataFileException if the format is not supported
+     */
+    InputStream decompress(InputStream in) throws IOException,
+            DataFileException {
+        switch (this) {
+        case NONE:
+            return in;
+        case GZIP:
+            return new GZIPInputStream(new FilterInputStream(in) {
+                @Override
+                public void close() {
+                    // the caller owns the stream
+                }
+            }, BUFFER_SIZE);
+        default:
+            throw new DataFileException(name()
+                    + " compressed data files are not supported");
+        }
+    }
+
+    private boolean matches(byte[] head, int length) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,380 @@
+package com.selventa.whistle.data.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.openbel.framework.common.model.Term;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.selventa.whistle.data.model.Comparison;
+import com.selventa.whistle.data.model.MeasurementTable;
+import com.selventa.whistle.util.AtomicFileOutputStream;
+
+/**
+ * Binary sidecar file holding the parsed contents of a data file.<br>
+ * The sidecar is written alongside the data file and identifies its source
+ * by size and SHA-1 digest; it is only read while both match. Values are
+ * stored column by column so that a comparison is loaded with bulk reads from
+ * a memory map of the sidecar.
+ * <p>
+ * Layout, big-endian, followed by a CRC-32 of all preceding bytes:
+ *
+ * <pre>
+ * magic, version            int, int
+ * source size, source SHA-1 long, byte[20]
+ * distinct identifiers      int count, (int length, UTF-8 bytes,
+ *                           int first line)...
+ * rows                      int count, int[count] identifier codes
+ * comparison directory      int count, (int length, UTF-8 name,
+ *                           int flags, long offset)...
+ * comparison columns        double[] fold changes, [double[] p-values],
+ *                           [double[] abundances], int count,
+ *                           long[count] analyst selections
+ * </pre>
+ *
+ * Offsets are relative to the end of the directory. {@link Term}s are not
+ * stored; they depend on the namespace of a run and are recreated from the
+ * identifiers.
+ * </p>
+ */
+final class DataFileCache {
+    private static final Logger logger = LoggerFactory
+            .getLogger(DataFileCache.class);
+
+    /**
+     * Suffix appended to the data file name
+     */
+    static final String SUFFIX = ".whistle";
+
+    private static final int MAGIC = 0x57485344; // WHSD
+    private static final int VERSION = 2;
+    private static final int DIGEST_LENGTH = 20;
+    private static final int FLAG_PVALUES = 1;
+    private static final int FLAG_ABUNDANCES = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+    private final String[] ids;
+    private final int[] lines;
+    private final int[] codes;
+    private final List<String> names;
+    private final int[] flags;
+    private final int[] offsets;
+    private final int dataStart;
+
+    private DataFileCache(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        buffer.position(4 + 4 + 8 + DIGEST_LENGTH);
+        ids = new String[buffer.getInt()];
+        lines = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = readString(buffer);
+            lines[i] = buffer.getInt();
+        }
+        codes = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(codes);
+        buffer.position(buffer.position() + codes.length * 4);
+        int count = buffer.getInt();
+        List<String> n = new ArrayList<String>(count);
+        flags = new int[count];
+        offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            n.add(readString(buffer));
+            flags[i] = buffer.getInt();
+            offsets[i] = (int) buffer.getLong();
+        }
+        names = Collections.unmodifiableList(n);
+        dataStart = buffer.position();
+    }
+
+    /**
+     * @param file data file
+     * @return the sidecar file of a data file
+     */
+    static File getSidecar(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Compute the SHA-1 digest of a file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static byte[] digest(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            for (long p = 0; p < length; p += Integer.MAX_VALUE) {
+                long size = Math.min(length - p, Integer.MAX_VALUE);
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, p, size));
+            }
+        } finally {
+            raf.close();
+        }
+        return md.digest();
+    }
+
+    /**
+     * Open the sidecar of a data file.
+     *
+     * @param sidecar
+     * @param sourceSize size of the data file
+     * @param digest SHA-1 digest of the data file
+     * @return the sidecar or <code>null</code> if it does not exist, was
+     *         written for different contents or a different version, or is
+     *         corrupt
+     */
+    static DataFileCache open(File sidecar, long sourceSize, byte[] digest) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(sidecar, "r");
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < 4 + 4 + 8 + DIGEST_LENGTH + 4
+                    || length > Integer.MAX_VALUE) {
+                logger.warn("Ignoring invalid cache file {}", sidecar);
+                return null;
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, length);
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                logger.info("Ignoring cache file {} of another version",
+                        sidecar);
+                return null;
+            }
+            long size = buf.getLong();
+            byte[] d = new byte[DIGEST_LENGTH];
+            buf.get(d);
+            if (size != sourceSize || !Arrays.equals(d, digest)) {
+                logger.debug("Cache file {} is out of date", sidecar);
+                return null;
+            }
+            if (checksum(buf, (int) length - 4) != buf.getInt((int) length - 4)) {
+                logger.warn("Ignoring corrupt cache file {}", sidecar);
+                return null;
+            }
+            return new DataFileCache(buf);
+        } catch (IOException e) {
+            logger.warn("Failed to read cache file " + sidecar, e);
+            return null;
+        } catch (RuntimeException e) {
+            // malformed contents
+            logger.warn("Failed to read cache file " + sidecar, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close cache file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the distinct identifiers of the data file, indexed by code
+     */
+    String[] getIds() {
+        return ids;
+    }
+
+    /**
+     * @return the line of the first row of each identifier, indexed by code
+     */
+    int[] getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the names of the comparisons in file order
+     */
+    List<String> getComparisonNames() {
+        return names;
+    }
+
+    /**
+     * Load a comparison.
+     *
+     * @param idx index of the comparison
+     * @param terms the {@link Term} of each identifier, indexed by code
+     * @return
+     */
+    Comparison getComparison(int idx, Term[] terms) {
+        int rows = codes.length;
+        ByteBuffer buf = buffer.duplicate();
+        buf.position(dataStart + offsets[idx]);
+        double[] fc = readDoubles(buf, rows);
+        double[] pv = (flags[idx] & FLAG_PVALUES) != 0
+                ? readDoubles(buf, rows) : null;
+        double[] ab = (flags[idx] & FLAG_ABUNDANCES) != 0
+                ? readDoubles(buf, rows) : null;
+        long[] words = new long[buf.getInt()];
+        buf.asLongBuffer().get(words);
+        BitSet sel = BitSet.valueOf(words);
+        return new Comparison(names.get(idx), new MeasurementTable(ids,
+                terms, codes, fc, pv, ab, sel, rows));
+    }
+
+    /**
+     * Write the sidecar of a data file. The sidecar is replaced with an
+     * {@link AtomicFileOutputStream}, so concurrent readers never see a
+     * partial file.
+     *
+     * @param sidecar
+     * @param sourceSize size of the data file
+     * @param digest SHA-1 digest of the data file
+     * @param comparisons all comparisons of the data file in file order; they
+     *            must share their identifier columns
+     * @param lines the line of the first row of each identifier, indexed by
+     *            code
+     * @throws IOException
+     */
+    static void write(File sidecar, long sourceSize, byte[] digest,
+            List<Comparison> comparisons, int[] lines) throws IOException {
+        MeasurementTable first = comparisons.isEmpty() ? null : comparisons
+                .get(0).getTable();
+        int rows = first == null ? 0 : first.size();
+        int codeCount = first == null ? 0 : first.getCodeCount();
+
+        AtomicFileOutputStream fos = new AtomicFileOutputStream(sidecar);
+        try {
+            CheckedOutputStream cos = new CheckedOutputStream(
+                    new BufferedOutputStream(fos, 64 * 1024), new CRC32());
+            DataOutputStream out = new DataOutputStream(cos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceSize);
+            out.write(digest);
+
+            out.writeInt(codeCount);
+            for (int i = 0; i < codeCount; i++) {
+                writeString(out, first.getIdForCode(i));
+                out.writeInt(lines[i]);
+            }
+            out.writeInt(rows);
+            for (int r = 0; r < rows; r++) {
+                out.writeInt(first.getCode(r));
+            }
+
+            // directory
+            List<long[]> selections = new ArrayList<long[]>();
+            out.writeInt(comparisons.size());
+            long offset = 0;
+            for (Comparison c : comparisons) {
+                MeasurementTable t = c.getTable();
+                int flags = (t.hasPValues() ? FLAG_PVALUES : 0)
+                        | (t.hasAbundances() ? FLAG_ABUNDANCES : 0);
+                long[] words = selection(t).toLongArray();
+                selections.add(words);
+                writeString(out, c.getName());
+                out.writeInt(flags);
+                out.writeLong(offset);
+                int columns = 1 + (t.hasPValues() ? 1 : 0)
+                        + (t.hasAbundances() ? 1 : 0);
+                offset += 8L * rows * columns + 4 + 8L * words.length;
+            }
+
+            // columns
+            for (int i = 0; i < comparisons.size(); i++) {
+                MeasurementTable t = comparisons.get(i).getTable();
+                for (int r = 0; r < rows; r++) {
+                    out.writeDouble(t.getFoldChange(r));
+                }
+                if (t.hasPValues()) {
+                    for (int r = 0; r < rows; r++) {
+                        out.writeDouble(t.getPValue(r));
+                    }
+                }
+                if (t.hasAbundances()) {
+                    for (int r = 0; r < rows; r++) {
+                        out.writeDouble(t.getAbundance(r));
+                    }
+                }
+                long[] words = selections.get(i);
+                out.writeInt(words.length);
+                for (long w : words) {
+                    out.writeLong(w);
+                }
+            }
+            out.flush();
+            new DataOutputStream(fos).writeInt((int) cos.getChecksum()
+                    .getValue());
+            fos.commit();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static BitSet selection(MeasurementTable t) {
+        BitSet ret = new BitSet(t.size());
+        for (int r = 0; r < t.size(); r++) {
+            if (t.isAnalystSelection(r)) {
+                ret.set(r);
+            }
+        }
+        return ret;
+    }
+
+    private static int checksum(ByteBuffer buf, int length) {
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[64 * 1024];
+        ByteBuffer view = buf.duplicate();
+        view.position(0);
+        for (int p = 0; p < length; p += b.length) {
+            int n = Math.min(b.length, length - p);
+            view.get(b, 0, n);
+            crc.update(b, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static double[] readDoubles(ByteBuffer buf, int count) {
+        double[] ret = new double[count];
+        buf.asDoubleBuffer().get(ret);
+        buf.position(buf.position() + count * 8);
+        return ret;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
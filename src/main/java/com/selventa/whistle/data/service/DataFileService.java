@@ -1,6 +1,8 @@
 package com.selventa.whistle.data.service;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Collection;
 
 import org.openbel.framework.common.model.Namespace;
@@ -25,6 +27,47 @@ public interface DataFileService {
      */
     Collection<Comparison> process(File file, Namespace namespace) throws DataFileException;
 
+    /**
+     * Process the comparisons of a file chosen by a
+     * {@link ComparisonSelector}. Comparisons that are not selected are not
+     * parsed.
+     *
+     * @param file
+     * @param namespace
+     * @param selector
+     * @return the selected {@link Comparison}s
+     * @throws DataFileException
+     */
+    Collection<Comparison> process(File file, Namespace namespace,
+            ComparisonSelector selector) throws DataFileException;
+
+    /**
+     * Process the comparisons of a data file read from a stream. The stream
+     * is read to its end but not closed.
+     *
+     * @param in
+     * @param namespace
+     * @param selector
+     * @return the selected {@link Comparison}s
+     * @throws DataFileException
+     */
+    Collection<Comparison> process(InputStream in, Namespace namespace,
+            ComparisonSelector selector) throws DataFileException;
+
+    /**
+     * Process the comparisons of a data file read from a channel. The
+     * channel is read to its end but not closed.
+     *
+     * @param channel
+     * @param namespace
+     * @param selector
+     * @return the selected {@link Comparison}s
+     * @throws DataFileException
+     */
+    Collection<Comparison> process(ReadableByteChannel channel,
+            Namespace namespace, ComparisonSelector selector)
+            throws DataFileException;
+
 
     /**
      * Exception indicating a problem occurred while processing a data file
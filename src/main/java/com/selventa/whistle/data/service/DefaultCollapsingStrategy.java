@@ -1,16 +1,19 @@
 package com.selventa.whistle.data.service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.openbel.framework.common.model.Term;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.data.model.MeasurementTable;
 
 
 /**
@@ -55,6 +58,17 @@ public class DefaultCollapsingStrategy implements CollapsingStrategy {
     private static final Logger logger = LoggerFactory
             .getLogger(DefaultCollapsingStrategy.class);
 
+    /**
+     * Reusable candidate buffers of each thread: all measurements and the
+     * analyst selections
+     */
+    private static final ThreadLocal<Candidates[]> CANDIDATES = new ThreadLocal<Candidates[]>() {
+        @Override
+        protected Candidates[] initialValue() {
+            return new Candidates[] { new Candidates(), new Candidates() };
+        }
+    };
+
     private final boolean respectAnalystSelection;
 
     public DefaultCollapsingStrategy(boolean respectAnalystSelection) {
@@ -62,7 +76,10 @@ public class DefaultCollapsingStrategy implements CollapsingStrategy {
     }
 
     /**
-     * {@inheritDoc}
+     * {@inheritDoc} The selection is computed in a single pass over the
+     * measurements. Measurements with a NaN fold change or abundance, or with
+     * abundances missing for only some measurements, are collapsed step by
+     * step instead, which selects identically.
      */
     @Override
     public Measurement collapse(Collection<Measurement> measurements) {
@@ -73,6 +90,47 @@ public class DefaultCollapsingStrategy implements CollapsingStrategy {
             return measurements.iterator().next();
         }
 
+        Candidates[] c = CANDIDATES.get();
+        Candidates all = c[0];
+        Candidates selected = c[1];
+        try {
+            List<Measurement> selections = null;
+            for (Measurement m : measurements) {
+                all.offer(m);
+                if (respectAnalystSelection && m.isAnalystSelection()) {
+                    // equal selections count once, as in getAnalystSelections
+                    if (selections == null) {
+                        selections = new ArrayList<Measurement>(2);
+                    }
+                    if (!selections.contains(m)) {
+                        selections.add(m);
+                        selected.offer(m);
+                    }
+                }
+            }
+            if (selections != null && selections.size() == 1) {
+                return selections.get(0);
+            }
+            Candidates candidates = selections != null ? selected : all;
+            if (candidates.invalid) {
+                return collapseCascade(measurements);
+            }
+            return candidates.select();
+        } finally {
+            all.reset();
+            selected.reset();
+        }
+    }
+
+    /**
+     * Collapse by applying each step of the selection to the measurements
+     * remaining from the previous step. Package-private so that the single
+     * pass can be tested against it.
+     *
+     * @param measurements at least two measurements
+     * @return
+     */
+    Measurement collapseCascade(Collection<Measurement> measurements) {
         if (respectAnalystSelection) {
             Collection<Measurement> analystSelections = getAnalystSelections(measurements);
             if (analystSelections.size() == 1) {
@@ -311,4 +369,112 @@ public class DefaultCollapsingStrategy implements CollapsingStrategy {
         }
         return highest;
     }
+
+    /**
+     * Measurements remaining after the selection steps, computed in a single
+     * pass.<br>
+     * The lowest p-value step compares fold changes, so the measurements it
+     * selects share a single fold change. The fold change direction and
+     * highest absolute fold change steps therefore never discard any of them,
+     * and the remaining steps reduce to the highest abundance among the
+     * measurements with the lowest fold change, ordered by
+     * {@link Term#toBELShortForm()}.
+     */
+    private static final class Candidates {
+        private Measurement[] rows = new Measurement[16];
+        private int size;
+        private double foldChange;
+        private double abundance;
+        private int withAbundance;
+        private int withoutAbundance;
+        /**
+         * Set if the values offered are not handled by the single pass
+         */
+        private boolean invalid;
+
+        private void offer(Measurement m) {
+            if (invalid) {
+                return;
+            }
+            MeasurementTable t = m.getTable();
+            double fc;
+            double ab;
+            boolean hasAbundance;
+            if (t != null) {
+                fc = t.getFoldChange(m.getRow());
+                hasAbundance = t.hasAbundance(m.getRow());
+                ab = hasAbundance ? t.getAbundance(m.getRow()) : 0d;
+            } else {
+                fc = m.getFoldChange();
+                Double a = m.getAbundance();
+                hasAbundance = a != null;
+                ab = hasAbundance ? a : 0d;
+            }
+            if (hasAbundance) {
+                withAbundance++;
+            } else {
+                withoutAbundance++;
+            }
+            if (Double.isNaN(fc) || Double.isNaN(ab)
+                    || (withAbundance > 0 && withoutAbundance > 0)) {
+                invalid = true;
+                return;
+            }
+
+            if (size == 0 || fc < foldChange
+                    || (fc == foldChange && ab > abundance)) {
+                clear();
+                foldChange = fc;
+                abundance = ab;
+            } else if (fc != foldChange || ab != abundance) {
+                return;
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = m;
+        }
+
+        /**
+         * @return the single remaining measurement, otherwise the one with the
+         *         lowest {@link Term#toBELShortForm() id}; <code>null</code>
+         *         if that is not unique
+         */
+        private Measurement select() {
+            if (size == 1) {
+                return rows[0];
+            }
+            Measurement lowest = null;
+            String lowestId = null;
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                String cur = rows[i].getTerm().toBELShortForm();
+                int cmp = lowestId == null ? -1 : cur.compareTo(lowestId);
+                if (cmp < 0) {
+                    lowest = rows[i];
+                    lowestId = cur;
+                    count = 1;
+                } else if (cmp == 0) {
+                    count++;
+                }
+            }
+            if (count != 1) {
+                logger.warn("Non-unique measurement id found: {}.", lowestId);
+                return null;
+            }
+            return lowest;
+        }
+
+        private void clear() {
+            Arrays.fill(rows, 0, size, null);
+            size = 0;
+        }
+
+        private void reset() {
+            clear();
+            withAbundance = 0;
+            withoutAbundance = 0;
+            invalid = false;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.selventa.whistle.data.service;
 
+import org.openbel.framework.common.InvalidArgument;
 import org.openbel.framework.common.enums.FunctionEnum;
 import org.openbel.framework.common.model.Namespace;
 import org.openbel.framework.common.model.Parameter;
@@ -9,21 +10,60 @@ import org.openbel.framework.common.model.Term;
  * Handle IdAMP files that are either in BEL format, or raw identifiers.<br>
  * If the identifier is in BEL format, simply parse it to a {@link Term}. If the
  * identifier is not BEL, create a {@link FunctionEnum#RNA_ABUNDANCE}
- * {@link Term} for the value.
+ * {@link Term} for the value.<br>
+ * {@link Term}s are shared through a {@link TermInterner}, by default one
+ * shared by all instances.
  *
  * @author Steve Ungerer
  */
 public class DefaultIdAMPDataFileService extends IdAMPDataFileService {
 
+    /**
+     * Maximum number of {@link Term}s held by the shared {@link TermInterner}
+     */
+    private static final int MAX_INTERNED_TERMS = 1 << 20;
+
+    private static final TermInterner SHARED_INTERNER = new TermInterner(
+            MAX_INTERNED_TERMS);
+
+    private final TermInterner interner;
+
+    public DefaultIdAMPDataFileService() {
+        this(SHARED_INTERNER);
+    }
+
+    /**
+     * @param interner {@link TermInterner} used to share {@link Term}s
+     * @throws InvalidArgument if <tt>interner</tt> is <code>null</code>
+     */
+    public DefaultIdAMPDataFileService(TermInterner interner)
+            throws InvalidArgument {
+        if (interner == null) {
+            throw new InvalidArgument("interner must not be null");
+        }
+        this.interner = interner;
+    }
+
+    /**
+     * @return the {@link TermInterner} used to share {@link Term}s
+     */
+    public TermInterner getTermInterner() {
+        return interner;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     protected Term convertIdToBel(String id, Namespace ns) {
+        Term t = interner.get(ns, id);
+        if (t != null) {
+            return t;
+        }
         //FIXME handle BEL
-        Term t = new Term(FunctionEnum.RNA_ABUNDANCE);
+        t = new Term(FunctionEnum.RNA_ABUNDANCE);
         t.addFunctionArgument(new Parameter(ns, id));
-        return t;
+        return interner.intern(ns, id, t);
     }
 
 }
@@ -1,14 +1,23 @@
 package com.selventa.whistle.data.service;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openbel.framework.common.InvalidArgument;
 import org.openbel.framework.common.model.Namespace;
@@ -17,9 +26,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.selventa.whistle.data.model.Comparison;
-import com.selventa.whistle.data.model.Measurement;
-
-import au.com.bytecode.opencsv.CSVReader;
+import com.selventa.whistle.data.model.MeasurementTable;
+import com.selventa.whistle.data.service.IdAMPHeader.Column;
+import com.selventa.whistle.data.service.IdAMPHeader.ComparisonColumns;
 
 /**
  * {@link DataFileService} to handle IdAMP formatted data files.<br>
@@ -79,7 +88,14 @@ import au.com.bytecode.opencsv.CSVReader;
  * </li>
  * <li>Each comparison must define each column only once.</li>
  * <li>Any column with a header not defined above will be ignored.</li>
+ * <li>The file may be gzip compressed.</li>
  * </ul>
+ * Alternatively the file may be an Apache Arrow IPC file or stream, such as a
+ * Feather V2 file, with a column per CSV column. Columns are labelled by their
+ * name or their {@value ArrowReader#COLUMN_METADATA_KEY} metadata. Identifiers
+ * must be string or integer columns, values numeric columns and analyst
+ * selections boolean, integer or string columns. Rows are numbered as lines,
+ * the first row being line 1.
  *
  * @author Steve Ungerer
  */
@@ -87,192 +103,729 @@ public abstract class IdAMPDataFileService implements DataFileService {
     private static final Logger logger = LoggerFactory
             .getLogger(IdAMPDataFileService.class);
 
-    private static final Pattern ID_PATTERN = Pattern.compile("\\[ID\\]",
-            Pattern.CASE_INSENSITIVE);
-    private static final Pattern COL_PATTERN = Pattern
-            .compile("\\[(.+)]\\s*\\[(.+)\\]");
+    /**
+     * Smallest byte range parsed by a single thread
+     */
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+
+    private int parallelism = 1;
+    private boolean cacheEnabled;
+    private TermListener termListener;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<Comparison> process(File file, Namespace namespace)
+            throws DataFileException {
+        return process(file, namespace, ComparisonSelector.ALL);
+    }
+
+    /**
+     * {@inheritDoc} The file is memory-mapped and parsed directly from its
+     * bytes into a {@link MeasurementTable} per selected comparison. Each
+     * distinct identifier is converted to a {@link Term} once.
+     * <p>
+     * If the parallelism is greater than one, the rows of large files are
+     * split into line-aligned byte ranges that are parsed concurrently and
+     * merged in file order. Errors are reported for the first failing line
+     * of the file, exactly as in a sequential parse.
+     * </p>
+     * <p>
+     * If caching is enabled the parsed file is stored in a binary sidecar
+     * that is loaded instead of parsing the file while its contents are
+     * unchanged.
+     * </p>
+     */
+    @Override
+    public Collection<Comparison> process(File file, Namespace namespace,
+            ComparisonSelector selector) throws DataFileException {
+        if (cacheEnabled) {
+            return processCached(file, namespace, selector);
+        }
+        return parse(file, namespace, selector);
+    }
+
+    /**
+     * Enable caching of parsed data files in a binary sidecar file written
+     * next to the data file.
+     *
+     * @param cacheEnabled defaults to <code>false</code>
+     */
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * Report the {@link Term} of each distinct identifier as it is parsed.
+     *
+     * @param termListener the listener, or <code>null</code> for none
+     */
+    public void setTermListener(TermListener termListener) {
+        this.termListener = termListener;
+    }
+
+    /**
+     * {@inheritDoc} Rows are parsed incrementally as they are read from the
+     * stream; neither parallel parsing nor caching apply to streams.
+     * Compressed streams and Arrow IPC streams are detected.
+     */
+    @Override
+    public Collection<Comparison> process(InputStream in, Namespace namespace,
+            ComparisonSelector selector) throws DataFileException {
+        try {
+            int magicLength = Math.max(Compression.MAGIC_LENGTH,
+                    ArrowReader.MAGIC_LENGTH);
+            PushbackInputStream pin = new PushbackInputStream(in, magicLength);
+            byte[] head = new byte[magicLength];
+            int n = Compression.read(pin, head);
+            pin.unread(head, 0, n);
+            Compression compression = Compression.detect(head, n);
+            if (compression == Compression.NONE
+                    && ArrowReader.matches(head, n)) {
+                return toComparisons(parseArrow(Channels.newChannel(pin),
+                        namespace, selector));
+            }
+            return toComparisons(parseStream(compression, pin, namespace,
+                    selector));
+        } catch (IOException e) {
+            throw new DataFileException(e);
+        }
+    }
 
-    private enum Column {
-        DIRECTION("M"), PVALUE("P"), ABUNDANCE("A"), ANALYST_SELECTION("AS");
+    /**
+     * {@inheritDoc} Rows are parsed incrementally as they are read from the
+     * channel; neither parallel parsing nor caching apply to channels.
+     * Compressed channels and Arrow IPC streams are detected.
+     */
+    @Override
+    public Collection<Comparison> process(ReadableByteChannel channel,
+            Namespace namespace, ComparisonSelector selector)
+            throws DataFileException {
+        return process(Channels.newInputStream(channel), namespace, selector);
+    }
 
-        private final String label;
+    /**
+     * Parse a stream. Compressed streams are decompressed on a separate
+     * thread so that decompression and parsing overlap.
+     *
+     * @param compression compression of the stream
+     * @param in
+     * @param namespace
+     * @param selector
+     * @return the parsed rows
+     * @throws IOException
+     * @throws DataFileException
+     */
+    private Chunk parseStream(Compression compression,
+            InputStream in, Namespace namespace, ComparisonSelector selector)
+            throws IOException, DataFileException {
+        ReadableByteChannel channel;
+        if (compression == Compression.NONE) {
+            channel = Channels.newChannel(in);
+        } else {
+            logger.debug("Decompressing {} data file", compression);
+            channel = new ReadAheadChannel(compression.decompress(in));
+        }
+        try {
+            MappedCsvReader reader = new MappedCsvReader(channel);
+            if (!reader.next()) {
+                throw new DataFileException("Data file is empty");
+            }
+            IdAMPHeader header = IdAMPHeader.parse(reader.getRecord());
+            List<ComparisonColumns> comps = header.select(selector);
+            return parseChunk(reader, header, comps, namespace, null);
+        } finally {
+            if (compression != Compression.NONE) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Create the comparisons of parsed rows; the comparisons share the
+     * identifier column.
+     *
+     * @param data
+     * @return
+     * @throws DataFileException if a row failed to parse
+     */
+    private static Collection<Comparison> toComparisons(Chunk data)
+            throws DataFileException {
+        if (data.errorLine != -1) {
+            throw new DataFileException("Line " + data.errorLine + ": "
+                    + data.error, data.cause);
+        }
+        List<ComparisonColumns> comps = data.comps;
+        String[] ids = data.idColumn.getIds();
+        Term[] terms = data.idColumn.getTerms();
+        int[] codes = data.idColumn.getCodes();
+        Collection<Comparison> ret = new ArrayList<Comparison>();
+        for (int c = 0; c < comps.size(); c++) {
+            ret.add(new Comparison(comps.get(c).getName(), data.builders
+                    .get(c).build(ids, terms, codes)));
+        }
+        return ret;
+    }
 
-        private Column(String label) {
-            this.label = label;
+    /**
+     * Load the selected comparisons from the sidecar of a data file, parsing
+     * the file and writing the sidecar if it is missing or out of date.
+     *
+     * @param file
+     * @param namespace
+     * @param selector
+     * @return
+     * @throws DataFileException
+     */
+    private Collection<Comparison> processCached(File file,
+            Namespace namespace, ComparisonSelector selector)
+            throws DataFileException {
+        File sidecar = DataFileCache.getSidecar(file);
+        long size = file.length();
+        byte[] digest;
+        try {
+            digest = DataFileCache.digest(file);
+        } catch (IOException e) {
+            throw new DataFileException(e);
         }
 
-        static Column forLabel(String label) {
-            if (label == null) {
-                throw new InvalidArgument("label must not be null");
+        DataFileCache cache = DataFileCache.open(sidecar, size, digest);
+        if (cache == null) {
+            // every comparison is cached regardless of the selection
+            Chunk data = parseFile(file, namespace, ComparisonSelector.ALL);
+            List<Comparison> all = new ArrayList<Comparison>(
+                    toComparisons(data));
+            try {
+                DataFileCache.write(sidecar, size, digest, all,
+                        data.idColumn.getLines());
+                logger.debug("Wrote cache file {}", sidecar);
+            } catch (IOException e) {
+                logger.warn("Failed to write cache file " + sidecar, e);
+            }
+            List<String> names = new ArrayList<String>(all.size());
+            for (Comparison c : all) {
+                names.add(c.getName());
             }
-            label = label.toUpperCase();
-            for (Column c : values()) {
-                if (label.equals(c.label)) {
-                    return c;
+            boolean[] include = selector.include(names);
+            Collection<Comparison> ret = new ArrayList<Comparison>();
+            for (int i = 0; i < include.length; i++) {
+                if (include[i]) {
+                    ret.add(all.get(i));
                 }
             }
-            return null;
+            return ret;
         }
+
+        logger.debug("Loading data file from cache file {}", sidecar);
+        boolean[] include = selector.include(cache.getComparisonNames());
+        Collection<Comparison> ret = new ArrayList<Comparison>();
+        Term[] terms = null;
+        for (int i = 0; i < include.length; i++) {
+            if (!include[i]) {
+                continue;
+            }
+            if (terms == null) {
+                terms = convertIds(cache.getIds(), cache.getLines(),
+                        namespace);
+            }
+            ret.add(cache.getComparison(i, terms));
+        }
+        return ret;
     }
 
     /**
-     * {@inheritDoc}
+     * Convert the distinct identifiers of a data file to {@link Term}s.
+     *
+     * @param ids
+     * @param lines line of the first row of each identifier
+     * @param namespace
+     * @return
+     * @throws DataFileException if an identifier cannot be converted
      */
-    @Override
-    public Collection<Comparison> process(File file, Namespace namespace)
+    private Term[] convertIds(String[] ids, int[] lines, Namespace namespace)
             throws DataFileException {
-        // ID col idx
-        int idIdx = -1;
-        // comparison name (UC) : comparison name (orig case)
-        Map<String, String> compMap = new HashMap<String, String>();
-        // comparison name (UC) : map<column, column index>
-        Map<String, Map<Column, Integer>> colMap = new HashMap<String, Map<Column, Integer>>();
-        // comparison name (UC) : collection<Measurement>
-        Map<String, Collection<Measurement>> compMeasure = new HashMap<String, Collection<Measurement>>();
+        Term[] ret = new Term[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            try {
+                ret[i] = convertIdToBel(ids[i], namespace);
+            } catch (Exception e) {
+                throw new DataFileException("Line " + lines[i]
+                        + ": Cannot convert ID to BEL: " + ids[i], e);
+            }
+            if (termListener != null) {
+                termListener.termParsed(ret[i]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parse the selected comparisons of a data file.
+     *
+     * @param file
+     * @param namespace
+     * @param selector
+     * @return
+     * @throws DataFileException
+     */
+    private Collection<Comparison> parse(File file, Namespace namespace,
+            ComparisonSelector selector) throws DataFileException {
+        return toComparisons(parseFile(file, namespace, selector));
+    }
+
+    /**
+     * Parse the rows of the selected comparisons of a data file.
+     *
+     * @param file
+     * @param namespace
+     * @param selector
+     * @return the parsed rows
+     * @throws DataFileException
+     */
+    private Chunk parseFile(File file, Namespace namespace,
+            ComparisonSelector selector) throws DataFileException {
+        RandomAccessFile raf = null;
+        try {
+            Compression compression = Compression.detect(file);
+            if (compression != Compression.NONE) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    return parseStream(compression, in, namespace, selector);
+                } finally {
+                    in.close();
+                }
+            }
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            if (ArrowReader.matches(channel)) {
+                return parseArrow(channel, namespace, selector);
+            }
+            long length = channel.size();
+            MappedCsvReader reader = new MappedCsvReader(channel, 0L, length);
+            if (!reader.next()) {
+                throw new DataFileException("Data file is empty");
+            }
+            IdAMPHeader header = IdAMPHeader.parse(reader.getRecord());
+            List<ComparisonColumns> comps = header.select(selector);
+            long dataStart = reader.getPosition();
+
+            int chunks = (int) Math.min(parallelism, (length - dataStart)
+                    / MIN_CHUNK_SIZE);
+            Chunk data;
+            if (chunks <= 1 || comps.isEmpty()) {
+                data = parseChunk(reader, header, comps, namespace, null);
+            } else {
+                data = parseParallel(channel, dataStart, length, chunks,
+                        header, comps, namespace);
+            }
+            return data;
+        } catch (IOException e) {
+            throw new DataFileException(e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close data file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the number of threads used to parse a data file. Subclasses must
+     * implement {@link #convertIdToBel(String, Namespace)} in a thread-safe
+     * manner if the parallelism is greater than one.
+     *
+     * @param parallelism number of threads, defaults to 1
+     * @throws InvalidArgument if the parallelism is less than 1
+     */
+    public void setParallelism(int parallelism) throws InvalidArgument {
+        if (parallelism < 1) {
+            throw new InvalidArgument("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Parse the rows following the header on a {@link ForkJoinPool}.
+     *
+     * @param channel
+     * @param dataStart offset of the first row
+     * @param length file length
+     * @param chunks number of byte ranges to parse
+     * @param header
+     * @param comps selected comparisons
+     * @param namespace
+     * @return the merged rows, or the first error in the file
+     * @throws IOException
+     * @throws DataFileException
+     */
+    private Chunk parseParallel(final FileChannel channel, long dataStart,
+            long length, int chunks, final IdAMPHeader header,
+            final List<ComparisonColumns> comps, final Namespace namespace)
+            throws IOException, DataFileException {
+        final long[] bounds = splitRows(channel, dataStart, length, chunks);
+        logger.debug("Parsing data file in {} ranges", bounds.length - 1);
+
+        // lowest range that failed; later ranges may stop early
+        final AtomicInteger failed = new AtomicInteger(Integer.MAX_VALUE);
+        List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+        for (int i = 0; i < bounds.length - 1; i++) {
+            final int idx = i;
+            tasks.add(new Callable<Chunk>() {
+                @Override
+                public Chunk call() throws Exception {
+                    MappedCsvReader reader = new MappedCsvReader(channel,
+                            bounds[idx], bounds[idx + 1]);
+                    try {
+                        Chunk chunk = parseChunk(reader, header, comps,
+                                namespace, new Cancellation(failed, idx));
+                        if (chunk.errorLine != -1) {
+                            lowerTo(failed, idx);
+                        }
+                        return chunk;
+                    } finally {
+                        reader.close();
+                    }
+                }
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        List<Future<Chunk>> results;
         try {
-            CSVReader reader = new CSVReader(new FileReader(file));
-            String[] row = reader.readNext();
-            for (int i = 0; i < row.length; i++) {
-                if (ID_PATTERN.matcher(row[i]).matches()) {
-                    if (idIdx != -1) {
-                        throw new DataFileException("Duplicate id columns: "
-                                + idIdx + " and " + i);
+            results = pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        // merge in file order; the first failing range determines the error
+        Chunk merged = new Chunk(comps);
+        int lines = 0;
+        for (Future<Chunk> f : results) {
+            Chunk chunk;
+            try {
+                chunk = f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataFileException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new DataFileException(cause);
+            }
+            if (chunk.errorLine != -1) {
+                merged.errorLine = lines + chunk.errorLine;
+                merged.error = chunk.error;
+                merged.cause = chunk.cause;
+                return merged;
+            }
+            merged.idColumn.append(chunk.idColumn, lines);
+            for (int c = 0; c < comps.size(); c++) {
+                merged.builders.get(c).append(chunk.builders.get(c));
+            }
+            lines += chunk.lines;
+        }
+        return merged;
+    }
+
+    /**
+     * Split the rows of a file into line-aligned byte ranges. Line
+     * terminators within quoted values are not treated as range boundaries.
+     *
+     * @param channel
+     * @param start offset of the first row
+     * @param end file length
+     * @param chunks the number of ranges to create
+     * @return the range boundaries, beginning with <tt>start</tt> and ending
+     *         with <tt>end</tt>
+     * @throws IOException
+     */
+    static long[] splitRows(FileChannel channel, long start, long end,
+            int chunks) throws IOException {
+        long[] bounds = new long[chunks + 1];
+        bounds[0] = start;
+        bounds[chunks] = end;
+        long step = (end - start) / chunks;
+        boolean quoted = false;
+        long scanned = start;
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (int i = 1; i < chunks; i++) {
+            long target = Math.max(start + step * i, bounds[i - 1]);
+            // track quoting up to the byte preceding the target
+            long p = scanned;
+            int n = 0;
+            while (p < end) {
+                buf.clear();
+                n = channel.read(buf, p);
+                if (n <= 0) {
+                    break;
+                }
+                boolean found = false;
+                for (int j = 0; j < n; j++, p++) {
+                    byte c = buf.get(j);
+                    if (c == MappedCsvReader.QUOTE) {
+                        quoted = !quoted;
+                    } else if (!quoted && p >= target - 1
+                            && (c == MappedCsvReader.LF || c == MappedCsvReader.CR)) {
+                        // a CR LF pair ends after the LF
+                        if (c == MappedCsvReader.CR
+                                && isLF(channel, buf, j + 1, n, p + 1)) {
+                            p++;
+                        }
+                        found = true;
+                        break;
                     }
-                    logger.debug("ID column at index {}", i);
-                    idIdx = i;
-                    continue;
                 }
-                Matcher m = COL_PATTERN.matcher(row[i]);
-                if (!m.matches()) {
-                    logger.debug("Ignoring column {} at index {}", row[i], i);
-                    continue;
+                if (found) {
+                    break;
                 }
-                String colLabel = m.group(1);
-                Column col = Column.forLabel(colLabel);
-                if (col == null) {
-                    logger.debug("Unrecognized column {} at index {}", row[i],
-                            i);
+            }
+            p = Math.min(p + 1, end);
+            bounds[i] = p;
+            scanned = p;
+        }
+        return bounds;
+    }
+
+    private static boolean isLF(FileChannel channel, ByteBuffer buf,
+            int idx, int n, long offset) throws IOException {
+        if (idx < n) {
+            return buf.get(idx) == MappedCsvReader.LF;
+        }
+        ByteBuffer b = ByteBuffer.allocate(1);
+        return channel.read(b, offset) == 1 && b.get(0) == MappedCsvReader.LF;
+    }
+
+    private static void lowerTo(AtomicInteger value, int to) {
+        int cur;
+        while ((cur = value.get()) > to && !value.compareAndSet(cur, to)) {
+            // retry
+        }
+    }
+
+    /**
+     * Parse the remaining rows of a reader.
+     *
+     * @param reader
+     * @param header
+     * @param comps selected comparisons
+     * @param namespace
+     * @param cancellation checked periodically to stop parsing, may be
+     *            <code>null</code>
+     * @return the parsed rows; if a row fails to parse the chunk holds the
+     *         error and its line number relative to the reader's first row
+     * @throws IOException
+     */
+    private Chunk parseChunk(MappedCsvReader reader, IdAMPHeader header,
+            List<ComparisonColumns> comps, Namespace namespace,
+            Cancellation cancellation) throws IOException {
+        Chunk chunk = new Chunk(comps);
+        int idIdx = header.getIdIndex();
+        int minFields = IdAMPHeader.getMaxIndex(idIdx, comps) + 1;
+        IdentifierColumn idColumn = chunk.idColumn;
+        List<MeasurementTable.Builder> builders = chunk.builders;
+
+        // process each row
+        int lineNum = 1;
+        try {
+            while (reader.next()) {
+                if (cancellation != null && (lineNum & 0x3ff) == 0
+                        && cancellation.isCancelled()) {
+                    break;
+                }
+                if (reader.isBlank() || comps.isEmpty()) {
+                    lineNum++;
                     continue;
                 }
-                String compName = m.group(2);
-                String compNameUC = compName.toUpperCase();
-                Map<Column, Integer> compCols = colMap.get(compNameUC);
-                if (compCols == null) {
-                    compCols = new HashMap<Column, Integer>();
-                    colMap.put(compNameUC, compCols);
-                    // orig name
-                    compMap.put(compNameUC, compName);
-                    // init measurements
-                    compMeasure.put(compNameUC, new ArrayList<Measurement>());
+                if (reader.getFieldCount() < minFields) {
+                    throw new RowException("Expected " + minFields
+                            + " columns but found " + reader.getFieldCount());
                 }
-                if (compCols.containsKey(col)) {
-                    throw new DataFileException("Comparison " + compName
-                            + " defines duplicate " + colLabel
-                            + " columns at columns " + compCols.get(col)
-                            + " and " + i);
+                idColumn.add(getCode(idColumn, reader.getString(idIdx),
+                        namespace, lineNum));
+                for (int c = 0; c < comps.size(); c++) {
+                    ComparisonColumns comp = comps.get(c);
+                    double direction = parseDouble(reader,
+                            comp.get(Column.DIRECTION), "Direction");
+                    double pVal = Double.NaN, abun = Double.NaN;
+                    if (comp.has(Column.PVALUE)) {
+                        pVal = parseDouble(reader, comp.get(Column.PVALUE),
+                                "p-value");
+                    }
+                    if (comp.has(Column.ABUNDANCE)) {
+                        abun = parseDouble(reader, comp.get(Column.ABUNDANCE),
+                                "Abundance");
+                    }
+                    boolean anlst = comp.has(Column.ANALYST_SELECTION)
+                            && reader.isChar(
+                                    comp.get(Column.ANALYST_SELECTION), '1');
+                    builders.get(c).add(direction, pVal, abun, anlst);
                 }
-                compCols.put(col, i);
+                lineNum++;
             }
+        } catch (RowException e) {
+            chunk.errorLine = lineNum;
+            chunk.error = e.getMessage();
+            chunk.cause = e.getCause();
+        }
+        chunk.lines = lineNum - 1;
+        return chunk;
+    }
 
-            // validate direction is present
-            for (Map.Entry<String, Map<Column, Integer>> comp : colMap
-                    .entrySet()) {
-                if (!comp.getValue().containsKey(Column.DIRECTION)) {
-                    throw new DataFileException("Comparison "
-                            + compMap.get(comp.getKey()) + " must define a "
-                            + Column.DIRECTION.label + " column");
-                }
+    /**
+     * Parse the selected comparisons of Arrow IPC data.
+     *
+     * @param channel positioned at the start of the data
+     * @param namespace
+     * @param selector
+     * @return the parsed rows
+     * @throws IOException
+     * @throws DataFileException if a selected column has an unsupported type
+     */
+    private Chunk parseArrow(ReadableByteChannel channel, Namespace namespace,
+            ComparisonSelector selector) throws IOException,
+            DataFileException {
+        ArrowReader reader = new ArrowReader(channel);
+        IdAMPHeader header = IdAMPHeader.parse(reader.getLabels());
+        List<ComparisonColumns> comps = header.select(selector);
+        int idIdx = header.getIdIndex();
+        if (!comps.isEmpty()) {
+            reader.requireText(idIdx);
+        }
+        for (ComparisonColumns comp : comps) {
+            reader.requireNumeric(comp.get(Column.DIRECTION));
+            if (comp.has(Column.PVALUE)) {
+                reader.requireNumeric(comp.get(Column.PVALUE));
+            }
+            if (comp.has(Column.ABUNDANCE)) {
+                reader.requireNumeric(comp.get(Column.ABUNDANCE));
+            }
+            if (comp.has(Column.ANALYST_SELECTION)) {
+                reader.requireFlag(comp.get(Column.ANALYST_SELECTION));
             }
+        }
+        logger.debug("Reading Arrow data file");
 
-            // process each row
-            int lineNum = 1;
-            while ((row = reader.readNext()) != null) {
-                Term term;
-                try {
-                    term = convertIdToBel(row[idIdx], namespace);
-                } catch (Exception e) {
-                    throw new DataFileException("Line " + lineNum
-                            + ": Cannot convert ID to BEL: " + row[idIdx]);
+        Chunk chunk = new Chunk(comps);
+        IdentifierColumn idColumn = chunk.idColumn;
+        List<MeasurementTable.Builder> builders = chunk.builders;
+        int lineNum = 1;
+        try {
+            while (reader.nextBatch()) {
+                int rows = reader.getRowCount();
+                if (comps.isEmpty()) {
+                    lineNum += rows;
+                    continue;
                 }
-                for (Map.Entry<String, Map<Column, Integer>> comp : colMap
-                        .entrySet()) {
-                    Collection<Measurement> measurements = compMeasure.get(comp
-                            .getKey());
-                    Double direction = null, pVal = null, abun = null;
-                    boolean anlst = false;
-                    for (Map.Entry<Column, Integer> col : comp.getValue()
-                            .entrySet()) {
-                        switch (col.getKey()) {
-                        case DIRECTION:
-                            try {
-                                direction = Double.valueOf(row[col.getValue()]);
-                            } catch (NumberFormatException e) {
-                                throw new DataFileException("Line " + lineNum
-                                        + ": Invalid Direction: "
-                                        + row[col.getValue()]);
-                            }
-                            break;
-                        case PVALUE:
-                            try {
-                                pVal = Double.valueOf(row[col.getValue()]);
-                            } catch (NumberFormatException e) {
-                                throw new DataFileException("Line " + lineNum
-                                        + ": Invalid p-value: "
-                                        + row[col.getValue()]);
-                            }
-                            break;
-                        case ABUNDANCE:
-                            try {
-                                abun = Double.valueOf(row[col.getValue()]);
-                            } catch (NumberFormatException e) {
-                                throw new DataFileException("Line " + lineNum
-                                        + ": Invalid Abundance: "
-                                        + row[col.getValue()]);
-                            }
-                            break;
-                        case ANALYST_SELECTION:
-                            anlst = "1".equals(row[col.getValue()]);
-                            break;
-                        default:
-                            throw new IllegalArgumentException(
-                                    "Unsupported Column enum");
+                for (int r = 0; r < rows; r++) {
+                    if (reader.isNull(idIdx, r)) {
+                        throw new RowException("Missing ID");
+                    }
+                    idColumn.add(getCode(idColumn, reader.getString(idIdx, r),
+                            namespace, lineNum));
+                    for (int c = 0; c < comps.size(); c++) {
+                        ComparisonColumns comp = comps.get(c);
+                        double direction = getDouble(reader,
+                                comp.get(Column.DIRECTION), r, "Direction");
+                        if (Double.isNaN(direction)) {
+                            throw new RowException("Invalid Direction: NaN");
+                        }
+                        double pVal = Double.NaN, abun = Double.NaN;
+                        if (comp.has(Column.PVALUE)) {
+                            pVal = getDouble(reader, comp.get(Column.PVALUE),
+                                    r, "p-value");
                         }
+                        if (comp.has(Column.ABUNDANCE)) {
+                            abun = getDouble(reader,
+                                    comp.get(Column.ABUNDANCE), r, "Abundance");
+                        }
+                        int as = comp.has(Column.ANALYST_SELECTION) ? comp
+                                .get(Column.ANALYST_SELECTION) : -1;
+                        boolean anlst = as != -1 && !reader.isNull(as, r)
+                                && reader.isTrue(as, r);
+                        builders.get(c).add(direction, pVal, abun, anlst);
                     }
-                    Measurement m = createMeasurement(row[idIdx], term,
-                            direction, pVal, abun, anlst);
-                    measurements.add(m);
+                    lineNum++;
                 }
-                lineNum++;
             }
+        } catch (RowException e) {
+            chunk.errorLine = lineNum;
+            chunk.error = e.getMessage();
+            chunk.cause = e.getCause();
+        }
+        chunk.lines = lineNum - 1;
+        return chunk;
+    }
 
-            Collection<Comparison> ret = new ArrayList<Comparison>();
-            // create comparisons
-            for (Map.Entry<String, String> entry : compMap.entrySet()) {
-                ret.add(new Comparison(entry.getValue(), compMeasure.get(entry
-                        .getKey())));
+    /**
+     * Get the code of an identifier, converting it to a {@link Term} when it
+     * is first seen.
+     *
+     * @param idColumn
+     * @param id
+     * @param namespace
+     * @param lineNum line of the current row
+     * @return
+     * @throws RowException if the identifier cannot be converted
+     */
+    private int getCode(IdentifierColumn idColumn, String id,
+            Namespace namespace, int lineNum) throws RowException {
+        int code = idColumn.getCode(id);
+        if (code == -1) {
+            Term term;
+            try {
+                term = convertIdToBel(id, namespace);
+            } catch (Exception e) {
+                throw new RowException("Cannot convert ID to BEL: " + id, e);
+            }
+            code = idColumn.addCode(id, term, lineNum);
+            if (termListener != null) {
+                termListener.termParsed(term);
             }
+        }
+        return code;
+    }
 
-            return ret;
-        } catch (IOException e) {
-            throw new DataFileException(e);
+    /**
+     * Get a numeric value of Arrow IPC data.
+     *
+     * @param reader
+     * @param idx column index
+     * @param row row of the current batch
+     * @param label column label used in the error message
+     * @return
+     * @throws RowException if the value is null
+     */
+    private static double getDouble(ArrowReader reader, int idx, int row,
+            String label) throws RowException {
+        if (reader.isNull(idx, row)) {
+            throw new RowException("Missing " + label);
         }
+        return reader.getDouble(idx, row);
     }
 
     /**
-     * Create a measurement object
-     * @param id
-     * @param term
-     * @param direction
-     * @param pValue
-     * @param abundance
-     * @param analystSelection
+     * Parse a numeric column of the current row.
+     *
+     * @param reader
+     * @param idx column index
+     * @param label column label used in the error message
      * @return
+     * @throws RowException if the value is not a valid number
      */
-    protected Measurement createMeasurement(String id, Term term,
-            Double direction, Double pValue, Double abundance,
-            boolean analystSelection) {
-        return new Measurement(term, direction, pValue, abundance,
-                analystSelection);
+    private static double parseDouble(MappedCsvReader reader, int idx,
+            String label) throws RowException {
+        try {
+            return reader.getDouble(idx);
+        } catch (NumberFormatException e) {
+            throw new RowException("Invalid " + label + ": "
+                    + reader.getString(idx));
+        }
     }
 
     /**
@@ -285,4 +838,60 @@ public abstract class IdAMPDataFileService implements DataFileService {
      */
     protected abstract Term convertIdToBel(String id, Namespace namespace)
             throws Exception;
+
+    /**
+     * Rows parsed from a byte range of a data file
+     */
+    private static class Chunk {
+        private final List<ComparisonColumns> comps;
+        private final IdentifierColumn idColumn = new IdentifierColumn();
+        private final List<MeasurementTable.Builder> builders;
+        private int lines;
+        private int errorLine = -1;
+        private String error;
+        private Throwable cause;
+
+        private Chunk(List<ComparisonColumns> comps) {
+            this.comps = comps;
+            builders = new ArrayList<MeasurementTable.Builder>(comps.size());
+            for (ComparisonColumns comp : comps) {
+                builders.add(new MeasurementTable.Builder(
+                        comp.has(Column.PVALUE), comp.has(Column.ABUNDANCE)));
+            }
+        }
+    }
+
+    /**
+     * Stops a range once an earlier range has failed, as its rows will be
+     * discarded.
+     */
+    private static class Cancellation {
+        private final AtomicInteger failed;
+        private final int idx;
+
+        private Cancellation(AtomicInteger failed, int idx) {
+            this.failed = failed;
+            this.idx = idx;
+        }
+
+        private boolean isCancelled() {
+            return failed.get() < idx;
+        }
+    }
+
+    /**
+     * Invalid row; the message is prefixed with the line number once it is
+     * known.
+     */
+    private static class RowException extends Exception {
+        private static final long serialVersionUID = -4043326123960627052L;
+
+        private RowException(String message) {
+            super(message);
+        }
+
+        private RowException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
 }
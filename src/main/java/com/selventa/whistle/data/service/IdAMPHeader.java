@@ -0,0 +1,220 @@
+package com.selventa.whistle.data.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openbel.framework.common.InvalidArgument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.selventa.whistle.data.service.DataFileService.DataFileException;
+
+/**
+ * The column layout of an IdAMP data file as defined by its header row.
+ *
+ * @see IdAMPDataFileService
+ */
+final class IdAMPHeader {
+    private static final Logger logger = LoggerFactory
+            .getLogger(IdAMPHeader.class);
+
+    private static final Pattern ID_PATTERN = Pattern.compile("\\[ID\\]",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern COL_PATTERN = Pattern
+            .compile("\\[(.+)]\\s*\\[(.+)\\]");
+
+    enum Column {
+        DIRECTION("M"), PVALUE("P"), ABUNDANCE("A"), ANALYST_SELECTION("AS");
+
+        private final String label;
+
+        private Column(String label) {
+            this.label = label;
+        }
+
+        static Column forLabel(String label) {
+            if (label == null) {
+                throw new InvalidArgument("label must not be null");
+            }
+            label = label.toUpperCase();
+            for (Column c : values()) {
+                if (label.equals(c.label)) {
+                    return c;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Column indices of a single comparison; absent columns have an index of
+     * -1.
+     */
+    static final class ComparisonColumns {
+        private final String name;
+        private final int[] indices = new int[Column.values().length];
+
+        private ComparisonColumns(String name) {
+            this.name = name;
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = -1;
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int get(Column col) {
+            return indices[col.ordinal()];
+        }
+
+        boolean has(Column col) {
+            return indices[col.ordinal()] != -1;
+        }
+    }
+
+    private final int idIdx;
+    private final List<ComparisonColumns> comparisons;
+
+    private IdAMPHeader(int idIdx, List<ComparisonColumns> comparisons) {
+        this.idIdx = idIdx;
+        this.comparisons = Collections.unmodifiableList(comparisons);
+    }
+
+    /**
+     * @return index of the [ID] column
+     */
+    int getIdIndex() {
+        return idIdx;
+    }
+
+    /**
+     * @return the comparisons in the order they are defined in the file
+     */
+    List<ComparisonColumns> getComparisons() {
+        return comparisons;
+    }
+
+    /**
+     * @return the names of the comparisons in the order they are defined in
+     *         the file
+     */
+    List<String> getComparisonNames() {
+        List<String> ret = new ArrayList<String>(comparisons.size());
+        for (ComparisonColumns c : comparisons) {
+            ret.add(c.getName());
+        }
+        return ret;
+    }
+
+    /**
+     * Apply a {@link ComparisonSelector} to the comparisons of this header.
+     *
+     * @param selector
+     * @return the selected comparisons, in file order
+     * @throws DataFileException
+     */
+    List<ComparisonColumns> select(ComparisonSelector selector)
+            throws DataFileException {
+        boolean[] include = selector.include(getComparisonNames());
+        List<ComparisonColumns> ret = new ArrayList<ComparisonColumns>();
+        for (int i = 0; i < include.length; i++) {
+            if (include[i]) {
+                ret.add(comparisons.get(i));
+            } else {
+                logger.debug("Skipping comparison {}", comparisons.get(i)
+                        .getName());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param idIdx
+     * @param comparisons
+     * @return highest column index used by the ID column or the given
+     *         comparisons
+     */
+    static int getMaxIndex(int idIdx, List<ComparisonColumns> comparisons) {
+        int max = idIdx;
+        for (ComparisonColumns c : comparisons) {
+            for (int i : c.indices) {
+                max = Math.max(max, i);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Parse a header row.
+     *
+     * @param row
+     * @return
+     * @throws DataFileException if the header is invalid
+     */
+    static IdAMPHeader parse(String[] row) throws DataFileException {
+        // ID col idx
+        int idIdx = -1;
+        // comparison name (UC) : comparison columns
+        Map<String, ComparisonColumns> colMap = new LinkedHashMap<String, ComparisonColumns>();
+        for (int i = 0; i < row.length; i++) {
+            if (ID_PATTERN.matcher(row[i]).matches()) {
+                if (idIdx != -1) {
+                    throw new DataFileException("Duplicate id columns: "
+                            + idIdx + " and " + i);
+                }
+                logger.debug("ID column at index {}", i);
+                idIdx = i;
+                continue;
+            }
+            Matcher m = COL_PATTERN.matcher(row[i]);
+            if (!m.matches()) {
+                logger.debug("Ignoring column {} at index {}", row[i], i);
+                continue;
+            }
+            String colLabel = m.group(1);
+            Column col = Column.forLabel(colLabel);
+            if (col == null) {
+                logger.debug("Unrecognized column {} at index {}", row[i], i);
+                continue;
+            }
+            String compName = m.group(2);
+            String compNameUC = compName.toUpperCase();
+            ComparisonColumns compCols = colMap.get(compNameUC);
+            if (compCols == null) {
+                // keep the original name
+                compCols = new ComparisonColumns(compName);
+                colMap.put(compNameUC, compCols);
+            }
+            if (compCols.has(col)) {
+                throw new DataFileException("Comparison " + compName
+                        + " defines duplicate " + colLabel
+                        + " columns at columns " + compCols.get(col)
+                        + " and " + i);
+            }
+            compCols.indices[col.ordinal()] = i;
+        }
+
+        if (idIdx == -1 && !colMap.isEmpty()) {
+            throw new DataFileException("Data file must define an [ID] column");
+        }
+
+        // validate direction is present
+        for (ComparisonColumns comp : colMap.values()) {
+            if (!comp.has(Column.DIRECTION)) {
+                throw new DataFileException("Comparison " + comp.getName()
+                        + " must define a " + Column.DIRECTION.label
+                        + " column");
+            }
+        }
+
+        return new IdAMPHeader(idIdx,
+                new ArrayList<ComparisonColumns>(colMap.values()));
+    }
+}
@@ -0,0 +1,114 @@
+package com.selventa.whistle.data.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openbel.framework.common.model.Term;
+
+import com.selventa.whistle.data.model.MeasurementTable;
+
+/**
+ * Dictionary encoded identifier column of a data file, shared by the
+ * {@link MeasurementTable}s of all comparisons in the file. Each distinct
+ * identifier is converted to a {@link Term} once.
+ */
+final class IdentifierColumn {
+    private final Map<String, Integer> codeMap = new HashMap<String, Integer>();
+    private final List<String> ids = new ArrayList<String>();
+    private final List<Term> terms = new ArrayList<Term>();
+    private int[] lines = new int[1024];
+    private int[] codes = new int[1024];
+    private int size;
+
+    /**
+     * Look up the code of an identifier.
+     *
+     * @param id
+     * @return the code or -1 if the identifier has not been added
+     */
+    int getCode(String id) {
+        Integer code = codeMap.get(id);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Add a new distinct identifier.
+     *
+     * @param id
+     * @param term
+     * @param line line of the first row of the identifier
+     * @return the identifier's code
+     */
+    int addCode(String id, Term term, int line) {
+        int code = ids.size();
+        codeMap.put(id, code);
+        ids.add(id);
+        terms.add(term);
+        if (code == lines.length) {
+            lines = Arrays.copyOf(lines, code * 2);
+        }
+        lines[code] = line;
+        return code;
+    }
+
+    /**
+     * Append a row.
+     *
+     * @param code
+     */
+    void add(int code) {
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+        }
+        codes[size++] = code;
+    }
+
+    /**
+     * Append all rows of another column, re-coding its identifiers.
+     *
+     * @param other
+     * @param lineOffset number of lines preceding the first row of
+     *            <tt>other</tt>
+     */
+    void append(IdentifierColumn other, int lineOffset) {
+        int[] recode = new int[other.ids.size()];
+        for (int i = 0; i < recode.length; i++) {
+            String id = other.ids.get(i);
+            int code = getCode(id);
+            recode[i] = code == -1 ? addCode(id, other.terms.get(i),
+                    lineOffset + other.lines[i]) : code;
+        }
+        for (int i = 0; i < other.size; i++) {
+            add(recode[other.codes[i]]);
+        }
+    }
+
+    /**
+     * @return number of rows added
+     */
+    int size() {
+        return size;
+    }
+
+    String[] getIds() {
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    Term[] getTerms() {
+        return terms.toArray(new Term[terms.size()]);
+    }
+
+    int[] getCodes() {
+        return Arrays.copyOf(codes, size);
+    }
+
+    /**
+     * @return the line of the first row of each identifier, indexed by code
+     */
+    int[] getLines() {
+        return Arrays.copyOf(lines, ids.size());
+    }
+}
@@ -0,0 +1,478 @@
+package com.selventa.whistle.data.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.Charset;
+
+import org.openbel.framework.common.InvalidArgument;
+
+/**
+ * Reads CSV records straight from the bytes of a memory-mapped file or a
+ * byte stream.<br>
+ * Delimiters are located by scanning the bytes; a record is exposed as a set
+ * of field offsets into the buffer so that no {@link String} is created
+ * unless {@link #getString(int)} is called. Numeric fields can be parsed
+ * directly from the buffered bytes via {@link #getDouble(int)}.
+ * <p>
+ * The quoting rules are those documented by {@link IdAMPDataFileService}:
+ * fields are separated by a comma, may be enclosed in double quotes and
+ * embedded double quotes are escaped by doubling them. Records are
+ * terminated by <code>\n</code>, <code>\r\n</code> or <code>\r</code>.
+ * </p>
+ * <p>
+ * Files larger than a single mapping are read through successive windows;
+ * a record must fit within a single window. A reader is restricted to a byte
+ * range of the file so that several readers can process one file
+ * concurrently.
+ * </p>
+ * <p>
+ * Streams are read incrementally into a buffer that is refilled as records
+ * are consumed and grown if a single record does not fit.
+ * </p>
+ */
+final class MappedCsvReader implements Closeable {
+    private static final byte SEPARATOR = ',';
+    static final byte QUOTE = '"';
+    static final byte CR = '\r';
+    static final byte LF = '\n';
+
+    /**
+     * Largest region mapped at once
+     */
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    /**
+     * Initial size of the buffer used to read a stream
+     */
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The field is plain text between its offsets
+     */
+    private static final byte PLAIN = 0;
+    /**
+     * The field is enclosed in quotes without any escaped quotes; the
+     * offsets exclude the enclosing quotes
+     */
+    private static final byte QUOTED = 1;
+    /**
+     * The field contains escaped quotes or text outside of its quotes and
+     * must be unquoted when read; the offsets cover the raw field
+     */
+    private static final byte ESCAPED = 2;
+
+    /**
+     * Powers of ten exactly representable as a double
+     */
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1d;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10d;
+        }
+    }
+
+    /**
+     * Largest number of significant digits for which the mantissa is exactly
+     * representable as a double
+     */
+    private static final int MAX_FAST_DIGITS = 15;
+
+    private final FileChannel channel;
+    private final ReadableByteChannel stream;
+    private final long length;
+    private final Charset charset = Charset.defaultCharset();
+
+    private ByteBuffer buffer;
+    private long bufferOffset;
+    private int limit;
+    private int pos;
+    private boolean eof;
+
+    private int count;
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+    private byte[] kinds = new byte[32];
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Read the records within a byte range of a file. The range must start
+     * at the beginning of a record and end at the end of a record. The
+     * channel is not closed by {@link #close()}.
+     *
+     * @param channel
+     * @param start offset of the first byte of the range
+     * @param end offset following the last byte of the range
+     * @throws IOException
+     */
+    MappedCsvReader(FileChannel channel, long start, long end)
+            throws IOException {
+        this.channel = channel;
+        this.stream = null;
+        this.length = end;
+        map(start);
+    }
+
+    /**
+     * Read the records of a stream. The stream is not closed by
+     * {@link #close()}.
+     *
+     * @param stream a blocking channel
+     * @throws InvalidArgument if the stream is a non-blocking channel, as
+     *             reading it would spin while no data is available
+     */
+    MappedCsvReader(ReadableByteChannel stream) throws InvalidArgument {
+        if (stream instanceof SelectableChannel
+                && !((SelectableChannel) stream).isBlocking()) {
+            throw new InvalidArgument("stream must be in blocking mode");
+        }
+        this.channel = null;
+        this.stream = stream;
+        this.length = -1;
+        this.buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * @return the file offset of the record following the current record
+     */
+    long getPosition() {
+        return bufferOffset + pos;
+    }
+
+    /**
+     * Advance to the next record.
+     *
+     * @return <code>false</code> if the end of the input has been reached
+     * @throws IOException if the input cannot be read or a single record does
+     *             not fit in a mapping
+     */
+    boolean next() throws IOException {
+        while (true) {
+            if (pos >= limit && eof) {
+                count = 0;
+                return false;
+            }
+            int end = scan(pos);
+            if (end >= 0) {
+                pos = end;
+                return true;
+            }
+            if (stream != null) {
+                fill();
+                continue;
+            }
+            if (pos == 0) {
+                throw new IOException("Record at byte " + bufferOffset
+                        + " exceeds the maximum mappable size");
+            }
+            map(bufferOffset + pos);
+        }
+    }
+
+    /**
+     * @return the number of fields in the current record
+     */
+    int getFieldCount() {
+        return count;
+    }
+
+    /**
+     * @return <code>true</code> if the current record is an empty line
+     */
+    boolean isBlank() {
+        return count == 1 && kinds[0] == PLAIN && starts[0] == ends[0];
+    }
+
+    /**
+     * @return all fields of the current record
+     */
+    String[] getRecord() {
+        String[] ret = new String[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = getString(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Decode a field of the current record.
+     *
+     * @param i field index
+     * @return the unquoted field value
+     */
+    String getString(int i) {
+        int start = starts[i];
+        int len = ends[i] - start;
+        if (kinds[i] != ESCAPED) {
+            byte[] b = copy(start, len);
+            return new String(b, 0, len, charset);
+        }
+        // unquote the raw field
+        byte[] b = scratch.length >= len ? scratch : new byte[len];
+        int n = 0;
+        boolean quoted = false;
+        for (int p = start; p < start + len; p++) {
+            byte c = buffer.get(p);
+            if (c == QUOTE) {
+                if (quoted && p + 1 < start + len
+                        && buffer.get(p + 1) == QUOTE) {
+                    b[n++] = QUOTE;
+                    p++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else {
+                b[n++] = c;
+            }
+        }
+        scratch = b;
+        return new String(b, 0, n, charset);
+    }
+
+    /**
+     * Parse a field of the current record as a double.<br>
+     * Plain decimal values are converted directly from the mapped bytes; the
+     * result is identical to {@link Double#parseDouble(String)}, which is
+     * used for any other form.
+     *
+     * @param i field index
+     * @return the parsed value
+     * @throws NumberFormatException if the field is not a valid double
+     */
+    double getDouble(int i) throws NumberFormatException {
+        if (kinds[i] == ESCAPED) {
+            return Double.parseDouble(getString(i));
+        }
+        int p = starts[i];
+        int end = ends[i];
+        // same whitespace rule as String.trim()
+        while (p < end && (buffer.get(p) & 0xff) <= ' ') {
+            p++;
+        }
+        while (end > p && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        boolean negative = false;
+        if (p < end) {
+            byte c = buffer.get(p);
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                p++;
+            }
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int significant = 0;
+        int fraction = -1;
+        for (; p < end; p++) {
+            byte c = buffer.get(p);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (fraction >= 0) {
+                    fraction++;
+                }
+                if (mantissa != 0 || c != '0') {
+                    if (++significant > MAX_FAST_DIGITS) {
+                        break;
+                    }
+                }
+                mantissa = mantissa * 10 + (c - '0');
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                break;
+            }
+        }
+        if (p != end || digits == 0 || fraction >= POW10.length) {
+            // exponents, NaN, Infinity, long mantissas, invalid values...
+            return Double.parseDouble(getString(i));
+        }
+        double d = fraction > 0
+                ? (double) mantissa / POW10[fraction]
+                : (double) mantissa;
+        return negative ? -d : d;
+    }
+
+    /**
+     * Compare a field of the current record to a single ASCII character
+     * without decoding it.
+     *
+     * @param i field index
+     * @param c the character
+     * @return <code>true</code> if the field consists of exactly <tt>c</tt>
+     */
+    boolean isChar(int i, char c) {
+        if (kinds[i] == ESCAPED) {
+            return String.valueOf(c).equals(getString(i));
+        }
+        return ends[i] - starts[i] == 1 && buffer.get(starts[i]) == c;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+    }
+
+    /**
+     * Map the window of the file starting at the given offset.
+     *
+     * @param offset
+     * @throws IOException
+     */
+    private void map(long offset) throws IOException {
+        long size = Math.min(length - offset, MAX_WINDOW);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        bufferOffset = offset;
+        limit = (int) size;
+        pos = 0;
+        eof = offset + size >= length;
+    }
+
+    /**
+     * Read more of the stream, discarding the consumed records and growing
+     * the buffer if the current record fills it.
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            // move the partial record to the start of the buffer
+            ByteBuffer src = buffer.duplicate();
+            src.limit(limit).position(pos);
+            ByteBuffer dst = buffer.duplicate();
+            dst.clear();
+            dst.put(src);
+            bufferOffset += pos;
+            limit -= pos;
+            pos = 0;
+        } else if (limit == buffer.capacity()) {
+            if (buffer.capacity() > Integer.MAX_VALUE / 2) {
+                throw new IOException("Record at byte " + bufferOffset
+                        + " exceeds the maximum buffer size");
+            }
+            ByteBuffer b = ByteBuffer.allocate(buffer.capacity() * 2);
+            ByteBuffer src = buffer.duplicate();
+            src.limit(limit).position(0);
+            b.put(src);
+            buffer = b;
+        }
+        ByteBuffer dst = buffer.duplicate();
+        dst.limit(dst.capacity()).position(limit);
+        int n = 0;
+        while (n == 0) {
+            n = stream.read(dst);
+        }
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    /**
+     * Scan a record starting at the given position, recording its fields.
+     *
+     * @param p
+     * @return the position following the record terminator, or -1 if the
+     *         record continues beyond the current window
+     */
+    private int scan(int p) {
+        boolean lastWindow = eof;
+        count = 0;
+        int start = p;
+        byte kind = PLAIN;
+        boolean quoted = false;
+        while (p < limit) {
+            byte c = buffer.get(p);
+            if (quoted) {
+                if (c == QUOTE) {
+                    if (p + 1 < limit && buffer.get(p + 1) == QUOTE) {
+                        kind = ESCAPED;
+                        p += 2;
+                        continue;
+                    }
+                    if (p + 1 >= limit && !lastWindow) {
+                        // cannot tell an escape from a closing quote yet
+                        return -1;
+                    }
+                    quoted = false;
+                }
+                p++;
+                continue;
+            }
+            if (c == SEPARATOR) {
+                addField(start, p, kind);
+                start = ++p;
+                kind = PLAIN;
+            } else if (c == LF || c == CR) {
+                addField(start, p, kind);
+                if (c == CR) {
+                    if (p + 1 >= limit && !lastWindow) {
+                        return -1;
+                    }
+                    if (p + 1 < limit && buffer.get(p + 1) == LF) {
+                        p++;
+                    }
+                }
+                return p + 1;
+            } else if (c == QUOTE) {
+                kind = p == start ? QUOTED : ESCAPED;
+                quoted = true;
+                p++;
+            } else {
+                if (kind == QUOTED) {
+                    // text following the closing quote
+                    kind = ESCAPED;
+                }
+                p++;
+            }
+        }
+        if (!lastWindow) {
+            return -1;
+        }
+        // final record without a terminator
+        addField(start, p, quoted ? ESCAPED : kind);
+        return p;
+    }
+
+    private void addField(int start, int end, byte kind) {
+        if (count == starts.length) {
+            int n = count * 2;
+            int[] s = new int[n];
+            int[] e = new int[n];
+            byte[] k = new byte[n];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            System.arraycopy(kinds, 0, k, 0, count);
+            starts = s;
+            ends = e;
+            kinds = k;
+        }
+        if (kind == QUOTED) {
+            // strip the enclosing quotes
+            start++;
+            end--;
+        }
+        starts[count] = start;
+        ends[count] = end;
+        kinds[count] = kind;
+        count++;
+    }
+
+    private byte[] copy(int start, int len) {
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(scratch, 0, len);
+        return scratch;
+    }
+}
@@ -0,0 +1,145 @@
+package com.selventa.whistle.data.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@link ReadableByteChannel} reading a stream on a separate thread, so that
+ * producing the stream (e.g. decompressing it) overlaps with consuming the
+ * channel. At most a fixed number of blocks are read ahead.
+ */
+final class ReadAheadChannel implements ReadableByteChannel {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCKS = 16;
+
+    /**
+     * Marks the end of the stream
+     */
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(
+            MAX_BLOCKS);
+    private final Thread reader;
+    private volatile IOException error;
+    private volatile boolean open = true;
+
+    private byte[] block;
+    private int blockPos;
+    private int blockLimit;
+
+    /**
+     * Start reading a stream. The stream is closed once it has been read or
+     * the channel is closed; wrap streams owned by the caller, as
+     * {@link Compression#decompress(InputStream)} does.
+     *
+     * @param in
+     */
+    ReadAheadChannel(final InputStream in) {
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean done = false;
+                try {
+                    while (open) {
+                        byte[] b = new byte[BLOCK_SIZE];
+                        int n = Compression.read(in, b);
+                        if (n > 0) {
+                            blocks.put(n == b.length ? b : copy(b, n));
+                        }
+                        if (n < b.length) {
+                            done = true;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (InterruptedException e) {
+                    // closed
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                    if (!done) {
+                        // failed or closed; the remaining blocks are unused
+                        blocks.clear();
+                    }
+                    try {
+                        blocks.put(EOF);
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            }
+        }, "whistle-read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (block == EOF) {
+            return -1;
+        }
+        if (blockPos == blockLimit) {
+            try {
+                block = blocks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (block == EOF) {
+                if (error != null) {
+                    throw error;
+                }
+                return -1;
+            }
+            blockPos = 0;
+            blockLimit = block.length;
+        }
+        int n = Math.min(dst.remaining(), blockLimit - blockPos);
+        dst.put(block, blockPos, n);
+        blockPos += n;
+        return n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * {@inheritDoc} Stops reading the stream.
+     */
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            reader.interrupt();
+        }
+    }
+
+    private static byte[] copy(byte[] b, int n) {
+        byte[] ret = new byte[n];
+        System.arraycopy(b, 0, ret, 0, n);
+        return ret;
+    }
+}
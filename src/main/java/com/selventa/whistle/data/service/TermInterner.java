@@ -0,0 +1,149 @@
+package com.selventa.whistle.data.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openbel.framework.common.InvalidArgument;
+import org.openbel.framework.common.model.Namespace;
+import org.openbel.framework.common.model.Term;
+
+/**
+ * Thread-safe cache of canonical {@link Term}s keyed by namespace and
+ * identifier, so that every occurrence of an identifier shares a single
+ * {@link Term} across comparisons, data files and runs.<br>
+ * The cache is bounded; once full, new {@link Term}s are no longer cached and
+ * are returned as given.
+ */
+public class TermInterner {
+    private final ConcurrentMap<Key, Term> terms = new ConcurrentHashMap<Key, Term>();
+    private final int maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of cached {@link Term}s
+     * @throws InvalidArgument if <tt>maxSize</tt> is negative
+     */
+    public TermInterner(int maxSize) throws InvalidArgument {
+        if (maxSize < 0) {
+            throw new InvalidArgument("maxSize must not be negative");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Look up the canonical {@link Term} of an identifier.
+     *
+     * @param ns
+     * @param id
+     * @return the {@link Term} or <code>null</code> if none is cached
+     */
+    public Term get(Namespace ns, String id) {
+        Term t = terms.get(new Key(ns, id));
+        if (t == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return t;
+    }
+
+    /**
+     * Cache the {@link Term} of an identifier unless one is already cached.
+     *
+     * @param ns
+     * @param id
+     * @param term
+     * @return the canonical {@link Term}; <tt>term</tt> if none was cached
+     */
+    public Term intern(Namespace ns, String id, Term term) {
+        if (terms.size() >= maxSize) {
+            Term t = terms.get(new Key(ns, id));
+            return t == null ? term : t;
+        }
+        Term t = terms.putIfAbsent(new Key(ns, id), term);
+        return t == null ? term : t;
+    }
+
+    /**
+     * @return the number of cached {@link Term}s
+     */
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * @return the number of lookups that found a cached {@link Term}
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that did not find a cached {@link Term}
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Remove all cached {@link Term}s and reset the counters.
+     */
+    public void clear() {
+        terms.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "TermInterner [size=" + size() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + "]";
+    }
+
+    private static final class Key {
+        private final String prefix;
+        private final String location;
+        private final String id;
+        private final int hash;
+
+        private Key(Namespace ns, String id) {
+            this.prefix = ns == null ? null : ns.getPrefix();
+            this.location = ns == null ? null : ns.getResourceLocation();
+            this.id = id;
+            this.hash = 31 * (31 * hash(prefix) + hash(location))
+                    + id.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key rhs = (Key) obj;
+            return hash == rhs.hash && id.equals(rhs.id)
+                    && equal(location, rhs.location)
+                    && equal(prefix, rhs.prefix);
+        }
+
+        private static int hash(String s) {
+            return s == null ? 0 : s.hashCode();
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
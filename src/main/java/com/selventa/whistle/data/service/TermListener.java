@@ -0,0 +1,19 @@
+package com.selventa.whistle.data.service;
+
+import org.openbel.framework.common.model.Term;
+
+/**
+ * Receives the {@link Term}s of the identifiers of a data file while it is
+ * being processed, before the {@link DataFileService} returns.
+ */
+public interface TermListener {
+
+    /**
+     * Called for each distinct identifier of a data file. Implementations
+     * must be thread-safe, as a file may be parsed by several threads; an
+     * identifier may be reported more than once.
+     *
+     * @param term
+     */
+    void termParsed(Term term);
+}
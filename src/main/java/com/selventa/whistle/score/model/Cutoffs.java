@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.data.model.MeasurementTable;
 
 
 /**
@@ -60,6 +61,9 @@ public class Cutoffs {
      * @return
      */
     public boolean evaluate(Measurement m) {
+        if (m.getTable() != null) {
+            return evaluate(m.getTable(), m.getRow());
+        }
         if (useAnalystSelection) {
             return m.isAnalystSelection();
         }
@@ -75,6 +79,52 @@ public class Cutoffs {
         }
         return true;
     }
+
+    /**
+     * Evaluate a row of a {@link MeasurementTable} against the cutoffs using
+     * the primitive columns of the table.
+     * @param table
+     * @param row
+     * @return
+     * @throws InvalidArgument if a cutoff applies to a column the table does
+     * not define or a row does not have
+     */
+    public boolean evaluate(MeasurementTable table, int row) {
+        if (useAnalystSelection) {
+            return table.isAnalystSelection(row);
+        }
+        if (foldChangeCutoff != null && Math.abs(table.getFoldChange(row)) < foldChangeCutoff.doubleValue()) {
+            logger.trace("{} Fold change rejection", table.getTerm(row));
+            return false;
+        } else if (pValueCutoff != null && Double.compare(pValue(table, row), pValueCutoff.doubleValue()) > 0) {
+            logger.trace("{} P-value rejection", table.getTerm(row));
+            return false;
+        } else if (abundanceCutoff != null && Double.compare(abundance(table, row), abundanceCutoff.doubleValue()) < 0) {
+            logger.trace("{} Abundance rejection", table.getTerm(row));
+            return false;
+        }
+        return true;
+    }
+
+    private static double pValue(MeasurementTable table, int row) {
+        if (!table.hasPValues()) {
+            throw new InvalidArgument("p-value cutoff requires a p-value column");
+        }
+        if (!table.hasPValue(row)) {
+            throw new InvalidArgument("p-value cutoff requires a p-value for " + table.getId(row));
+        }
+        return table.getPValue(row);
+    }
+
+    private static double abundance(MeasurementTable table, int row) {
+        if (!table.hasAbundances()) {
+            throw new InvalidArgument("abundance cutoff requires an abundance column");
+        }
+        if (!table.hasAbundance(row)) {
+            throw new InvalidArgument("abundance cutoff requires an abundance for " + table.getId(row));
+        }
+        return table.getAbundance(row);
+    }
     
     
 }
@@ -1,9 +1,14 @@
 package com.selventa.whistle.score.service;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.openbel.framework.api.EdgeDirectionType;
 import org.openbel.framework.api.EdgeFilter;
@@ -13,8 +18,11 @@ import org.openbel.framework.api.Kam.KamEdge;
 import org.openbel.framework.api.Kam.KamNode;
 import org.openbel.framework.api.NodeFilter;
 import org.openbel.framework.api.RelationshipTypeFilterCriteria;
+import org.openbel.framework.common.InvalidArgument;
 import org.openbel.framework.common.enums.FunctionEnum;
 import org.openbel.framework.common.enums.RelationshipType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.selventa.whistle.data.enums.DirectionType;
 import com.selventa.whistle.score.model.Downstream;
@@ -26,53 +34,109 @@ import com.selventa.whistle.score.model.Hypothesis;
  *
  */
 public class BasicHypothesisFinder implements HypothesisFinder {
+	private static final Logger logger = LoggerFactory.getLogger(BasicHypothesisFinder.class);
 
+	private CausalGraph graph;
+	private File catalogDirectory;
+	private String catalogQualifier;
 
 	/**
-	 * {@inheritDoc}
+	 * {@inheritDoc} With a {@link #setCatalog(File, String) catalog
+	 * directory}, the hypotheses are read from the {@link HypothesisCatalog}
+	 * of the {@link Kam} if one was written, and written to it otherwise.
 	 */
 	@Override
     public List<Hypothesis> findAll(Kam kam, int maxDepth) {
-		return findAll(kam, maxDepth, null);
+		if (catalogDirectory == null || kam.getKamInfo() == null) {
+			return findAll(kam, maxDepth, null);
+		}
+		HypothesisCatalog.Key key;
+		try {
+			key = new HypothesisCatalog.Key(kam.getKamInfo(), catalogQualifier, getCatalogFinderName(), maxDepth,
+					getRelationshipTypes());
+		} catch (InvalidArgument e) {
+			throw new IllegalStateException(e);
+		}
+		File file = new File(catalogDirectory, key.getFileName());
+		if (file.isFile()) {
+			try {
+				HypothesisCatalog catalog = HypothesisCatalog.open(file);
+				if (catalog.getKey().equals(key)) {
+					logger.debug("Loaded {} hypotheses from catalog {}", catalog.size(), file);
+					return catalog.getHypotheses(kam);
+				}
+			} catch (IOException e) {
+				logger.warn("Ignoring hypothesis catalog " + file, e);
+			}
+		}
+
+		List<Hypothesis> ret = findAll(kam, maxDepth, null);
+		try {
+			HypothesisCatalog.write(catalogDirectory, key, ret);
+		} catch (IOException e) {
+			logger.warn("Failed to write hypothesis catalog", e);
+		}
+		return ret;
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * {@inheritDoc} The search runs against the {@link CausalGraph} of the
+	 * {@link Kam}. Hypotheses are returned in node id order.
 	 */
 	@Override
     public List<Hypothesis> findAll(Kam kam, int maxDepth, NodeFilter nodeFilter) {
 
     	List<Hypothesis> hypothesisList = new ArrayList<Hypothesis>();
-		EdgeFilter edgeFilter = getEdgeFilter(kam);
-
-		Map<KamNode, DirectionType> downstreams = new HashMap<KamNode, DirectionType>();
-    	for (KamNode sourceNode : kam.getNodes(nodeFilter)) {
-    		// Search for different depths. The search for the sourceNode terminates
-    		// when a hypothesis is found at the nth depth
-    		for (int currentDepth = 1; currentDepth < maxDepth; currentDepth++) {
-	    		// Clear any existing data
-	    		downstreams.clear();
-	    		// recursively find all downstream RNA expression nodes that are connected within currentDepth steps
-	    		find(kam, sourceNode, 1, downstreams, edgeFilter, currentDepth);
-	    		// Check for a valid hypothesis
-	    		if (downstreams.size() > 3) {
-					// Create a new hypothesis from this source node. All hyps are assumed to be upregulated by default
-	    			// Note: for convention we still use Depth = 2 for directly connected hyps
-					Hypothesis hypothesis = new Hypothesis(sourceNode, DirectionType.UP, currentDepth + 1);
-					// Add the downstreams for the hypothesis
-					for (KamNode kamNode : downstreams.keySet()) {
-						// Add this downstream to the hypothesis
-						hypothesis.getDownstreams().add(new Downstream(kamNode, downstreams.get(kamNode)));
-					}
-					hypothesisList.add(hypothesis);
-					// No need to evaluate for any other levels for this hyp.
-					break;
-	    		}
+		CausalGraph graph = getCausalGraph(kam);
+
+		Search search = new Search(graph);
+    	for (int source : getSources(graph, kam, nodeFilter)) {
+    		Hypothesis hypothesis = search.find(source, maxDepth);
+    		if (hypothesis != null) {
+    			hypothesisList.add(hypothesis);
     		}
     	}
 
     	return hypothesisList;
     }
+
+	/**
+	 * @param graph
+	 * @param kam
+	 * @param nodeFilter
+	 * @return the indices in the {@link CausalGraph} of the source nodes
+	 *         passing <tt>nodeFilter</tt>, in node id order
+	 */
+	protected int[] getSources(CausalGraph graph, Kam kam, NodeFilter nodeFilter) {
+		Collection<KamNode> nodes = kam.getNodes(nodeFilter);
+		int[] sources = new int[nodes.size()];
+		int count = 0;
+		for (KamNode n : nodes) {
+			int source = graph.indexOf(n);
+			if (source != -1) {
+				sources[count++] = source;
+			}
+		}
+		int[] ret = Arrays.copyOf(sources, count);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * Obtain the {@link CausalGraph} of a {@link Kam} over the edges of
+	 * {@link #getEdgeFilter(Kam)}. The snapshot of the last {@link Kam} is
+	 * kept for later searches.
+	 *
+	 * @param kam
+	 * @return
+	 */
+	protected synchronized CausalGraph getCausalGraph(Kam kam) {
+		if (graph == null || graph.getKam() != kam) {
+			graph = CausalGraph.build(kam, getEdgeFilter(kam));
+		}
+		return graph;
+	}
+
 	/**
 	 * Recursive Depth-First Search to evaluate a Kam node
 	 *
@@ -122,14 +186,33 @@ public class BasicHypothesisFinder implements HypothesisFinder {
 	 * @return
 	 */
 	protected DirectionType getDirectionType(RelationshipType relationshipType) {
-		if (relationshipType.isIncreasing()) {
-			return DirectionType.UP;
-		} else if (relationshipType.isDecreasing()) {
-			return DirectionType.DOWN;
-		} else {
-			return DirectionType.AMBIG;
-		}
+		return CausalGraph.getDirectionType(relationshipType);
+	}
+	/**
+	 * Identifies the search in {@link HypothesisCatalog} keys. Finders that
+	 * return the same hypotheses in the same order share a name, and so share
+	 * catalogs; subclasses that change the search must override this.
+	 *
+	 * @return the name of this search
+	 */
+	protected String getCatalogFinderName() {
+		return BasicHypothesisFinder.class.getName();
+	}
+	/**
+	 * @return the relationship types of the edges followed
+	 */
+	protected Set<RelationshipType> getRelationshipTypes() {
+		Set<RelationshipType> ret = EnumSet.noneOf(RelationshipType.class);
+		ret.add(RelationshipType.DECREASES);
+		ret.add(RelationshipType.DIRECTLY_DECREASES);
+		ret.add(RelationshipType.INCREASES);
+		ret.add(RelationshipType.DIRECTLY_INCREASES);
+//		ret.add(RelationshipType.NEGATIVE_CORRELATION);
+//		ret.add(RelationshipType.POSITIVE_CORRELATION);
+		ret.add(RelationshipType.RATE_LIMITING_STEP_OF);
+		return ret;
 	}
+
 	/**
 	 *
 	 * @return
@@ -138,19 +221,28 @@ public class BasicHypothesisFinder implements HypothesisFinder {
 
 		RelationshipTypeFilterCriteria filter = new RelationshipTypeFilterCriteria();
 		filter.setInclude(true);
-		filter.getValues().add(RelationshipType.DECREASES);
-		filter.getValues().add(RelationshipType.DIRECTLY_DECREASES);
-		filter.getValues().add(RelationshipType.INCREASES);
-		filter.getValues().add(RelationshipType.DIRECTLY_INCREASES);
-//		filter.getValues().add(RelationshipType.NEGATIVE_CORRELATION);
-//		filter.getValues().add(RelationshipType.POSITIVE_CORRELATION);
-		filter.getValues().add(RelationshipType.RATE_LIMITING_STEP_OF);
+		filter.getValues().addAll(getRelationshipTypes());
 
 		EdgeFilter edgeFilter = kam.createEdgeFilter();
 		edgeFilter.add(filter);
 
 		return edgeFilter;
 	}
+	/**
+	 * Keep the hypotheses found by {@link #findAll(Kam, int)} in
+	 * {@link HypothesisCatalog}s, so that later searches of the same
+	 * {@link Kam} compilation read them instead.
+	 *
+	 * @param directory catalog directory, or <code>null</code> to search
+	 *            every time
+	 * @param qualifier describes how the {@link Kam} was transformed, e.g.
+	 *            collapsed to a species; <code>null</code> if it was not
+	 */
+	public void setCatalog(File directory, String qualifier) {
+		this.catalogDirectory = directory;
+		this.catalogQualifier = qualifier;
+	}
+
 	/**
 	 *
 	 * @return
@@ -162,4 +254,218 @@ public class BasicHypothesisFinder implements HypothesisFinder {
 		nodeFilter.add(new FunctionTypeFilterCriteria().add(FunctionEnum.RNA_ABUNDANCE));
 		return nodeFilter;
     }
+
+	/**
+	 * The downstream {@link FunctionEnum#RNA_ABUNDANCE} nodes found by a
+	 * search and their directions, indexed by {@link CausalGraph} node.
+	 * Clearing only resets the nodes that were found.
+	 */
+	static final class Downstreams {
+		private static final DirectionType[] DIRECTIONS = DirectionType.values();
+
+		/**
+		 * {@link DirectionType#ordinal()} + 1 of each node; 0 if not found
+		 */
+		private final byte[] directions;
+		private int[] nodes = new int[64];
+		private int size;
+
+		Downstreams(int graphSize) {
+			this.directions = new byte[graphSize];
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * @param i
+		 * @return the <tt>i</tt>th node found
+		 */
+		int getNode(int i) {
+			return nodes[i];
+		}
+
+		/**
+		 * @param node
+		 * @return the direction of a node or <code>null</code> if it was not
+		 *         found
+		 */
+		DirectionType getDirection(int node) {
+			int d = directions[node];
+			return d == 0 ? null : DIRECTIONS[d - 1];
+		}
+
+		void put(int node, DirectionType direction) {
+			if (directions[node] == 0) {
+				if (size == nodes.length) {
+					nodes = Arrays.copyOf(nodes, size * 2);
+				}
+				nodes[size++] = node;
+			}
+			directions[node] = (byte) (direction.ordinal() + 1);
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				directions[nodes[i]] = 0;
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * Layered breadth-first search for the hypothesis of a source node of a
+	 * {@link CausalGraph}.<br>
+	 * Each layer expands the non-RNA nodes first reached in the previous
+	 * layer, so every node is expanded at most once per source and a search
+	 * costs time linear in the edges reached. The depth and downstreams match
+	 * the depth-first search of
+	 * {@link BasicHypothesisFinder#find(Kam, KamNode, int, Map, EdgeFilter, int)}.
+	 * So do the directions of downstreams reached only by edges of one
+	 * direction, or by any {@link DirectionType#AMBIG} edge, as these do not
+	 * depend on the order edges are followed. The depth-first search applies
+	 * {@link DirectionType#compound(DirectionType)} once per path, so a
+	 * downstream reached by both {@link DirectionType#UP} and
+	 * {@link DirectionType#DOWN} edges takes the direction of the last path.
+	 * When a hypothesis has such a downstream its directions are found by
+	 * replaying the depth-first search over the {@link CausalGraph}.<br>
+	 * A search holds scratch buffers sized to the graph and is not
+	 * thread-safe.
+	 */
+	static final class Search {
+		private final CausalGraph graph;
+		private final Downstreams downstreams;
+		/**
+		 * Bit per {@link DirectionType#ordinal()} of the edges reaching each
+		 * downstream
+		 */
+		private final byte[] seen;
+		/**
+		 * Search that last reached each node
+		 */
+		private final int[] reached;
+		private int searches;
+		private int[] frontier = new int[64];
+		private int[] next = new int[64];
+
+		Search(CausalGraph graph) {
+			this.graph = graph;
+			this.downstreams = new Downstreams(graph.size());
+			this.seen = new byte[graph.size()];
+			this.reached = new int[graph.size()];
+		}
+
+		/**
+		 * Find the hypothesis of a source node: the RNA downstreams of the
+		 * first depth at which more than three are found.
+		 *
+		 * @param source source node index
+		 * @param maxDepth
+		 * @return the hypothesis or <code>null</code> if there is none
+		 *         within <tt>maxDepth</tt>
+		 */
+		Hypothesis find(int source, int maxDepth) {
+			for (int i = 0; i < downstreams.size(); i++) {
+				seen[downstreams.getNode(i)] = 0;
+			}
+			downstreams.clear();
+			int marker = ++searches;
+			reached[source] = marker;
+			frontier[0] = source;
+			int frontierSize = 1;
+			for (int currentDepth = 1; currentDepth < maxDepth; currentDepth++) {
+				int nextSize = 0;
+				for (int i = 0; i < frontierSize; i++) {
+					int node = frontier[i];
+					for (int e = graph.edgeStart(node), end = graph.edgeEnd(node); e < end; e++) {
+						int target = graph.getTarget(e);
+						if (graph.isRnaAbundance(target)) {
+							add(target, graph.getDirection(e), currentDepth);
+						} else if (reached[target] != marker) {
+							reached[target] = marker;
+							if (nextSize == next.length) {
+								next = Arrays.copyOf(next, nextSize * 2);
+							}
+							next[nextSize++] = target;
+						}
+					}
+				}
+				// Check for a valid hypothesis
+				if (downstreams.size() > 3) {
+					if (isPathOrderDependent()) {
+						downstreams.clear();
+						replay(source, 1, currentDepth);
+					}
+					// Note: for convention we still use Depth = 2 for directly connected hyps
+					return createHypothesis(source, currentDepth + 1);
+				}
+				int[] swap = frontier;
+				frontier = next;
+				next = swap;
+				frontierSize = nextSize;
+				if (frontierSize == 0) {
+					break;
+				}
+			}
+			return null;
+		}
+
+		private void add(int target, DirectionType direction, int currentDepth) {
+			seen[target] |= 1 << direction.ordinal();
+			DirectionType existing = downstreams.getDirection(target);
+			if (existing == null) {
+				downstreams.put(target, direction);
+			} else if (currentDepth == 1) {
+				downstreams.put(target, existing.evaluate(direction));
+			} else {
+				downstreams.put(target, existing.compound(direction));
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if a downstream was reached by both
+		 *         {@link DirectionType#UP} and {@link DirectionType#DOWN}
+		 *         edges but no {@link DirectionType#AMBIG} edge
+		 */
+		private boolean isPathOrderDependent() {
+			int conflict = 1 << DirectionType.UP.ordinal() | 1 << DirectionType.DOWN.ordinal();
+			for (int i = 0; i < downstreams.size(); i++) {
+				if (seen[downstreams.getNode(i)] == conflict) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Depth-first search of
+		 * {@link BasicHypothesisFinder#find(Kam, KamNode, int, Map, EdgeFilter, int)}
+		 * over the {@link CausalGraph}.
+		 *
+		 * @param node
+		 * @param currentDepth
+		 * @param maxDepth
+		 */
+		private void replay(int node, int currentDepth, int maxDepth) {
+			for (int e = graph.edgeStart(node), end = graph.edgeEnd(node); e < end; e++) {
+				int target = graph.getTarget(e);
+				if (graph.isRnaAbundance(target)) {
+					add(target, graph.getDirection(e), currentDepth);
+				} else if (currentDepth < maxDepth) {
+					replay(target, currentDepth + 1, maxDepth);
+				}
+			}
+		}
+
+		private Hypothesis createHypothesis(int source, int depth) {
+			// All hyps are assumed to be upregulated by default
+			Hypothesis hypothesis = new Hypothesis(graph.getNode(source), DirectionType.UP, depth);
+			for (int i = 0; i < downstreams.size(); i++) {
+				int node = downstreams.getNode(i);
+				hypothesis.getDownstreams().add(new Downstream(graph.getNode(node), downstreams.getDirection(node)));
+			}
+			return hypothesis;
+		}
+	}
 }
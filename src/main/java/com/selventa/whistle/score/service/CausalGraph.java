@@ -0,0 +1,221 @@
+package com.selventa.whistle.score.service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+
+import org.openbel.framework.api.EdgeDirectionType;
+import org.openbel.framework.api.EdgeFilter;
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.api.Kam.KamEdge;
+import org.openbel.framework.api.Kam.KamNode;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.enums.RelationshipType;
+
+import com.selventa.whistle.data.enums.DirectionType;
+
+/**
+ * Immutable snapshot of the causal edges of a {@link Kam}, built once for
+ * traversal.<br>
+ * Nodes are identified by dense indices in {@link KamNode#getId() id} order.
+ * The forward edges passing an {@link EdgeFilter} are held in compressed
+ * sparse row arrays: the edges of node <tt>i</tt> are numbered
+ * {@link #edgeStart(int) edgeStart(i)} to {@link #edgeEnd(int) edgeEnd(i)}
+ * (exclusive) in the order {@link Kam#getAdjacentEdges} returns them, and each
+ * edge holds its target node and the {@link DirectionType} of its
+ * relationship in a byte.<br>
+ * A snapshot may be read by several threads. It does not reflect later changes
+ * to the {@link Kam}.
+ */
+public final class CausalGraph {
+    private static final DirectionType[] DIRECTIONS = DirectionType.values();
+
+    private static final Comparator<KamNode> ID_ORDER = new Comparator<KamNode>() {
+        @Override
+        public int compare(KamNode o1, KamNode o2) {
+            return o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    private final Kam kam;
+    private final KamNode[] nodes;
+    private final int[] ids;
+    private final int[] offsets;
+    private final int[] targets;
+    private final byte[] directions;
+    private final BitSet rnaNodes;
+
+    private CausalGraph(Kam kam, KamNode[] nodes, int[] ids, int[] offsets,
+            int[] targets, byte[] directions, BitSet rnaNodes) {
+        this.kam = kam;
+        this.nodes = nodes;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.directions = directions;
+        this.rnaNodes = rnaNodes;
+    }
+
+    /**
+     * Take a snapshot of a {@link Kam}.
+     *
+     * @param kam
+     * @param edgeFilter selects the edges of the snapshot
+     * @return
+     */
+    public static CausalGraph build(Kam kam, EdgeFilter edgeFilter) {
+        Collection<KamNode> all = kam.getNodes();
+        KamNode[] nodes = all.toArray(new KamNode[all.size()]);
+        Arrays.sort(nodes, ID_ORDER);
+        int[] ids = new int[nodes.length];
+        BitSet rnaNodes = new BitSet(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            ids[i] = nodes[i].getId();
+            if (nodes[i].getFunctionType() == FunctionEnum.RNA_ABUNDANCE) {
+                rnaNodes.set(i);
+            }
+        }
+
+        int[] offsets = new int[nodes.length + 1];
+        int[] targets = new int[Math.max(16, nodes.length)];
+        byte[] directions = new byte[targets.length];
+        int count = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            offsets[i] = count;
+            for (KamEdge e : kam.getAdjacentEdges(nodes[i],
+                    EdgeDirectionType.FORWARD, edgeFilter)) {
+                int target = Arrays.binarySearch(ids, e.getTargetNode()
+                        .getId());
+                if (target < 0) {
+                    continue;
+                }
+                if (count == targets.length) {
+                    targets = Arrays.copyOf(targets, count * 2);
+                    directions = Arrays.copyOf(directions, count * 2);
+                }
+                targets[count] = target;
+                directions[count] = (byte) getDirectionType(
+                        e.getRelationshipType()).ordinal();
+                count++;
+            }
+        }
+        offsets[nodes.length] = count;
+        return new CausalGraph(kam, nodes, ids, offsets, Arrays.copyOf(
+                targets, count), Arrays.copyOf(directions, count), rnaNodes);
+    }
+
+    /**
+     * The direction a relationship carries along an edge.
+     *
+     * @param relationshipType
+     * @return {@link DirectionType#UP} for increasing,
+     *         {@link DirectionType#DOWN} for decreasing and otherwise
+     *         {@link DirectionType#AMBIG}
+     */
+    public static DirectionType getDirectionType(
+            RelationshipType relationshipType) {
+        if (relationshipType.isIncreasing()) {
+            return DirectionType.UP;
+        } else if (relationshipType.isDecreasing()) {
+            return DirectionType.DOWN;
+        } else {
+            return DirectionType.AMBIG;
+        }
+    }
+
+    /**
+     * @return the {@link Kam} of the snapshot
+     */
+    public Kam getKam() {
+        return kam;
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @return the number of edges
+     */
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * @param node node index
+     * @return
+     */
+    public KamNode getNode(int node) {
+        return nodes[node];
+    }
+
+    /**
+     * @param node
+     * @return the index of a node, or -1 if it is not part of the snapshot
+     */
+    public int indexOf(KamNode node) {
+        int ret = Arrays.binarySearch(ids, node.getId());
+        return ret < 0 ? -1 : ret;
+    }
+
+    /**
+     * @param node node index
+     * @return <code>true</code> if the node is a
+     *         {@link FunctionEnum#RNA_ABUNDANCE} node
+     */
+    public boolean isRnaAbundance(int node) {
+        return rnaNodes.get(node);
+    }
+
+    /**
+     * @return the indices of the {@link FunctionEnum#RNA_ABUNDANCE} nodes
+     */
+    public BitSet getRnaAbundanceNodes() {
+        return (BitSet) rnaNodes.clone();
+    }
+
+    /**
+     * @param node node index
+     * @return the first edge of a node
+     */
+    public int edgeStart(int node) {
+        return offsets[node];
+    }
+
+    /**
+     * @param node node index
+     * @return the edge following the last edge of a node
+     */
+    public int edgeEnd(int node) {
+        return offsets[node + 1];
+    }
+
+    /**
+     * @param edge
+     * @return the index of the target node of an edge
+     */
+    public int getTarget(int edge) {
+        return targets[edge];
+    }
+
+    /**
+     * @param edge
+     * @return the {@link DirectionType#ordinal() ordinal} of the direction of
+     *         an edge
+     */
+    public int getDirectionOrdinal(int edge) {
+        return directions[edge];
+    }
+
+    /**
+     * @param edge
+     * @return the direction of an edge
+     */
+    public DirectionType getDirection(int edge) {
+        return DIRECTIONS[directions[edge]];
+    }
+}
@@ -1,14 +1,23 @@
 package com.selventa.whistle.score.service;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.openbel.framework.api.Equivalencer;
 import org.openbel.framework.api.EquivalencerException;
 import org.openbel.framework.api.Kam;
@@ -34,7 +43,8 @@ import com.selventa.whistle.score.model.MappedMeasurement;
  * Default {@link MeasurementMappingService}. This implementation iterates over
  * all {@link Measurement}s and attempts to locate
  * {@link FunctionEnum#RNA_ABUNDANCE} nodes in the specified {@link Kam} for
- * that measurement. As it is possible for multiple measurements to map to the
+ * that measurement. Each distinct identifier and equivalence is resolved only
+ * once. As it is possible for multiple measurements to map to the
  * same {@link KamNode}, the set of measurements for a single node is then
  * collapsed via the provided {@link CollapsingStrategy}.
  *
@@ -45,9 +55,43 @@ public class DefaultMeasurementMappingService implements
     private static final Logger logger = LoggerFactory
             .getLogger(DefaultMeasurementMappingService.class);
 
+    /**
+     * Minimum number of {@link KAMStore} lookups given to each worker thread
+     */
+    private static final int MIN_LOOKUPS_PER_WORKER = 64;
+
+    /**
+     * Minimum number of {@link KamNode}s whose measurements are collapsed by
+     * each worker thread
+     */
+    private static final int MIN_NODES_PER_WORKER = 256;
+
+    /**
+     * Orders node entries by {@link KamNode#getId() node id}
+     */
+    private static final Comparator<Map.Entry<KamNode, Set<Measurement>>> NODE_ID_ORDER = new Comparator<Map.Entry<KamNode, Set<Measurement>>>() {
+        @Override
+        public int compare(Map.Entry<KamNode, Set<Measurement>> o1,
+                Map.Entry<KamNode, Set<Measurement>> o2) {
+            return o1.getKey().getId().compareTo(o2.getKey().getId());
+        }
+    };
+
+    /**
+     * Minimum number of resolved downstream nodes of a {@link Hypothesis}
+     * whose downstreams are part of the population
+     */
+    private static final int MIN_POPULATION_DOWNSTREAMS = 4;
+
     private KAMStore kamStore;
+    private KamMetadataService kamMetadataService;
     private CollapsingStrategy collapsingStrategy;
     private Equivalencer equivalencer = new Equivalencer();
+    private EquivalenceIndex equivalenceIndex;
+    private KAMStoreFactory kamStoreFactory;
+    private int parallelism = 1;
+    private File cacheDirectory;
+    private String cacheQualifier;
 
     /**
      * {@inheritDoc}
@@ -55,62 +99,73 @@ public class DefaultMeasurementMappingService implements
     @Override
     public MappingResult map(Kam kam, Collection<Hypothesis> hypotheses,
             Collection<Measurement> measurements) throws Exception {
-        if (kamStore == null || collapsingStrategy == null) {
-            throw new IllegalStateException(
-                    "kamStore and collapsingStrategy must not be null");
+        return map(resolve(kam, measurements), hypotheses, measurements);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IdentifierMapping resolve(Kam kam,
+            Collection<Measurement> measurements) throws Exception {
+        List<Term> terms = new ArrayList<Term>(measurements.size());
+        for (Measurement m : measurements) {
+            terms.add(m.getTerm());
+        }
+        Resolver resolver = openResolver(kam);
+        try {
+            resolver.add(terms);
+            return resolver.finish();
+        } finally {
+            resolver.close();
+        }
+    }
+
+    /**
+     * Start resolving identifiers to the {@link Kam.KamNode}s of a
+     * {@link Kam} in batches, e.g. while a data file is being parsed.
+     *
+     * @param kam
+     * @return
+     * @throws Exception
+     */
+    public Resolver openResolver(Kam kam) throws Exception {
+        if (kamStore == null) {
+            throw new IllegalStateException("kamStore must not be null");
         }
         // load kam namespaces
-        logger.debug("Retrieving namespaces");
-        Map<String, Namespace> jdbcNsMap = new HashMap<String, Namespace>();
-        for (Namespace n : kamStore.getNamespaces(kam)) {
-            jdbcNsMap.put(n.getResourceLocation(), n);
+        if (kamMetadataService == null) {
+            kamMetadataService = new KamMetadataService(kamStore);
         }
-        logger.debug("Retrieved {} namespaces", jdbcNsMap.size());
+        Map<String, Namespace> jdbcNsMap = kamMetadataService
+                .getNamespaces(kam);
+        KamNodeCache cache = cacheDirectory == null ? null : KamNodeCache
+                .open(cacheDirectory, kam.getKamInfo(), cacheQualifier);
+        return new Resolver(kam, jdbcNsMap, cache);
+    }
 
-        // resolve nodes to the Kam
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MappingResult map(IdentifierMapping mapping,
+            Collection<Hypothesis> hypotheses,
+            Collection<Measurement> measurements) throws Exception {
+        if (collapsingStrategy == null) {
+            throw new IllegalStateException(
+                    "collapsingStrategy must not be null");
+        }
         Map<Kam.KamNode, Set<Measurement>> map = new HashMap<Kam.KamNode, Set<Measurement>>();
-
-        int num = 0;
         for (Measurement m : measurements) {
-            if (++num % 100 == 0) {
-                logger.debug("Processing measurement {}/{}", num, measurements.size());
-            }
-            Term t = m.getTerm();
-            Parameter p = t.getParameters().get(0);
-            SkinnyUUID uuid = null;
-            try {
-                uuid = equivalencer.getUUID(p.getNamespace(), p.getValue());
-            } catch (EquivalencerException e) {
-                logger.warn(
-                        "{} failed to equivalence; will attempt lookup by ns/val",
-                        m.getTerm());
-            }
-            List<Kam.KamNode> nodes = null;
-            try {
-                if (uuid != null) {
-                    nodes = kamStore.getKamNodes(kam,
-                            FunctionEnum.RNA_ABUNDANCE, uuid);
-                } else {
-                    Namespace ns = jdbcNsMap.get(p.getNamespace()
-                            .getResourceLocation());
-                    if (ns != null) {
-                        nodes = kamStore.getKamNodes(kam, ns, p.getValue());
-                    }
-                }
-            } catch (KAMStoreException e) {
-                logger.warn("{} failed to obtain KAMNodes; ignoring",
-                        m.getTerm());
+            List<Kam.KamNode> nodes = mapping.getKamNodes(m);
+            if (nodes == null) {
+                // resolving failed
                 continue;
             }
-            if (nodes == null || nodes.isEmpty()) {
+            if (nodes.isEmpty()) {
                 unmapped(m);
                 continue;
             }
-
-            // XXX Multiple returns should not be possible
-            if (nodes.size() > 1) {
-                logger.info("Found multiple kam nodes for {}", m.getTerm());
-            }
             Kam.KamNode node = nodes.get(0);
 
             Set<Measurement> set = map.get(node);
@@ -124,9 +179,8 @@ public class DefaultMeasurementMappingService implements
         // compute the nodes that are part of the population
         Collection<KamNode> populationNodes = getPopulationNodes(map.keySet(), hypotheses);
 
-        // Collapse the set of Measurements for each KamNode to reduce
-        // the association to 1 MappedMeasurement : 1 KamNode
-        List<MappedMeasurement> mappedMeasurements = new ArrayList<MappedMeasurement>();
+        List<Map.Entry<KamNode, Set<Measurement>>> entries = new ArrayList<Map.Entry<KamNode, Set<Measurement>>>(
+                map.size());
         for (Map.Entry<Kam.KamNode, Set<Measurement>> entry : map.entrySet()) {
             KamNode n = entry.getKey();
             Set<Measurement> m = entry.getValue();
@@ -136,8 +190,16 @@ public class DefaultMeasurementMappingService implements
             }
 
             inPopulation(n);
+            entries.add(entry);
+        }
+        Collections.sort(entries, NODE_ID_ORDER);
 
-            MappedMeasurement mm = collapse(n, m);
+        // Collapse the set of Measurements for each KamNode to reduce
+        // the association to 1 MappedMeasurement : 1 KamNode
+        MappedMeasurement[] collapsed = collapseAll(entries);
+        List<MappedMeasurement> mappedMeasurements = new ArrayList<MappedMeasurement>(
+                collapsed.length);
+        for (MappedMeasurement mm : collapsed) {
             if (mm != null) {
                 mappedMeasurements.add(mm);
             }
@@ -146,6 +208,404 @@ public class DefaultMeasurementMappingService implements
         return new MappingResult(mappedMeasurements, populationNodes.size());
     }
 
+    /**
+     * Collapse the {@link Measurement}s of each {@link KamNode}, on up to
+     * {@link #setParallelism(int) parallelism} threads when there are enough
+     * nodes. Every worker collapses a contiguous range of the entries and
+     * stores each result at the index of its entry, so the order of the
+     * results does not depend on scheduling.
+     *
+     * @param entries
+     * @return the collapsed measurement of each entry, <code>null</code> where
+     *         none was selected
+     * @throws InterruptedException
+     */
+    private MappedMeasurement[] collapseAll(
+            final List<Map.Entry<KamNode, Set<Measurement>>> entries)
+            throws InterruptedException {
+        final MappedMeasurement[] ret = new MappedMeasurement[entries.size()];
+        int workers = Math.min(parallelism, entries.size()
+                / MIN_NODES_PER_WORKER);
+        if (workers <= 1) {
+            for (int i = 0; i < ret.length; i++) {
+                Map.Entry<KamNode, Set<Measurement>> e = entries.get(i);
+                ret[i] = collapse(e.getKey(), e.getValue());
+            }
+            return ret;
+        }
+
+        logger.debug("Collapsing measurements of {} nodes on {} threads",
+                entries.size(), workers);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(workers);
+        for (int i = 0; i < workers; i++) {
+            final int from = (int) ((long) entries.size() * i / workers);
+            final int to = (int) ((long) entries.size() * (i + 1) / workers);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = from; j < to; j++) {
+                        Map.Entry<KamNode, Set<Measurement>> e = entries.get(j);
+                        ret[j] = collapse(e.getKey(), e.getValue());
+                    }
+                    return null;
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return ret;
+    }
+
+    /**
+     * Resolves identifiers to the {@link Kam.KamNode}s of a {@link Kam} in
+     * batches. Each distinct namespace value is equivalenced once and each
+     * distinct equivalence UUID or unequivalenced namespace value is looked up
+     * in the {@link KAMStore} once, rather than once per measurement. Values
+     * found in the cache are neither equivalenced nor looked up.<br>
+     * A resolver is not thread-safe. It holds the {@link KAMStore}s of its
+     * worker threads until it is {@link #close() closed}.
+     */
+    public class Resolver {
+        private final Kam kam;
+        private final Map<String, Namespace> jdbcNsMap;
+        private final KamNodeCache cache;
+        private final Map<String, Resolution> resolutions = new HashMap<String, Resolution>();
+        private KAMStore[] stores;
+        private ForkJoinPool pool;
+        private int hits;
+
+        private Resolver(Kam kam, Map<String, Namespace> jdbcNsMap,
+                KamNodeCache cache) {
+            this.kam = kam;
+            this.jdbcNsMap = jdbcNsMap;
+            this.cache = cache;
+        }
+
+        /**
+         * Resolve the identifiers of {@link Term}s that have not been
+         * resolved yet.
+         *
+         * @param terms
+         * @throws InterruptedException
+         */
+        public void add(Collection<Term> terms) throws InterruptedException {
+            // collect the new distinct namespace values and their equivalences
+            List<Resolution> added = new ArrayList<Resolution>();
+            Map<SkinnyUUID, List<Resolution>> byUUID = new LinkedHashMap<SkinnyUUID, List<Resolution>>();
+            List<Resolution> byValue = new ArrayList<Resolution>();
+            for (Term t : terms) {
+                Parameter p = t.getParameters().get(0);
+                String key = IdentifierMapping.key(t);
+                if (resolutions.containsKey(key)) {
+                    continue;
+                }
+                Resolution r = new Resolution(t);
+                resolutions.put(key, r);
+                if (cache != null) {
+                    List<Kam.KamNode> nodes = findNodes(kam,
+                            cache.get(r.location, p.getValue()));
+                    if (nodes != null) {
+                        r.nodes = nodes;
+                        hits++;
+                        continue;
+                    }
+                }
+                added.add(r);
+                SkinnyUUID uuid = null;
+                if (equivalenceIndex != null
+                        && equivalenceIndex.covers(r.location)) {
+                    uuid = equivalenceIndex.getUUID(r.location, p.getValue());
+                } else {
+                    try {
+                        uuid = equivalencer.getUUID(p.getNamespace(),
+                                p.getValue());
+                    } catch (EquivalencerException e) {
+                        logger.warn(
+                                "{} failed to equivalence; will attempt lookup by ns/val",
+                                t);
+                    }
+                }
+                if (uuid != null) {
+                    List<Resolution> l = byUUID.get(uuid);
+                    if (l == null) {
+                        l = new ArrayList<Resolution>(1);
+                        byUUID.put(uuid, l);
+                    }
+                    l.add(r);
+                } else {
+                    byValue.add(r);
+                }
+            }
+            logger.debug("Resolving {} distinct values: {} equivalences, {} unequivalenced",
+                    new Object[] { added.size(), byUUID.size(),
+                            byValue.size() });
+
+            // look up each distinct equivalence and unequivalenced value
+            List<Lookup> lookups = new ArrayList<Lookup>(byUUID.size()
+                    + byValue.size());
+            for (Map.Entry<SkinnyUUID, List<Resolution>> e : byUUID
+                    .entrySet()) {
+                lookups.add(new Lookup(e.getKey(), null, null, e.getValue()));
+            }
+            for (Resolution r : byValue) {
+                Parameter p = r.term.getParameters().get(0);
+                Namespace ns = p.getNamespace() == null ? null : jdbcNsMap
+                        .get(p.getNamespace().getResourceLocation());
+                lookups.add(new Lookup(null, ns, p.getValue(), Collections
+                        .singletonList(r)));
+            }
+            int workers = kamStoreFactory == null ? 1 : Math.min(
+                    parallelism, lookups.size() / MIN_LOOKUPS_PER_WORKER);
+            if (workers > 1) {
+                lookupParallel(lookups, workers);
+            } else {
+                for (Lookup l : lookups) {
+                    l.run(kamStore, kam);
+                }
+            }
+            // apply in lookup order so that results do not depend on
+            // scheduling
+            for (Lookup l : lookups) {
+                for (Resolution r : l.resolutions) {
+                    r.resolved(l.nodes, l.failed);
+                }
+            }
+
+            if (cache != null) {
+                for (Resolution r : added) {
+                    if (!r.failed) {
+                        cache.put(r.location, r.term.getParameters().get(0)
+                                .getValue(), nodeIds(r.nodes));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Complete resolving, saving the mapping cache, and release the
+         * resources of the resolver.
+         *
+         * @return the identifiers resolved by all batches
+         */
+        public IdentifierMapping finish() {
+            close();
+            if (cache != null) {
+                logger.debug("Resolved {} of {} distinct values from the mapping cache",
+                        hits, resolutions.size());
+                try {
+                    cache.save();
+                } catch (IOException e) {
+                    logger.warn("Failed to save mapping cache", e);
+                }
+            }
+
+            Map<String, List<Kam.KamNode>> nodes = new HashMap<String, List<Kam.KamNode>>(
+                    resolutions.size() * 2);
+            for (Map.Entry<String, Resolution> e : resolutions.entrySet()) {
+                Resolution r = e.getValue();
+                List<Kam.KamNode> n = r.nodes;
+                if (r.failed) {
+                    n = null;
+                } else if (n == null) {
+                    n = Collections.emptyList();
+                }
+                nodes.put(e.getKey(), n);
+            }
+            return new IdentifierMapping(kam, nodes);
+        }
+
+        /**
+         * Release the worker threads and {@link KAMStore}s of the resolver.
+         * Closing a closed resolver has no effect.
+         */
+        public void close() {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+            if (stores != null) {
+                for (KAMStore store : stores) {
+                    if (store != null) {
+                        store.teardown();
+                    }
+                }
+                stores = null;
+            }
+        }
+
+        /**
+         * Run lookups on worker threads, each querying its own
+         * {@link KAMStore} created by the {@link KAMStoreFactory}. Every
+         * worker runs a contiguous range of the lookups. The stores are kept
+         * for later batches. A worker whose store cannot be created runs its
+         * range on the shared {@link KAMStore} instead.
+         *
+         * @param lookups
+         * @param workers number of workers
+         * @throws InterruptedException
+         */
+        private void lookupParallel(final List<Lookup> lookups, int workers)
+                throws InterruptedException {
+            logger.debug("Looking up {} values on {} threads",
+                    lookups.size(), workers);
+            if (stores == null) {
+                stores = new KAMStore[parallelism];
+                pool = new ForkJoinPool(parallelism);
+            }
+            workers = Math.min(workers, stores.length);
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                    workers);
+            for (int i = 0; i < workers; i++) {
+                final int worker = i;
+                final int from = (int) ((long) lookups.size() * i / workers);
+                final int to = (int) ((long) lookups.size() * (i + 1) / workers);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (stores[worker] == null) {
+                            try {
+                                stores[worker] = kamStoreFactory
+                                        .createKamStore();
+                            } catch (Exception e) {
+                                logger.warn(
+                                        "Failed to create KAMStore; looking up on the shared KAMStore",
+                                        e);
+                                // the shared store is used by one worker at a time
+                                synchronized (kamStore) {
+                                    for (Lookup l : lookups.subList(from, to)) {
+                                        l.run(kamStore, kam);
+                                    }
+                                }
+                                return null;
+                            }
+                        }
+                        for (Lookup l : lookups.subList(from, to)) {
+                            l.run(stores[worker], kam);
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * Find cached nodes in a {@link Kam}.
+     *
+     * @param kam
+     * @param ids node ids, may be <code>null</code>
+     * @return the nodes, or <code>null</code> if <tt>ids</tt> is
+     *         <code>null</code> or a node is not in the {@link Kam}
+     */
+    private static List<Kam.KamNode> findNodes(Kam kam, int[] ids) {
+        if (ids == null) {
+            return null;
+        }
+        List<Kam.KamNode> ret = new ArrayList<Kam.KamNode>(ids.length);
+        for (int id : ids) {
+            Kam.KamNode node = kam.findNode(id);
+            if (node == null) {
+                return null;
+            }
+            ret.add(node);
+        }
+        return ret;
+    }
+
+    private static int[] nodeIds(List<Kam.KamNode> nodes) {
+        if (nodes == null) {
+            return new int[0];
+        }
+        int[] ret = new int[nodes.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = nodes.get(i).getId();
+        }
+        return ret;
+    }
+
+    private static String location(Parameter p) {
+        return p.getNamespace() == null ? "" : p.getNamespace()
+                .getResourceLocation();
+    }
+
+    /**
+     * A {@link KAMStore} query for the {@link Kam.KamNode}s of an equivalence
+     * or of an unequivalenced namespace value
+     */
+    private static final class Lookup {
+        private final SkinnyUUID uuid;
+        private final Namespace ns;
+        private final String value;
+        private final List<Resolution> resolutions;
+        private List<Kam.KamNode> nodes;
+        private boolean failed;
+
+        private Lookup(SkinnyUUID uuid, Namespace ns, String value,
+                List<Resolution> resolutions) {
+            this.uuid = uuid;
+            this.ns = ns;
+            this.value = value;
+            this.resolutions = resolutions;
+        }
+
+        private void run(KAMStore store, Kam kam) {
+            try {
+                if (uuid != null) {
+                    nodes = store.getKamNodes(kam, FunctionEnum.RNA_ABUNDANCE,
+                            uuid);
+                } else if (ns != null) {
+                    nodes = store.getKamNodes(kam, ns, value);
+                }
+            } catch (KAMStoreException e) {
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * The {@link Kam.KamNode}s resolved for a namespace value
+     */
+    private static final class Resolution {
+        private final Term term;
+        private final String location;
+        private List<Kam.KamNode> nodes;
+        private boolean failed;
+
+        private Resolution(Term term) {
+            this.term = term;
+            this.location = location(term.getParameters().get(0));
+        }
+
+        private void resolved(List<Kam.KamNode> nodes, boolean failed) {
+            this.nodes = nodes;
+            this.failed = failed;
+            if (failed) {
+                logger.warn("{} failed to obtain KAMNodes; ignoring", term);
+            } else if (nodes != null && nodes.size() > 1) {
+                // XXX Multiple returns should not be possible
+                logger.info("Found multiple kam nodes for {}", term);
+            }
+        }
+    }
+
     /**
      * Handle a {@link Measurement} not mapped to any {@link Kam.KamNode}
      * @param measurement
@@ -169,7 +629,9 @@ public class DefaultMeasurementMappingService implements
     }
 
     /**
-     * Collapse a {@link Set} of {@link Measurement}s for a single {@link Kam.KamNode}
+     * Collapse a {@link Set} of {@link Measurement}s for a single {@link Kam.KamNode}.
+     * With a {@link #setParallelism(int) parallelism} above 1 this is called
+     * concurrently for different nodes, so overrides must be thread-safe.
      * @param kamNode
      * @param measurements
      * @return the {@link Measurement} to use, or <code>null</code> if none is
@@ -182,25 +644,49 @@ public class DefaultMeasurementMappingService implements
                 : null;
     }
 
+    /**
+     * Compute the population: the resolved nodes downstream of a
+     * {@link Hypothesis} that has at least {@link #MIN_POPULATION_DOWNSTREAMS}
+     * resolved downstream nodes.<br>
+     * Resolved nodes are given dense indices so that each {@link Hypothesis}
+     * is reduced to a {@link BitSet} of its resolved downstreams, which is
+     * counted and merged into the population without creating sets of
+     * nodes.
+     *
+     * @param resolvedNodes
+     * @param hypotheses
+     * @return
+     */
     protected Collection<KamNode> getPopulationNodes(Collection<KamNode> resolvedNodes,
             Collection<Hypothesis> hypotheses) {
-        Set<KamNode> hypNodes = new HashSet<KamNode>();
+        List<KamNode> nodes = new ArrayList<KamNode>(resolvedNodes);
+        Map<KamNode, Integer> index = new HashMap<KamNode, Integer>(
+                nodes.size() * 2);
+        for (int i = 0; i < nodes.size(); i++) {
+            index.put(nodes.get(i), i);
+        }
+
+        BitSet population = new BitSet(nodes.size());
+        BitSet downstreams = new BitSet(nodes.size());
         for (Hypothesis hyp : hypotheses) {
-            Set<KamNode> downstreamNodes = new HashSet<KamNode>();
             for (Downstream d : hyp.getDownstreams()) {
-                downstreamNodes.add(d.getKamNode());
+                Integer i = index.get(d.getKamNode());
+                if (i != null) {
+                    downstreams.set(i);
+                }
             }
-
-            @SuppressWarnings("unchecked")
-            Collection<KamNode> possibles = CollectionUtils.intersection(
-                    downstreamNodes, resolvedNodes);
-
-            if (possibles.size() >= 4) {
-                hypNodes.addAll(possibles);
+            if (downstreams.cardinality() >= MIN_POPULATION_DOWNSTREAMS) {
+                population.or(downstreams);
             }
+            downstreams.clear();
         }
 
-        return hypNodes;
+        Set<KamNode> ret = new HashSet<KamNode>(population.cardinality() * 2);
+        for (int i = population.nextSetBit(0); i >= 0; i = population
+                .nextSetBit(i + 1)) {
+            ret.add(nodes.get(i));
+        }
+        return ret;
     }
 
     /**
@@ -216,6 +702,68 @@ public class DefaultMeasurementMappingService implements
         this.kamStore = kamStore;
     }
 
+    /**
+     * Set the {@link KamMetadataService} providing the namespaces of a
+     * {@link Kam}. By default one is created for the injected
+     * {@link KAMStore}.
+     *
+     * @param kamMetadataService
+     */
+    public void setKamMetadataService(KamMetadataService kamMetadataService) {
+        this.kamMetadataService = kamMetadataService;
+    }
+
+    /**
+     * Set the {@link KAMStoreFactory} that creates the {@link KAMStore} of
+     * each worker thread when looking up nodes in parallel.
+     *
+     * @param kamStoreFactory the factory, or <code>null</code> to look up
+     *            all nodes with the injected {@link KAMStore}
+     */
+    public void setKamStoreFactory(KAMStoreFactory kamStoreFactory) {
+        this.kamStoreFactory = kamStoreFactory;
+    }
+
+    /**
+     * Set the maximum number of threads looking up nodes and collapsing
+     * measurements. More than one thread only looks up nodes with a
+     * {@link KAMStoreFactory}.
+     *
+     * @param parallelism
+     * @throws InvalidArgument if <tt>parallelism</tt> is less than 1
+     */
+    public void setParallelism(int parallelism) throws InvalidArgument {
+        if (parallelism < 1) {
+            throw new InvalidArgument("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set the {@link EquivalenceIndex} used in place of the
+     * {@link Equivalencer} for the namespaces it covers.
+     *
+     * @param equivalenceIndex the index, or <code>null</code> to always use
+     *            the {@link Equivalencer}
+     */
+    public void setEquivalenceIndex(EquivalenceIndex equivalenceIndex) {
+        this.equivalenceIndex = equivalenceIndex;
+    }
+
+    /**
+     * Enable the on-disk {@link KamNodeCache} of resolved nodes.
+     *
+     * @param directory the cache directory, or <code>null</code> to disable
+     *            the cache
+     * @param qualifier describes how the {@link Kam} being mapped to was
+     *            transformed, e.g. collapsed to a species; <code>null</code>
+     *            if it was not
+     */
+    public void setMappingCache(File directory, String qualifier) {
+        this.cacheDirectory = directory;
+        this.cacheQualifier = qualifier;
+    }
+
     /**
      * Inject the {@link CollapsingStrategy} to be used.
      *
@@ -0,0 +1,484 @@
+package com.selventa.whistle.score.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.openbel.framework.api.Equivalencer;
+import org.openbel.framework.common.InvalidArgument;
+import org.openbel.framework.common.protonetwork.model.SkinnyUUID;
+
+import com.selventa.whistle.util.AtomicFileOutputStream;
+
+/**
+ * Read-only index of the equivalence {@link SkinnyUUID} of namespace values,
+ * used in place of {@link Equivalencer} lookups for the namespaces it covers.
+ * <br>
+ * Each namespace is an open addressing hash table over a single
+ * {@link ByteBuffer}, so a lookup is a probe of primitive slots and an index
+ * written with {@link #write(File)} is used directly from a memory map by
+ * {@link #open(File)}.
+ * <p>
+ * Layout, big-endian, followed by a CRC-32 of all preceding bytes:
+ *
+ * <pre>
+ * magic, version       int, int
+ * namespace count      int
+ * namespaces           (int length, UTF-8 resource location, int entries,
+ *                      int capacity, int offset)...
+ * namespace sections   int[capacity] slots (entry + 1, 0 if empty),
+ *                      int[entries] value hashes,
+ *                      long[2 * entries] UUID bits,
+ *                      int[entries + 1] value offsets, UTF-8 values
+ * </pre>
+ *
+ * Section offsets are absolute.
+ * </p>
+ */
+public final class EquivalenceIndex {
+    private static final int MAGIC = 0x57484551; // WHEQ
+    private static final int VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String VALUES_SECTION = "[Values]";
+    private static final String DELIMITER_PROPERTY = "DelimiterString=";
+
+    private final ByteBuffer buffer;
+    private final Map<String, Section> sections;
+
+    private EquivalenceIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < 16 || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an equivalence index");
+        }
+        try {
+            this.sections = readHeader(buffer);
+        } catch (RuntimeException e) {
+            // malformed header
+            throw new IOException("Corrupt equivalence index", e);
+        }
+    }
+
+    /**
+     * Read the namespace directory, checking each section lies within the
+     * buffer.
+     *
+     * @param buffer
+     * @return the sections by resource location
+     * @throws IOException if the header is inconsistent
+     */
+    private static Map<String, Section> readHeader(ByteBuffer buffer)
+            throws IOException {
+        ByteBuffer b = buffer.duplicate();
+        b.position(8);
+        b.limit(buffer.limit() - 4);
+        int count = b.getInt();
+        Map<String, Section> ret = new HashMap<String, Section>();
+        for (int i = 0; i < count; i++) {
+            int length = b.getInt();
+            if (length < 0 || length > b.remaining()) {
+                throw new IOException("Corrupt equivalence index");
+            }
+            byte[] location = new byte[length];
+            b.get(location);
+            int entries = b.getInt();
+            int capacity = b.getInt();
+            int offset = b.getInt();
+            if (entries < 0 || Integer.bitCount(capacity) != 1
+                    || capacity <= entries || offset < b.position()) {
+                throw new IOException("Corrupt equivalence index");
+            }
+            // start of the UTF-8 values, preceded by their total length
+            long values = offset + 4L * capacity + 24L * entries + 4;
+            if (values > b.limit()) {
+                throw new IOException("Corrupt equivalence index");
+            }
+            int valuesLength = buffer.getInt((int) values - 4);
+            if (valuesLength < 0 || values + valuesLength > b.limit()) {
+                throw new IOException("Corrupt equivalence index");
+            }
+            ret.put(new String(location, UTF8), new Section(entries,
+                    capacity, offset));
+        }
+        return ret;
+    }
+
+    /**
+     * Open an index written by {@link #write(File)}.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static EquivalenceIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Equivalence index is too large");
+            }
+            if (length < 16) {
+                throw new IOException("Not an equivalence index");
+            }
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    length);
+            if (checksum(buf, (int) length - 4) != buf.getInt((int) length - 4)) {
+                throw new IOException("Corrupt equivalence index");
+            }
+            return new EquivalenceIndex(buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write the index so it can be reopened with {@link #open(File)}. The
+     * file is replaced with an {@link AtomicFileOutputStream}, so concurrent
+     * readers never see a partial file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer b = buffer.duplicate();
+            b.clear();
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param location namespace resource location
+     * @return <code>true</code> if the index holds the equivalences of the
+     *         namespace
+     */
+    public boolean covers(String location) {
+        return sections.containsKey(location);
+    }
+
+    /**
+     * @return the resource locations of the indexed namespaces
+     */
+    public List<String> getNamespaces() {
+        return Collections.unmodifiableList(new ArrayList<String>(sections
+                .keySet()));
+    }
+
+    /**
+     * @return the number of indexed values
+     */
+    public int size() {
+        int ret = 0;
+        for (Section s : sections.values()) {
+            ret += s.entries;
+        }
+        return ret;
+    }
+
+    /**
+     * Look up the equivalence of a namespace value.
+     *
+     * @param location namespace resource location
+     * @param value
+     * @return the {@link SkinnyUUID} or <code>null</code> if the value or
+     *         namespace is not indexed
+     */
+    public SkinnyUUID getUUID(String location, String value) {
+        Section s = sections.get(location);
+        if (s == null || s.entries == 0) {
+            return null;
+        }
+        int hash = value.hashCode();
+        byte[] bytes = null;
+        int mask = s.capacity - 1;
+        int slot = mix(hash) & mask;
+        for (int i = 0; i < s.capacity; i++, slot = (slot + 1) & mask) {
+            int e = buffer.getInt(s.offset + slot * 4) - 1;
+            if (e == -1) {
+                return null;
+            }
+            if (buffer.getInt(s.hashes + e * 4) != hash) {
+                continue;
+            }
+            if (bytes == null) {
+                bytes = value.getBytes(UTF8);
+            }
+            if (valueEquals(s, e, bytes)) {
+                int u = s.uuids + e * 16;
+                return new SkinnyUUID(buffer.getLong(u), buffer.getLong(u + 8));
+            }
+        }
+        return null;
+    }
+
+    private boolean valueEquals(Section s, int e, byte[] bytes) {
+        int start = buffer.getInt(s.valueOffsets + e * 4);
+        int end = buffer.getInt(s.valueOffsets + e * 4 + 4);
+        if (end - start != bytes.length) {
+            return false;
+        }
+        int p = s.values + start;
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(p + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checksum(ByteBuffer buf, int length) {
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[64 * 1024];
+        ByteBuffer view = buf.duplicate();
+        view.position(0);
+        for (int p = 0; p < length; p += b.length) {
+            int n = Math.min(b.length, length - p);
+            view.get(b, 0, n);
+            crc.update(b, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Section {
+        private final int entries;
+        private final int capacity;
+        private final int offset;
+        private final int hashes;
+        private final int uuids;
+        private final int valueOffsets;
+        private final int values;
+
+        private Section(int entries, int capacity, int offset) {
+            this.entries = entries;
+            this.capacity = capacity;
+            this.offset = offset;
+            this.hashes = offset + capacity * 4;
+            this.uuids = hashes + entries * 4;
+            this.valueOffsets = uuids + entries * 16;
+            this.values = valueOffsets + (entries + 1) * 4;
+        }
+    }
+
+    /**
+     * Builds an {@link EquivalenceIndex}. A builder is not thread-safe.
+     */
+    public static class Builder {
+        private final Map<String, Map<String, SkinnyUUID>> namespaces = new LinkedHashMap<String, Map<String, SkinnyUUID>>();
+
+        /**
+         * Add the equivalence of a namespace value, replacing any previous
+         * equivalence of the value.
+         *
+         * @param location namespace resource location
+         * @param value
+         * @param uuid
+         * @return this builder
+         * @throws InvalidArgument if an argument is <code>null</code>
+         */
+        public Builder add(String location, String value, SkinnyUUID uuid)
+                throws InvalidArgument {
+            if (location == null || value == null || uuid == null) {
+                throw new InvalidArgument(
+                        "location, value and uuid must not be null");
+            }
+            Map<String, SkinnyUUID> values = namespaces.get(location);
+            if (values == null) {
+                values = new LinkedHashMap<String, SkinnyUUID>();
+                namespaces.put(location, values);
+            }
+            values.put(value, uuid);
+            return this;
+        }
+
+        /**
+         * Add the equivalences of a BEL equivalence (<tt>.beleq</tt>)
+         * document.
+         *
+         * @param location resource location of the namespace the document
+         *            equivalences
+         * @param beleq
+         * @return this builder
+         * @throws IOException if the document cannot be read or a value is
+         *             malformed
+         */
+        public Builder read(String location, File beleq) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new BufferedInputStream(new FileInputStream(beleq)), UTF8));
+            try {
+                String delimiter = "|";
+                boolean values = false;
+                int lineNumber = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (!values) {
+                        line = line.trim();
+                        if (line.startsWith(DELIMITER_PROPERTY)) {
+                            delimiter = line.substring(DELIMITER_PROPERTY
+                                    .length());
+                        } else if (VALUES_SECTION.equals(line)) {
+                            values = true;
+                        }
+                        continue;
+                    }
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    int idx = line.lastIndexOf(delimiter);
+                    if (idx == -1) {
+                        throw new IOException(beleq + " line " + lineNumber
+                                + ": missing delimiter");
+                    }
+                    UUID uuid;
+                    try {
+                        uuid = UUID.fromString(line.substring(
+                                idx + delimiter.length()).trim());
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(beleq + " line " + lineNumber
+                                + ": invalid UUID");
+                    }
+                    add(location, line.substring(0, idx), new SkinnyUUID(
+                            uuid.getMostSignificantBits(),
+                            uuid.getLeastSignificantBits()));
+                }
+                if (!values) {
+                    throw new IOException(beleq + " has no " + VALUES_SECTION
+                            + " section");
+                }
+                // a document without values still marks its namespace covered
+                if (!namespaces.containsKey(location)) {
+                    namespaces.put(location,
+                            new LinkedHashMap<String, SkinnyUUID>());
+                }
+            } finally {
+                reader.close();
+            }
+            return this;
+        }
+
+        /**
+         * @return the index of the equivalences added
+         */
+        public EquivalenceIndex build() {
+            try {
+                return new EquivalenceIndex(ByteBuffer.wrap(encode()));
+            } catch (IOException e) {
+                // cannot happen for an encoded index
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] encode() throws IOException {
+            List<byte[]> locations = new ArrayList<byte[]>();
+            int headerSize = 12;
+            for (String location : namespaces.keySet()) {
+                byte[] b = location.getBytes(UTF8);
+                locations.add(b);
+                headerSize += 4 + b.length + 12;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream sections = new DataOutputStream(
+                    new BufferedOutputStream(bytes));
+            int[] entries = new int[namespaces.size()];
+            int[] capacities = new int[namespaces.size()];
+            int[] offsets = new int[namespaces.size()];
+            int n = 0;
+            for (Map<String, SkinnyUUID> values : namespaces.values()) {
+                int count = values.size();
+                int capacity = Integer.highestOneBit(Math.max(count * 2, 2) - 1) << 1;
+                entries[n] = count;
+                capacities[n] = capacity;
+                offsets[n] = headerSize + sections.size();
+
+                int[] slots = new int[capacity];
+                int[] hashes = new int[count];
+                byte[][] encoded = new byte[count][];
+                int e = 0;
+                for (String value : values.keySet()) {
+                    hashes[e] = value.hashCode();
+                    encoded[e] = value.getBytes(UTF8);
+                    int slot = mix(hashes[e]) & (capacity - 1);
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & (capacity - 1);
+                    }
+                    slots[slot] = ++e;
+                }
+                for (int s : slots) {
+                    sections.writeInt(s);
+                }
+                for (int h : hashes) {
+                    sections.writeInt(h);
+                }
+                for (SkinnyUUID u : values.values()) {
+                    sections.writeLong(u.getMostSignificantBits());
+                    sections.writeLong(u.getLeastSignificantBits());
+                }
+                int offset = 0;
+                sections.writeInt(offset);
+                for (byte[] b : encoded) {
+                    offset += b.length;
+                    sections.writeInt(offset);
+                }
+                for (byte[] b : encoded) {
+                    sections.write(b);
+                }
+                n++;
+            }
+            sections.flush();
+
+            ByteArrayOutputStream ret = new ByteArrayOutputStream(
+                    headerSize + bytes.size() + 4);
+            CheckedOutputStream cos = new CheckedOutputStream(ret,
+                    new CRC32());
+            DataOutputStream out = new DataOutputStream(cos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(namespaces.size());
+            for (int i = 0; i < locations.size(); i++) {
+                out.writeInt(locations.get(i).length);
+                out.write(locations.get(i));
+                out.writeInt(entries[i]);
+                out.writeInt(capacities[i]);
+                out.writeInt(offsets[i]);
+            }
+            bytes.writeTo(out);
+            out.flush();
+            new DataOutputStream(ret).writeInt((int) cos.getChecksum()
+                    .getValue());
+            return ret.toByteArray();
+        }
+    }
+}
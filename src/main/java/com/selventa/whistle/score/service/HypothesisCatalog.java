@@ -0,0 +1,463 @@
+package com.selventa.whistle.score.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.api.Kam.KamNode;
+import org.openbel.framework.api.internal.KAMCatalogDao.KamInfo;
+import org.openbel.framework.common.InvalidArgument;
+import org.openbel.framework.common.enums.RelationshipType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.selventa.whistle.data.enums.DirectionType;
+import com.selventa.whistle.score.model.Downstream;
+import com.selventa.whistle.score.model.Hypothesis;
+import com.selventa.whistle.util.AtomicFileOutputStream;
+
+/**
+ * Memory-mapped file of the {@link Hypothesis hypotheses} found in a
+ * {@link Kam}, so that later runs need not search the KAM again.<br>
+ * A catalog is identified by a {@link Key}: the KAM name and time it was last
+ * compiled, an optional qualifier describing how the KAM was transformed, the
+ * {@link HypothesisFinder}, the maximum depth searched and the relationship
+ * types followed. The file holds
+ * the key followed by flat tables: the node id, depth and first downstream of
+ * each hypothesis, then the node id and {@link DirectionType} of each
+ * downstream, and end with a CRC-32 of their contents. Catalogs are replaced
+ * with an {@link AtomicFileOutputStream}, so several processes may share a
+ * catalog through the page cache while another process replaces it.
+ */
+public final class HypothesisCatalog {
+    private static final Logger logger = LoggerFactory
+            .getLogger(HypothesisCatalog.class);
+
+    private static final int MAGIC = 0x57484843; // WHHC
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".hyp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final DirectionType[] DIRECTIONS = DirectionType.values();
+
+    private final ByteBuffer buffer;
+    private final Key key;
+    private final int count;
+    private final int downstreamCount;
+    /**
+     * Offset of the hypothesis table: node id, depth and first downstream
+     */
+    private final int hypotheses;
+    /**
+     * Offset of the downstream node ids, followed by a byte per downstream
+     * holding the {@link DirectionType#ordinal()}
+     */
+    private final int downstreams;
+
+    private HypothesisCatalog(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < 12 || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a hypothesis catalog");
+        }
+        ByteBuffer b = buffer.duplicate();
+        b.position(8);
+        try {
+            String kam = readString(b);
+            long lastCompiled = b.getLong();
+            String finder = readString(b);
+            int maxDepth = b.getInt();
+            String relationshipTypes = readString(b);
+            this.key = new Key(kam, lastCompiled, finder, maxDepth,
+                    relationshipTypes);
+            this.count = b.getInt();
+            this.downstreamCount = b.getInt();
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt hypothesis catalog", e);
+        }
+        this.hypotheses = b.position();
+        if (count < 0 || downstreamCount < 0
+                || hypotheses + count * 12L + downstreamCount * 5L + 4 != buffer
+                        .limit()) {
+            throw new IOException("Corrupt hypothesis catalog");
+        }
+        this.downstreams = hypotheses + count * 12;
+    }
+
+    /**
+     * Open a catalog written by {@link #write(File, Key, List)}.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not a catalog
+     */
+    public static HypothesisCatalog open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Hypothesis catalog is too large");
+            }
+            if (length < 12) {
+                throw new IOException("Not a hypothesis catalog");
+            }
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    length);
+            if (checksum(buf, (int) length - 4) != buf.getInt((int) length - 4)) {
+                throw new IOException("Corrupt hypothesis catalog");
+            }
+            return new HypothesisCatalog(buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write the hypotheses of a {@link Kam} to the catalog file of a key in a
+     * directory, removing the catalogs of earlier compilations of the KAM.
+     *
+     * @param directory
+     * @param key
+     * @param hyps
+     * @return the catalog file
+     * @throws IOException
+     */
+    public static File write(File directory, Key key, List<Hypothesis> hyps)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        File file = new File(directory, key.getFileName());
+        AtomicFileOutputStream fos = new AtomicFileOutputStream(file);
+        try {
+            CheckedOutputStream cos = new CheckedOutputStream(
+                    new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(cos);
+            int downstreamCount = 0;
+            for (Hypothesis h : hyps) {
+                downstreamCount += h.getDownstreams().size();
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, key.kam);
+            out.writeLong(key.lastCompiled);
+            writeString(out, key.finder);
+            out.writeInt(key.maxDepth);
+            writeString(out, key.relationshipTypes);
+            out.writeInt(hyps.size());
+            out.writeInt(downstreamCount);
+            int first = 0;
+            for (Hypothesis h : hyps) {
+                out.writeInt(h.getKamNode().getId());
+                out.writeInt(h.getDepth());
+                out.writeInt(first);
+                first += h.getDownstreams().size();
+            }
+            for (Hypothesis h : hyps) {
+                for (Downstream d : h.getDownstreams()) {
+                    out.writeInt(d.getKamNode().getId());
+                }
+            }
+            for (Hypothesis h : hyps) {
+                for (Downstream d : h.getDownstreams()) {
+                    out.writeByte(d.getDirectionType().ordinal());
+                }
+            }
+            out.writeInt((int) cos.getChecksum().getValue());
+            out.flush();
+            fos.commit();
+        } finally {
+            fos.close();
+        }
+
+        // remove earlier compilations
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(key.getPrefix()) && name.endsWith(SUFFIX)
+                        && !f.equals(file) && isStale(f, key)) {
+                    logger.debug("Removing stale hypothesis catalog {}", f);
+                    f.delete();
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return the key of the catalog
+     */
+    public Key getKey() {
+        return key;
+    }
+
+    /**
+     * @return the number of hypotheses
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Create the hypotheses of the catalog.
+     *
+     * @param kam the {@link Kam} the catalog was written for
+     * @return
+     * @throws IOException if a node of the catalog is not part of the
+     *             {@link Kam} or the catalog is inconsistent
+     */
+    public List<Hypothesis> getHypotheses(Kam kam) throws IOException {
+        Map<Integer, KamNode> nodes = new HashMap<Integer, KamNode>();
+        List<Hypothesis> ret = new ArrayList<Hypothesis>(count);
+        int directions = downstreams + downstreamCount * 4;
+        for (int i = 0; i < count; i++) {
+            int offset = hypotheses + i * 12;
+            int depth = buffer.getInt(offset + 4);
+            int first = buffer.getInt(offset + 8);
+            int end = i + 1 < count ? buffer.getInt(offset + 20)
+                    : downstreamCount;
+            if (depth < 1 || depth > key.maxDepth || first < 0
+                    || first > end || end > downstreamCount
+                    || (i == 0 && first != 0)) {
+                throw new IOException("Corrupt hypothesis catalog");
+            }
+            // All hyps are assumed to be upregulated by default
+            Hypothesis h = new Hypothesis(findNode(kam, nodes,
+                    buffer.getInt(offset)), DirectionType.UP, depth);
+            for (int j = first; j < end; j++) {
+                int direction = buffer.get(directions + j);
+                if (direction < 0 || direction >= DIRECTIONS.length) {
+                    throw new IOException("Corrupt hypothesis catalog");
+                }
+                h.getDownstreams().add(
+                        new Downstream(findNode(kam, nodes,
+                                buffer.getInt(downstreams + j * 4)),
+                                DIRECTIONS[direction]));
+            }
+            ret.add(h);
+        }
+        return ret;
+    }
+
+    private static KamNode findNode(Kam kam, Map<Integer, KamNode> nodes,
+            int id) throws IOException {
+        KamNode ret = nodes.get(id);
+        if (ret == null) {
+            ret = kam.findNode(id);
+            if (ret == null) {
+                throw new IOException("Node " + id
+                        + " of the hypothesis catalog is not part of the KAM");
+            }
+            nodes.put(id, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @return <code>true</code> if the file is a catalog of an earlier
+     *         compilation of the key's KAM, in this or an earlier version with
+     *         the same header
+     */
+    private static boolean isStale(File f, Key key) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f)));
+            if (in.readInt() != MAGIC || in.readInt() > VERSION) {
+                return false;
+            }
+            byte[] kam = key.kam.getBytes(UTF8);
+            if (in.readInt() != kam.length) {
+                return false;
+            }
+            byte[] b = new byte[kam.length];
+            in.readFully(b);
+            return Arrays.equals(b, kam) && in.readLong() < key.lastCompiled;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close hypothesis catalog", e);
+                }
+            }
+        }
+    }
+
+    private static int checksum(ByteBuffer buf, int length) {
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[64 * 1024];
+        ByteBuffer view = buf.duplicate();
+        view.position(0);
+        for (int p = 0; p < length; p += b.length) {
+            int n = Math.min(b.length, length - p);
+            view.get(b, 0, n);
+            crc.update(b, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer b) {
+        int length = b.getInt();
+        if (length < 0 || length > b.remaining()) {
+            throw new IndexOutOfBoundsException("Invalid string length "
+                    + length);
+        }
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Identifies the hypotheses of a search of a {@link Kam}
+     */
+    public static final class Key {
+        private final String kam;
+        private final long lastCompiled;
+        private final String finder;
+        private final int maxDepth;
+        private final String relationshipTypes;
+
+        Key(String kam, long lastCompiled, String finder, int maxDepth,
+                String relationshipTypes) {
+            this.kam = kam;
+            this.lastCompiled = lastCompiled;
+            this.finder = finder;
+            this.maxDepth = maxDepth;
+            this.relationshipTypes = relationshipTypes;
+        }
+
+        /**
+         * @param info the KAM
+         * @param qualifier describes how the KAM was transformed, or
+         *            <code>null</code> if it was not
+         * @param finder identifies the {@link HypothesisFinder}, as finders
+         *            may differ in the order and directions of their results
+         * @param maxDepth
+         * @param relationshipTypes the relationship types followed
+         * @throws InvalidArgument if <tt>info</tt>, <tt>finder</tt> or
+         *             <tt>relationshipTypes</tt> is <code>null</code>
+         */
+        public Key(KamInfo info, String qualifier, String finder,
+                int maxDepth, Collection<RelationshipType> relationshipTypes)
+                throws InvalidArgument {
+            if (info == null || finder == null || relationshipTypes == null) {
+                throw new InvalidArgument(
+                        "info, finder and relationshipTypes must not be null");
+            }
+            this.kam = qualifier == null ? info.getName() : info.getName()
+                    + '/' + qualifier;
+            this.lastCompiled = info.getLastCompiled() == null ? 0L : info
+                    .getLastCompiled().getTime();
+            this.finder = finder;
+            this.maxDepth = maxDepth;
+            StringBuilder sb = new StringBuilder();
+            for (String t : new TreeSet<String>(names(relationshipTypes))) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(t);
+            }
+            this.relationshipTypes = sb.toString();
+        }
+
+        private static List<String> names(
+                Collection<RelationshipType> relationshipTypes) {
+            List<String> ret = new ArrayList<String>(relationshipTypes.size());
+            for (RelationshipType t : relationshipTypes) {
+                ret.add(t.name());
+            }
+            return ret;
+        }
+
+        /**
+         * @return the file name of the catalog of this key
+         */
+        public String getFileName() {
+            int search = 31 * finder.hashCode() + relationshipTypes.hashCode();
+            return getPrefix() + lastCompiled + '-' + maxDepth + '-'
+                    + Integer.toHexString(search) + SUFFIX;
+        }
+
+        /**
+         * @return the file name prefix shared by the catalogs of all
+         *         compilations of the KAM
+         */
+        private String getPrefix() {
+            StringBuilder sb = new StringBuilder(kam.length() + 1);
+            for (int i = 0; i < kam.length(); i++) {
+                char c = kam.charAt(i);
+                sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '_'
+                        ? c : '_');
+            }
+            return sb.append('-').toString();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key rhs = (Key) obj;
+            return kam.equals(rhs.kam) && lastCompiled == rhs.lastCompiled
+                    && finder.equals(rhs.finder) && maxDepth == rhs.maxDepth
+                    && relationshipTypes.equals(rhs.relationshipTypes);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            int h = kam.hashCode();
+            h = 31 * h + (int) (lastCompiled ^ (lastCompiled >>> 32));
+            h = 31 * h + finder.hashCode();
+            h = 31 * h + maxDepth;
+            return 31 * h + relationshipTypes.hashCode();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return kam + '@' + lastCompiled + ' ' + finder + " depth "
+                    + maxDepth + " ["
+                    + relationshipTypes + ']';
+        }
+    }
+}
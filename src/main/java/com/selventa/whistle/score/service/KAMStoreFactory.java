@@ -0,0 +1,18 @@
+package com.selventa.whistle.score.service;
+
+import org.openbel.framework.api.KAMStore;
+
+/**
+ * Creates {@link KAMStore}s for threads that cannot share one.
+ */
+public interface KAMStoreFactory {
+
+    /**
+     * Create a {@link KAMStore} with its own connection. The caller tears it
+     * down when done.
+     *
+     * @return
+     * @throws Exception
+     */
+    KAMStore createKamStore() throws Exception;
+}
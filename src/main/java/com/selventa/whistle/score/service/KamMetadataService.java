@@ -0,0 +1,143 @@
+package com.selventa.whistle.score.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openbel.framework.api.KAMStore;
+import org.openbel.framework.api.KAMStoreException;
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.api.internal.KAMCatalogDao.KamInfo;
+import org.openbel.framework.api.internal.KAMStoreDaoImpl.Namespace;
+import org.openbel.framework.common.InvalidArgument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe cache of the metadata of {@link Kam}s: their {@link KamInfo}
+ * and {@link Namespace}s, read from a {@link KAMStore} once per KAM
+ * compilation.<br>
+ * Metadata is keyed by KAM name and discarded when a {@link Kam} or
+ * {@link KamInfo} compiled at a different time is seen, or when
+ * {@link #invalidate(String)} is called.
+ */
+public class KamMetadataService {
+    private static final Logger logger = LoggerFactory
+            .getLogger(KamMetadataService.class);
+
+    private final KAMStore kamStore;
+    private final ConcurrentMap<String, Metadata> metadata = new ConcurrentHashMap<String, Metadata>();
+
+    /**
+     * @param kamStore
+     * @throws InvalidArgument if <tt>kamStore</tt> is <code>null</code>
+     */
+    public KamMetadataService(KAMStore kamStore) throws InvalidArgument {
+        if (kamStore == null) {
+            throw new InvalidArgument("kamStore must not be null");
+        }
+        this.kamStore = kamStore;
+    }
+
+    /**
+     * Obtain the {@link KamInfo} of a KAM. The catalog entry is read on every
+     * call so that a recompiled KAM is seen; the metadata of a previous
+     * compilation is then discarded.
+     *
+     * @param kamName
+     * @return the {@link KamInfo} or <code>null</code> if no such KAM exists
+     * @throws KAMStoreException
+     */
+    public KamInfo getKamInfo(String kamName) throws KAMStoreException {
+        KamInfo info = kamStore.getKamInfo(kamName);
+        if (info == null) {
+            metadata.remove(kamName);
+            return null;
+        }
+        return get(info).info;
+    }
+
+    /**
+     * Obtain the {@link Namespace}s of a {@link Kam}.
+     *
+     * @param kam
+     * @return the namespaces keyed by resource location
+     * @throws KAMStoreException
+     */
+    public Map<String, Namespace> getNamespaces(Kam kam)
+            throws KAMStoreException {
+        KamInfo info = kam.getKamInfo();
+        if (info == null) {
+            return index(kamStore.getNamespaces(kam));
+        }
+        Metadata m = get(info);
+        synchronized (m) {
+            if (m.namespaces == null) {
+                m.namespaces = index(kamStore.getNamespaces(kam));
+                logger.debug("Loaded {} namespaces of KAM {}",
+                        m.namespaces.size(), info.getName());
+            }
+            return m.namespaces;
+        }
+    }
+
+    /**
+     * Discard the cached metadata of a KAM, e.g. after it was recompiled.
+     *
+     * @param kamName
+     */
+    public void invalidate(String kamName) {
+        metadata.remove(kamName);
+    }
+
+    /**
+     * @param info
+     * @return the metadata of the compilation described by <tt>info</tt>,
+     *         replacing the metadata of another compilation
+     */
+    private Metadata get(KamInfo info) {
+        long lastCompiled = lastCompiled(info);
+        while (true) {
+            Metadata m = metadata.get(info.getName());
+            if (m != null && m.lastCompiled == lastCompiled) {
+                return m;
+            }
+            Metadata created = new Metadata(info, lastCompiled);
+            if (m == null ? metadata.putIfAbsent(info.getName(), created) == null
+                    : metadata.replace(info.getName(), m, created)) {
+                if (m != null) {
+                    logger.debug("KAM {} was recompiled; discarding metadata",
+                            info.getName());
+                }
+                return created;
+            }
+        }
+    }
+
+    private static long lastCompiled(KamInfo info) {
+        return info.getLastCompiled() == null ? 0L : info.getLastCompiled()
+                .getTime();
+    }
+
+    private static Map<String, Namespace> index(List<Namespace> namespaces) {
+        Map<String, Namespace> ret = new LinkedHashMap<String, Namespace>();
+        for (Namespace n : namespaces) {
+            ret.put(n.getResourceLocation(), n);
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+
+    private static final class Metadata {
+        private final KamInfo info;
+        private final long lastCompiled;
+        private Map<String, Namespace> namespaces;
+
+        private Metadata(KamInfo info, long lastCompiled) {
+            this.info = info;
+            this.lastCompiled = lastCompiled;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.selventa.whistle.score.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.api.internal.KAMCatalogDao.KamInfo;
+import org.openbel.framework.common.InvalidArgument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.selventa.whistle.util.AtomicFileOutputStream;
+
+/**
+ * On-disk cache of the {@link Kam.KamNode} ids resolved for namespace values
+ * in a single {@link Kam}.<br>
+ * A cache file is keyed by the KAM name, the time the KAM was last compiled
+ * and an optional qualifier describing how the KAM was transformed (e.g. a
+ * species collapse). Recompiling a KAM therefore invalidates its entries;
+ * files of earlier compilations are removed when the cache is saved.
+ * Values that resolved to no nodes are cached as empty entries. Files end with
+ * a CRC-32 of their contents and are replaced atomically, so a partly written
+ * file is never loaded.
+ */
+public class KamNodeCache {
+    private static final Logger logger = LoggerFactory
+            .getLogger(KamNodeCache.class);
+
+    private static final int MAGIC = 0x57484b4e; // WHKN
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".map";
+
+    private final File directory;
+    private final String prefix;
+    private final String key;
+    private final long lastCompiled;
+    private final Map<String, int[]> entries = new HashMap<String, int[]>();
+    private boolean dirty;
+
+    private KamNodeCache(File directory, String prefix, String key,
+            long lastCompiled) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.key = key;
+        this.lastCompiled = lastCompiled;
+    }
+
+    /**
+     * Open the cache of a KAM, loading any entries saved by earlier runs.
+     *
+     * @param directory cache directory
+     * @param info the KAM
+     * @param qualifier describes how the KAM was transformed, or
+     *            <code>null</code> if it was not
+     * @return
+     * @throws InvalidArgument if <tt>directory</tt> or <tt>info</tt> is
+     *             <code>null</code>
+     */
+    public static KamNodeCache open(File directory, KamInfo info,
+            String qualifier) throws InvalidArgument {
+        if (directory == null || info == null) {
+            throw new InvalidArgument("directory and info must not be null");
+        }
+        String key = qualifier == null ? info.getName() : info.getName() + '/'
+                + qualifier;
+        long lastCompiled = info.getLastCompiled() == null ? 0L : info
+                .getLastCompiled().getTime();
+        return open(directory, key, lastCompiled);
+    }
+
+    /**
+     * @param directory cache directory
+     * @param key the KAM name and qualifier
+     * @param lastCompiled time the KAM was last compiled
+     * @return
+     */
+    static KamNodeCache open(File directory, String key, long lastCompiled) {
+        KamNodeCache ret = new KamNodeCache(directory, fileName(key) + '-',
+                key, lastCompiled);
+        ret.load();
+        return ret;
+    }
+
+    /**
+     * Look up a namespace value.
+     *
+     * @param location namespace resource location
+     * @param value
+     * @return the resolved node ids, empty if the value did not resolve to any
+     *         node, or <code>null</code> if the value is not cached
+     */
+    public int[] get(String location, String value) {
+        return entries.get(entryKey(location, value));
+    }
+
+    /**
+     * Cache the node ids resolved for a namespace value.
+     *
+     * @param location namespace resource location
+     * @param value
+     * @param nodeIds the resolved node ids; empty if none
+     */
+    public void put(String location, String value, int[] nodeIds) {
+        entries.put(entryKey(location, value), nodeIds);
+        dirty = true;
+    }
+
+    /**
+     * @return the number of cached values
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Save the cache if entries have been added, removing the files of
+     * earlier compilations of the KAM.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        File file = getFile();
+        AtomicFileOutputStream fos = new AtomicFileOutputStream(file);
+        try {
+            CheckedOutputStream cos = new CheckedOutputStream(
+                    new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(cos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeLong(lastCompiled);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, int[]> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                int[] ids = e.getValue();
+                out.writeInt(ids.length);
+                for (int id : ids) {
+                    out.writeInt(id);
+                }
+            }
+            out.writeInt((int) cos.getChecksum().getValue());
+            out.flush();
+            fos.commit();
+        } finally {
+            fos.close();
+        }
+        dirty = false;
+
+        // remove earlier compilations
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.endsWith(SUFFIX)
+                        && !f.equals(file) && isStale(f)) {
+                    logger.debug("Removing stale mapping cache {}", f);
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private File getFile() {
+        return new File(directory, prefix + lastCompiled + SUFFIX);
+    }
+
+    private void load() {
+        File file = getFile();
+        if (!file.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            CheckedInputStream cis = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)),
+                    new CRC32());
+            in = new DataInputStream(cis);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !key.equals(in.readUTF()) || in.readLong() != lastCompiled) {
+                logger.debug("Ignoring mapping cache {}", file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String k = in.readUTF();
+                int[] ids = new int[in.readInt()];
+                for (int j = 0; j < ids.length; j++) {
+                    ids[j] = in.readInt();
+                }
+                entries.put(k, ids);
+            }
+            int checksum = (int) cis.getChecksum().getValue();
+            if (in.readInt() != checksum || in.read() != -1) {
+                logger.warn("Ignoring corrupt mapping cache {}", file);
+                entries.clear();
+                return;
+            }
+            logger.debug("Loaded {} entries from mapping cache {}", count,
+                    file);
+        } catch (IOException e) {
+            logger.warn("Failed to read mapping cache " + file, e);
+            entries.clear();
+        } catch (RuntimeException e) {
+            // malformed contents
+            logger.warn("Failed to read mapping cache " + file, e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close mapping cache", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param f
+     * @return <code>true</code> if the file caches an earlier compilation of
+     *         this cache's KAM, in this or an earlier version with the same
+     *         header
+     */
+    private boolean isStale(File f) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f)));
+            return in.readInt() == MAGIC && in.readInt() <= VERSION
+                    && key.equals(in.readUTF()) && in.readLong() < lastCompiled;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close mapping cache", e);
+                }
+            }
+        }
+    }
+
+    private static String entryKey(String location, String value) {
+        return location + '\0' + value;
+    }
+
+    /**
+     * @param key
+     * @return a file name safe form of a key
+     */
+    private static String fileName(String key) {
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '.' || c == '_'
+                    ? c : '_');
+        }
+        return sb.toString();
+    }
+}
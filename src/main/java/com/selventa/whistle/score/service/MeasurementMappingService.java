@@ -2,9 +2,13 @@ package com.selventa.whistle.score.service;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.openbel.framework.api.Kam;
 import org.openbel.framework.common.InvalidArgument;
+import org.openbel.framework.common.model.Parameter;
+import org.openbel.framework.common.model.Term;
 
 import com.selventa.whistle.data.model.Measurement;
 import com.selventa.whistle.score.model.Hypothesis;
@@ -36,6 +40,106 @@ public interface MeasurementMappingService {
     MappingResult map(Kam kam, Collection<Hypothesis> hypotheses,
             Collection<Measurement> measurements) throws Exception;
 
+    /**
+     * Resolve the identifiers of a collection of {@link Measurement}s to
+     * {@link Kam.KamNode}s.<br>
+     * The {@link IdentifierMapping} depends only on the identifiers, so it
+     * can be shared by all comparisons of a data file with
+     * {@link #map(IdentifierMapping, Collection, Collection)}.
+     * 
+     * @param kam the {@link Kam} from which all hypotheses have been derived
+     * @param measurements the {@link Measurement}s whose identifiers to
+     *            resolve
+     * @return
+     * @throws Exception
+     */
+    IdentifierMapping resolve(Kam kam, Collection<Measurement> measurements)
+            throws Exception;
+
+    /**
+     * Create {@link MappedMeasurement}s as
+     * {@link #map(Kam, Collection, Collection)} does, using identifiers
+     * already resolved by {@link #resolve(Kam, Collection)}.
+     * 
+     * @param mapping the resolved identifiers; it must contain the
+     *            identifier of each measurement
+     * @param hypotheses the {@link Hypothesis hypotheses} to which the
+     *            {@link Measurement}s will be mapped
+     * @param measurements the collection of {@link Measurement}s to map
+     * @return
+     * @throws Exception
+     */
+    MappingResult map(IdentifierMapping mapping,
+            Collection<Hypothesis> hypotheses,
+            Collection<Measurement> measurements) throws Exception;
+
+    /**
+     * The {@link Kam.KamNode}s resolved for the identifiers of a set of
+     * {@link Measurement}s, independent of their values.
+     */
+    class IdentifierMapping {
+        private final Kam kam;
+        private final Map<String, List<Kam.KamNode>> nodes;
+
+        /**
+         * @param kam
+         * @param nodes the nodes of each identifier by {@link #key(Term)};
+         *            empty if the identifier did not resolve, or
+         *            <code>null</code> if resolving failed
+         */
+        public IdentifierMapping(Kam kam, Map<String, List<Kam.KamNode>> nodes) {
+            if (kam == null || nodes == null) {
+                throw new InvalidArgument("kam and nodes must be non-null");
+            }
+            this.kam = kam;
+            this.nodes = nodes;
+        }
+
+        /**
+         * @return the {@link Kam} the identifiers were resolved in
+         */
+        public Kam getKam() {
+            return kam;
+        }
+
+        /**
+         * @return the number of resolved identifiers
+         */
+        public int size() {
+            return nodes.size();
+        }
+
+        /**
+         * Obtain the {@link Kam.KamNode}s of the identifier of a
+         * {@link Measurement}.
+         * 
+         * @param m
+         * @return the nodes, empty if the identifier did not resolve, or
+         *         <code>null</code> if resolving failed
+         * @throws InvalidArgument if the identifier was not resolved
+         */
+        public List<Kam.KamNode> getKamNodes(Measurement m) {
+            String key = key(m.getTerm());
+            List<Kam.KamNode> ret = nodes.get(key);
+            if (ret == null && !nodes.containsKey(key)) {
+                throw new InvalidArgument(m.getTerm() + " was not resolved");
+            }
+            return ret;
+        }
+
+        /**
+         * @param term
+         * @return the key of the identifier of a {@link Term}: its namespace
+         *         resource location and value
+         */
+        public static String key(Term term) {
+            Parameter p = term.getParameters().get(0);
+            String location = p.getNamespace() == null ? "" : p
+                    .getNamespace().getResourceLocation();
+            return location + '\0' + p.getValue();
+        }
+    }
+
     /**
      * Encapsulation of mapping results containing the {@link MappedMeasurement}
      * and the computed population size.
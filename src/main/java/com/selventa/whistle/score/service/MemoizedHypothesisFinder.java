@@ -0,0 +1,234 @@
+package com.selventa.whistle.score.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.api.Kam.KamNode;
+import org.openbel.framework.api.NodeFilter;
+import org.openbel.framework.common.enums.FunctionEnum;
+
+import com.selventa.whistle.data.enums.DirectionType;
+import com.selventa.whistle.score.model.Downstream;
+import com.selventa.whistle.score.model.Hypothesis;
+
+/**
+ * {@link HypothesisFinder} that computes the signed RNA downstreams of each
+ * intermediate node once, rather than once for every source node and depth
+ * that reaches it.<br>
+ * The downstreams of a node searched <tt>r</tt> levels deep are held as a
+ * pair of {@link BitSet}s over the {@link FunctionEnum#RNA_ABUNDANCE} nodes:
+ * up and down, with both bits set for {@link DirectionType#AMBIG}. They are
+ * composed from the downstreams of its targets <tt>r - 1</tt> levels deep, in
+ * edge order, following {@link DirectionType#compound(DirectionType)}: an
+ * ambiguous direction stays ambiguous and otherwise the later direction wins.
+ * Source nodes combine their direct downstreams with
+ * {@link DirectionType#evaluate(DirectionType)}. Every level is bounded by its
+ * depth, so cycles terminate, and the directions are those of the depth-first
+ * search of
+ * {@link BasicHypothesisFinder#find(Kam, KamNode, int, java.util.Map, org.openbel.framework.api.EdgeFilter, int)},
+ * including its path order.<br>
+ * The downstreams of every node and level reached are kept until the search
+ * completes. Hypotheses are returned in {@link KamNode#getId() node id}
+ * order, as by {@link BasicHypothesisFinder}.
+ */
+public class MemoizedHypothesisFinder extends BasicHypothesisFinder {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Hypothesis> findAll(Kam kam, int maxDepth,
+            NodeFilter nodeFilter) {
+        List<Hypothesis> hypothesisList = new ArrayList<Hypothesis>();
+        CausalGraph graph = getCausalGraph(kam);
+        Memo memo = new Memo(graph, maxDepth);
+        for (int source : getSources(graph, kam, nodeFilter)) {
+            Hypothesis hypothesis = memo.find(source, maxDepth);
+            if (hypothesis != null) {
+                hypothesisList.add(hypothesis);
+            }
+        }
+        return hypothesisList;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String getCatalogFinderName() {
+        return MemoizedHypothesisFinder.class.getName();
+    }
+
+    /**
+     * Signed downstreams as up and down {@link BitSet}s over RNA indices
+     */
+    private static final class Signs {
+        private static final Signs EMPTY = new Signs();
+
+        private final BitSet up = new BitSet();
+        private final BitSet down = new BitSet();
+
+        private boolean isEmpty() {
+            return up.isEmpty() && down.isEmpty();
+        }
+
+        private DirectionType get(int rna) {
+            boolean u = up.get(rna);
+            boolean d = down.get(rna);
+            if (u && d) {
+                return DirectionType.AMBIG;
+            }
+            return u ? DirectionType.UP : d ? DirectionType.DOWN : null;
+        }
+
+        private void set(int rna, DirectionType direction) {
+            up.set(rna, direction != DirectionType.DOWN);
+            down.set(rna, direction != DirectionType.UP);
+        }
+
+        /**
+         * Compound a direction onto a downstream, keeping an ambiguous
+         * direction.
+         */
+        private void compound(int rna, DirectionType direction) {
+            if (!up.get(rna) || !down.get(rna)) {
+                set(rna, direction);
+            }
+        }
+
+        /**
+         * Compound the downstreams of a target onto these, keeping ambiguous
+         * directions.
+         *
+         * @param other
+         * @param scratch
+         */
+        private void compound(Signs other, BitSet scratch) {
+            scratch.clear();
+            scratch.or(up);
+            scratch.and(down);
+            up.andNot(other.up);
+            up.andNot(other.down);
+            up.or(other.up);
+            up.or(scratch);
+            down.andNot(other.up);
+            down.andNot(other.down);
+            down.or(other.down);
+            down.or(scratch);
+        }
+    }
+
+    /**
+     * The downstreams computed for each node and level of a
+     * {@link CausalGraph}
+     */
+    private static final class Memo {
+        private final CausalGraph graph;
+        /**
+         * Dense RNA index of each node; -1 for other nodes
+         */
+        private final int[] rnaIndex;
+        private final int[] rnaNodes;
+        /**
+         * Downstreams of each node by levels searched - 1
+         */
+        private final Signs[][] signs;
+        private final BitSet scratch = new BitSet();
+
+        private Memo(CausalGraph graph, int maxDepth) {
+            this.graph = graph;
+            this.rnaIndex = new int[graph.size()];
+            BitSet rna = graph.getRnaAbundanceNodes();
+            this.rnaNodes = new int[rna.cardinality()];
+            int count = 0;
+            for (int i = 0; i < rnaIndex.length; i++) {
+                if (rna.get(i)) {
+                    rnaNodes[count] = i;
+                    rnaIndex[i] = count++;
+                } else {
+                    rnaIndex[i] = -1;
+                }
+            }
+            this.signs = new Signs[Math.max(0, maxDepth - 2)][];
+        }
+
+        /**
+         * Find the hypothesis of a source node: the RNA downstreams of the
+         * first depth at which more than three are found.
+         *
+         * @param source
+         * @param maxDepth
+         * @return the hypothesis or <code>null</code> if there is none within
+         *         <tt>maxDepth</tt>
+         */
+        private Hypothesis find(int source, int maxDepth) {
+            for (int currentDepth = 1; currentDepth < maxDepth; currentDepth++) {
+                Signs downstreams = new Signs();
+                for (int e = graph.edgeStart(source), end = graph.edgeEnd(source); e < end; e++) {
+                    int target = graph.getTarget(e);
+                    int rna = rnaIndex[target];
+                    if (rna != -1) {
+                        DirectionType direction = graph.getDirection(e);
+                        DirectionType existing = downstreams.get(rna);
+                        downstreams.set(rna, existing == null ? direction
+                                : existing.evaluate(direction));
+                    } else if (currentDepth > 1) {
+                        downstreams.compound(get(target, currentDepth - 1),
+                                scratch);
+                    }
+                }
+                scratch.clear();
+                scratch.or(downstreams.up);
+                scratch.or(downstreams.down);
+                if (scratch.cardinality() > 3) {
+                    // Note: for convention we still use Depth = 2 for directly connected hyps
+                    Hypothesis hypothesis = new Hypothesis(
+                            graph.getNode(source), DirectionType.UP,
+                            currentDepth + 1);
+                    for (int i = scratch.nextSetBit(0); i >= 0; i = scratch
+                            .nextSetBit(i + 1)) {
+                        hypothesis.getDownstreams().add(
+                                new Downstream(graph.getNode(rnaNodes[i]),
+                                        downstreams.get(i)));
+                    }
+                    return hypothesis;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param node a node other than an RNA node
+         * @param levels number of levels searched, including the edges of
+         *            <tt>node</tt>
+         * @return the downstreams of <tt>node</tt>
+         */
+        private Signs get(int node, int levels) {
+            Signs[] level = signs[levels - 1];
+            if (level == null) {
+                level = new Signs[graph.size()];
+                signs[levels - 1] = level;
+            }
+            Signs ret = level[node];
+            if (ret == null) {
+                ret = new Signs();
+                for (int e = graph.edgeStart(node), end = graph.edgeEnd(node); e < end; e++) {
+                    int target = graph.getTarget(e);
+                    int rna = rnaIndex[target];
+                    if (rna != -1) {
+                        ret.compound(rna, graph.getDirection(e));
+                    } else if (levels > 1) {
+                        ret.compound(get(target, levels - 1), scratch);
+                    }
+                }
+                if (ret.isEmpty()) {
+                    ret = Signs.EMPTY;
+                }
+                level[node] = ret;
+            }
+            return ret;
+        }
+    }
+}
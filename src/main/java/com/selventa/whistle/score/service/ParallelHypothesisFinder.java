@@ -0,0 +1,132 @@
+package com.selventa.whistle.score.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.api.Kam.KamNode;
+import org.openbel.framework.api.NodeFilter;
+import org.openbel.framework.common.InvalidArgument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.selventa.whistle.score.model.Hypothesis;
+
+/**
+ * {@link HypothesisFinder} that searches the source nodes of a {@link Kam} on
+ * several threads. The search of each source node is independent and runs
+ * against the immutable {@link CausalGraph} of the {@link Kam}.<br>
+ * Source nodes are split into chunks in {@link KamNode#getId() node id}
+ * order. Worker threads take chunks in turn, each searching with its own
+ * scratch buffers, and the hypotheses of the chunks are concatenated in
+ * chunk order. Hypotheses are therefore returned in node id order, as by
+ * {@link BasicHypothesisFinder}, whatever the scheduling.
+ */
+public class ParallelHypothesisFinder extends BasicHypothesisFinder {
+    private static final Logger logger = LoggerFactory
+            .getLogger(ParallelHypothesisFinder.class);
+
+    /**
+     * Number of source nodes searched per chunk
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    private final int parallelism;
+
+    /**
+     * @param parallelism maximum number of threads
+     * @throws InvalidArgument if <tt>parallelism</tt> is less than 1
+     */
+    public ParallelHypothesisFinder(int parallelism) throws InvalidArgument {
+        if (parallelism < 1) {
+            throw new InvalidArgument("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Hypothesis> findAll(Kam kam, final int maxDepth,
+            NodeFilter nodeFilter) {
+        final CausalGraph graph = getCausalGraph(kam);
+        final int[] sorted = getSources(graph, kam, nodeFilter);
+
+        final int chunks = (sorted.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int workers = Math.min(parallelism, chunks);
+        if (workers <= 1) {
+            return find(new Search(graph), sorted, 0, sorted.length, maxDepth);
+        }
+
+        logger.debug("Searching {} source nodes on {} threads",
+                sorted.length, workers);
+        final AtomicReferenceArray<List<Hypothesis>> results = new AtomicReferenceArray<List<Hypothesis>>(
+                chunks);
+        final AtomicInteger nextChunk = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Search search = new Search(graph);
+                    int chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                        int from = chunk * CHUNK_SIZE;
+                        int to = Math.min(from + CHUNK_SIZE, sorted.length);
+                        results.set(chunk, find(search, sorted, from, to, maxDepth));
+                    }
+                    return null;
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Hypothesis> ret = new ArrayList<Hypothesis>();
+        for (int i = 0; i < chunks; i++) {
+            ret.addAll(results.get(i));
+        }
+        return ret;
+    }
+
+    /**
+     * @param search
+     * @param sources source node indices
+     * @param from
+     * @param to
+     * @param maxDepth
+     * @return the hypotheses of <tt>sources[from]</tt> to
+     *         <tt>sources[to - 1]</tt>
+     */
+    private List<Hypothesis> find(Search search, int[] sources, int from,
+            int to, int maxDepth) {
+        List<Hypothesis> ret = new ArrayList<Hypothesis>();
+        for (int i = from; i < to; i++) {
+            Hypothesis hypothesis = search.find(sources[i], maxDepth);
+            if (hypothesis != null) {
+                ret.add(hypothesis);
+            }
+        }
+        return ret;
+    }
+}
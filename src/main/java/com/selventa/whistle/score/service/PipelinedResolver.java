@@ -0,0 +1,183 @@
+package com.selventa.whistle.score.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.model.Term;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.selventa.whistle.data.service.TermListener;
+import com.selventa.whistle.score.service.DefaultMeasurementMappingService.Resolver;
+import com.selventa.whistle.score.service.MeasurementMappingService.IdentifierMapping;
+
+/**
+ * {@link TermListener} that resolves identifiers on a separate thread while a
+ * data file is parsed, so that parsing overlaps with equivalencing and
+ * {@link org.openbel.framework.api.KAMStore} lookups.<br>
+ * Parsed {@link Term}s pass through a bounded queue; parsing blocks when the
+ * resolver falls behind by more than the queue capacity.
+ */
+public class PipelinedResolver implements TermListener {
+    private static final Logger logger = LoggerFactory
+            .getLogger(PipelinedResolver.class);
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_BATCH = 4096;
+    /**
+     * Milliseconds between checks that the resolver thread is alive while
+     * the queue is full
+     */
+    private static final long LIVENESS_INTERVAL = 1000;
+
+    /**
+     * Marks the end of the parsed {@link Term}s
+     */
+    private static final Term EOF = new Term(FunctionEnum.ABUNDANCE);
+
+    private final BlockingQueue<Term> queue = new ArrayBlockingQueue<Term>(
+            QUEUE_CAPACITY);
+    private final Resolver resolver;
+    private final Thread thread;
+    private volatile Throwable error;
+    private volatile boolean closed;
+
+    /**
+     * Start resolving.
+     *
+     * @param resolver resolves the batches of parsed {@link Term}s; it is
+     *            closed when resolving ends
+     */
+    public PipelinedResolver(final Resolver resolver) {
+        this.resolver = resolver;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<Term> batch = new ArrayList<Term>(MAX_BATCH);
+                try {
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        boolean done = batch.get(batch.size() - 1) == EOF;
+                        if (done) {
+                            batch.remove(batch.size() - 1);
+                        }
+                        resolver.add(batch);
+                        batch.clear();
+                        if (done) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // closed
+                } catch (Throwable t) {
+                    error = t;
+                    discard();
+                }
+            }
+        }, "whistle-resolver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Discard parsed {@link Term}s after a failure, so that the parser does
+     * not block before it notices the failure.
+     */
+    private void discard() {
+        try {
+            while (queue.take() != EOF) {
+                // discard
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * {@inheritDoc} Blocks while the queue is full.
+     *
+     * @throws IllegalStateException if resolving has failed or the resolver
+     *             was closed
+     */
+    @Override
+    public void termParsed(Term term) {
+        try {
+            put(term);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Queue a {@link Term}, waiting while the queue is full and the resolver
+     * thread is running.
+     *
+     * @param term
+     * @throws InterruptedException
+     * @throws IllegalStateException if resolving has failed or the resolver
+     *             was closed
+     */
+    private void put(Term term) throws InterruptedException {
+        do {
+            if (error != null || closed || !thread.isAlive()) {
+                throw new IllegalStateException("Resolving has stopped", error);
+            }
+        } while (!queue.offer(term, LIVENESS_INTERVAL, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Wait for the parsed {@link Term}s to be resolved. Call once parsing is
+     * complete.
+     *
+     * @return the resolved identifiers
+     * @throws Exception if resolving failed
+     */
+    public IdentifierMapping finish() throws Exception {
+        try {
+            try {
+                put(EOF);
+                thread.join();
+            } catch (IllegalStateException e) {
+                // resolving stopped; its failure is reported below
+                if (error == null) {
+                    throw e;
+                }
+            }
+            if (error instanceof Exception) {
+                throw (Exception) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new ExecutionException(error);
+            }
+            logger.debug("Completed resolving parsed identifiers");
+            return resolver.finish();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stop resolving and release the resolver. Closing after
+     * {@link #finish()} has no effect.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resolver.close();
+        }
+    }
+}
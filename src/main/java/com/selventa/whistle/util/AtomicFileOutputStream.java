@@ -0,0 +1,110 @@
+package com.selventa.whistle.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link OutputStream} that replaces a file atomically.<br>
+ * Data is written to a unique temporary file in the directory of the file,
+ * which {@link #commit()} syncs and renames to the file. Readers therefore see
+ * either the previous file or the complete new one, and processes writing the
+ * same file concurrently never share a temporary file; the last to commit
+ * wins. Closing the stream without committing deletes the temporary file.
+ */
+public class AtomicFileOutputStream extends OutputStream {
+    private final File file;
+    private final File tmp;
+    private final FileOutputStream out;
+    private boolean closed;
+    private boolean committed;
+
+    /**
+     * @param file the file to replace
+     * @throws IOException if the temporary file cannot be created
+     */
+    public AtomicFileOutputStream(File file) throws IOException {
+        this.file = file;
+        this.tmp = File.createTempFile("." + file.getName() + ".", ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+        } finally {
+            if (fos == null) {
+                tmp.delete();
+            }
+        }
+        this.out = fos;
+    }
+
+    /**
+     * @return the channel of the temporary file
+     */
+    public FileChannel getChannel() {
+        return out.getChannel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    /**
+     * Replace the file with the data written. Streams wrapping this stream
+     * must be flushed first.
+     *
+     * @throws IOException if the data cannot be written or the file cannot
+     *             be replaced
+     */
+    public void commit() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        closed = true;
+        try {
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo does not replace an existing file on all platforms
+            if (!file.delete() || !tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+        committed = true;
+    }
+
+    /**
+     * {@inheritDoc} The temporary file is deleted unless the stream was
+     * {@link #commit() committed}.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        } finally {
+            if (!committed) {
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.selventa.whistle.data.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.model.Namespace;
+import org.openbel.framework.common.model.Parameter;
+import org.openbel.framework.common.model.Term;
+
+public class MeasurementTableTest {
+    private static final Namespace NAMESPACE = new Namespace("EG",
+            "http://resource.belframework.org/namespace/entrez-gene-ids.belns");
+
+    @Test
+    public void testRoundTrip() {
+        Term a = term("a");
+        List<Measurement> measurements = Arrays.asList(
+                new Measurement(a, 1.5, 0.01, null, true),
+                new Measurement(term("b"), -2.0, null, 7.0, false),
+                new Measurement(a, 0.5, 0.5, 3.0, false));
+
+        MeasurementTable table = MeasurementTable.of(measurements);
+
+        assertEquals(3, table.size());
+        assertEquals(2, table.getCodeCount());
+        assertEquals(table.getCode(0), table.getCode(2));
+        assertTrue(table.hasPValues());
+        assertTrue(table.hasAbundances());
+        assertEquals(measurements, new ArrayList<Measurement>(table.asList()));
+    }
+
+    @Test
+    public void testMissingValuesStayNull() {
+        MeasurementTable table = MeasurementTable.of(Arrays.asList(
+                new Measurement(term("a"), 1.5, 0.01, null, false),
+                new Measurement(term("b"), -2.0, null, 7.0, false)));
+
+        assertTrue(table.hasPValue(0));
+        assertFalse(table.hasPValue(1));
+        assertFalse(table.hasAbundance(0));
+        assertTrue(table.hasAbundance(1));
+        assertEquals(0.01, table.getMeasurement(0).getpValue(), 0d);
+        assertNull(table.getMeasurement(0).getAbundance());
+        assertNull(table.getMeasurement(1).getpValue());
+        assertEquals(7.0, table.getMeasurement(1).getAbundance(), 0d);
+    }
+
+    @Test
+    public void testUnmeasuredColumns() {
+        MeasurementTable table = MeasurementTable.of(Arrays.asList(
+                new Measurement(term("a"), 1.5, null, null, false)));
+
+        assertFalse(table.hasPValues());
+        assertFalse(table.hasAbundances());
+        assertNull(table.getMeasurement(0).getpValue());
+        assertNull(table.getMeasurement(0).getAbundance());
+    }
+
+    private static Term term(String id) {
+        Term ret = new Term(FunctionEnum.RNA_ABUNDANCE);
+        ret.addFunctionArgument(new Parameter(NAMESPACE, id));
+        return ret;
+    }
+}
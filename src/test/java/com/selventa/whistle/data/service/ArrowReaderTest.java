@@ -0,0 +1,652 @@
+package com.selventa.whistle.data.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.selventa.whistle.data.service.DataFileService.DataFileException;
+
+public class ArrowReaderTest {
+
+    @Test
+    public void testDetect() throws Exception {
+        Writer w = new Writer().utf8("[ID]", "a");
+        byte[] file = w.file(10);
+        byte[] stream = w.stream(10);
+        assertTrue(ArrowReader.matches(file, ArrowReader.MAGIC_LENGTH));
+        assertTrue(ArrowReader.matches(stream, ArrowReader.MAGIC_LENGTH));
+        byte[] csv = "[ID],[M][a]\n".getBytes("UTF-8");
+        assertFalse(ArrowReader.matches(csv, ArrowReader.MAGIC_LENGTH));
+        assertFalse(ArrowReader.matches(file, 3));
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        Writer w = new Writer()
+                .utf8("[ID]", "a", null, "\u00e9t\u00e9", "", "d")
+                .int32("[I]", 1, -2, null, Integer.MAX_VALUE, 0)
+                .uint64("[U]", -1L, 0L, 1L, Long.MIN_VALUE, 5L)
+                .float64("[D]", 1.5, null, Double.NaN, -0.25, 1e300)
+                .float32("[F]", 1.5f, 2.5f, null, -0.25f, 0f)
+                .bool("[B]", true, false, null, true, false)
+                .nulls("[N]", 5)
+                .labelled("name", "[M][cmp]", 0.5, 1.0, 1.5, 2.0, 2.5);
+        for (int batch : new int[] { 1, 2, 5 }) {
+            for (byte[] data : Arrays.asList(w.file(batch), w.stream(batch))) {
+                ArrowReader reader = reader(data);
+                assertArrayEquals(new String[] { "[ID]", "[I]", "[U]", "[D]",
+                        "[F]", "[B]", "[N]", "[M][cmp]" }, reader.getLabels());
+                List<String> rows = new ArrayList<String>();
+                while (reader.nextBatch()) {
+                    for (int r = 0; r < reader.getRowCount(); r++) {
+                        rows.add(describe(reader, r));
+                    }
+                }
+                assertEquals(Arrays.asList(
+                        "a 1 1.0 18446744073709551615 1.8446744073709552E19"
+                                + " 1.5 1.5 true null 0.5",
+                        "null -2 -2.0 0 0.0 null 2.5 false null 1.0",
+                        "\u00e9t\u00e9 null 1 1.0 NaN null null null 1.5",
+                        " 2147483647 2.147483647E9 9223372036854775808"
+                                + " 9.223372036854776E18 -0.25 -0.25 true null 2.0",
+                        "d 0 0.0 5 5.0 1.0E300 0.0 false null 2.5"), rows);
+            }
+        }
+    }
+
+    @Test
+    public void testRequiredTypes() throws Exception {
+        ArrowReader reader = reader(new Writer().utf8("[ID]", "a")
+                .float64("[M][a]", 1.0).bool("[AS][a]", true)
+                .float16("[P][a]", 1).stream(1));
+        reader.requireText(0);
+        reader.requireNumeric(1);
+        reader.requireFlag(2);
+        for (int column : new int[] { 1, 3 }) {
+            try {
+                reader.requireText(column);
+                fail("expected DataFileException");
+            } catch (DataFileException e) {
+                // expected
+            }
+        }
+        try {
+            reader.requireNumeric(3);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals("Column [P][a] must be an integer or floating point column",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        File file = File.createTempFile("arrow", ".arrow");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(new Writer().utf8("[ID]", "a", "b")
+                        .float64("[M][a]", 1.0, 2.0).file(1));
+            } finally {
+                out.close();
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                assertTrue(ArrowReader.matches(raf.getChannel()));
+                assertEquals(0L, raf.getChannel().position());
+                ArrowReader reader = new ArrowReader(raf.getChannel());
+                assertTrue(reader.nextBatch());
+                assertEquals("a", reader.getString(0, 0));
+                assertTrue(reader.nextBatch());
+                assertEquals(2.0, reader.getDouble(1, 0), 0d);
+                assertFalse(reader.nextBatch());
+            } finally {
+                raf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCompressedBatchRejected() throws Exception {
+        Writer w = new Writer().utf8("[ID]", "a");
+        w.compressed = true;
+        ArrowReader reader = reader(w.stream(1));
+        try {
+            reader.nextBatch();
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("Compressed Arrow record batches are not supported",
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Truncated data fails unless it ends between messages.
+     */
+    @Test
+    public void testTruncated() throws Exception {
+        byte[] data = new Writer().utf8("[ID]", "a", "b").float64("[M][a]",
+                1.0, 2.0).stream(1);
+        List<Integer> rows = new ArrayList<Integer>();
+        for (int length = 0; length < data.length; length++) {
+            try {
+                rows.add(readAll(Arrays.copyOf(data, length)));
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        // after the schema and after each batch
+        assertEquals(Arrays.asList(0, 1, 2), rows);
+    }
+
+    /**
+     * Corrupting any byte either has no effect on the types read or fails
+     * with an IOException; values are never read outside their buffers.
+     */
+    @Test
+    public void testCorruptData() throws Exception {
+        byte[] data = new Writer().utf8("[ID]", "a", null, "ccc")
+                .int64("[I]", 1L, 2L, 3L).float64("[M][a]", 1.0, null, 3.0)
+                .bool("[AS][a]", true, false, true).stream(2);
+        for (int i = 0; i < data.length; i++) {
+            for (int flip : new int[] { 0x01, 0x80, 0xff }) {
+                byte[] corrupt = data.clone();
+                corrupt[i] ^= flip;
+                try {
+                    readAll(corrupt);
+                } catch (IOException e) {
+                    // expected
+                } catch (DataFileException e) {
+                    // a column changed type
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of rows read
+     */
+    private static int readAll(byte[] data) throws IOException,
+            DataFileException {
+        ArrowReader reader = reader(data);
+        String[] labels = reader.getLabels();
+        if (labels.length != 2 && labels.length != 4) {
+            throw new DataFileException("columns changed");
+        }
+        reader.requireText(0);
+        for (int c = 1; c < labels.length; c++) {
+            if (c == 3) {
+                reader.requireFlag(c);
+            } else {
+                reader.requireNumeric(c);
+            }
+        }
+        int ret = 0;
+        while (reader.nextBatch()) {
+            for (int r = 0; r < reader.getRowCount(); r++, ret++) {
+                describe(reader, r);
+            }
+        }
+        return ret;
+    }
+
+    private static ArrowReader reader(byte[] data) throws IOException {
+        return new ArrowReader(Channels.newChannel(new ByteArrayInputStream(
+                data)));
+    }
+
+    private static String describe(ArrowReader reader, int row)
+            throws DataFileException {
+        StringBuilder ret = new StringBuilder();
+        for (int c = 0; c < reader.getLabels().length; c++) {
+            if (c > 0) {
+                ret.append(' ');
+            }
+            if (reader.isNull(c, row)) {
+                ret.append("null");
+                continue;
+            }
+            try {
+                reader.requireNumeric(c);
+                try {
+                    reader.requireText(c);
+                    ret.append(reader.getString(c, row)).append(' ');
+                } catch (DataFileException e) {
+                    // not text
+                }
+                ret.append(reader.getDouble(c, row));
+                continue;
+            } catch (DataFileException e) {
+                // not numeric
+            }
+            try {
+                reader.requireText(c);
+                ret.append(reader.getString(c, row));
+            } catch (DataFileException e) {
+                try {
+                    reader.requireFlag(c);
+                    ret.append(reader.isTrue(c, row));
+                } catch (DataFileException e2) {
+                    ret.append("null");
+                }
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Writes columns in the Arrow IPC file and stream formats, following the
+     * Arrow columnar format specification.
+     */
+    static class Writer {
+        private static final int UTF8 = 5, INT = 2, FLOATING_POINT = 3,
+                BOOL = 6, NULL = 1;
+
+        private final List<String> names = new ArrayList<String>();
+        private final List<String> labels = new ArrayList<String>();
+        private final List<Table> types = new ArrayList<Table>();
+        private final List<Integer> typeIds = new ArrayList<Integer>();
+        /**
+         * Byte width of fixed width values, -1 for strings, 0 for booleans
+         * and -2 for the null type
+         */
+        private final List<Integer> widths = new ArrayList<Integer>();
+        private final List<Object[]> values = new ArrayList<Object[]>();
+        boolean compressed;
+
+        Writer utf8(String name, String... v) {
+            return add(name, null, UTF8, new Table(), -1, v);
+        }
+
+        Writer int32(String name, Integer... v) {
+            return add(name, null, INT, new Table().add(0, 4, 32).add(1, 1, 1),
+                    4, v);
+        }
+
+        Writer int64(String name, Long... v) {
+            return add(name, null, INT, new Table().add(0, 4, 64).add(1, 1, 1),
+                    8, v);
+        }
+
+        Writer uint64(String name, Long... v) {
+            return add(name, null, INT, new Table().add(0, 4, 64), 8, v);
+        }
+
+        Writer float16(String name, int... v) {
+            Short[] s = new Short[v.length];
+            for (int i = 0; i < v.length; i++) {
+                s[i] = (short) v[i];
+            }
+            return add(name, null, FLOATING_POINT, new Table().add(0, 2, 0),
+                    2, s);
+        }
+
+        Writer float32(String name, Float... v) {
+            return add(name, null, FLOATING_POINT, new Table().add(0, 2, 1),
+                    4, v);
+        }
+
+        Writer float64(String name, Double... v) {
+            return add(name, null, FLOATING_POINT, new Table().add(0, 2, 2),
+                    8, v);
+        }
+
+        Writer bool(String name, Boolean... v) {
+            return add(name, null, BOOL, new Table(), 0, v);
+        }
+
+        Writer nulls(String name, int rows) {
+            return add(name, null, NULL, new Table(), -2, new Object[rows]);
+        }
+
+        /**
+         * Add a double column labelled by its column metadata.
+         */
+        Writer labelled(String name, String label, Double... v) {
+            return add(name, label, FLOATING_POINT, new Table().add(0, 2, 2),
+                    8, v);
+        }
+
+        private Writer add(String name, String label, int typeId, Table type,
+                int width, Object[] v) {
+            names.add(name);
+            labels.add(label);
+            typeIds.add(typeId);
+            types.add(type);
+            widths.add(width);
+            values.add(v);
+            return this;
+        }
+
+        byte[] stream(int batchSize) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeMessages(out, batchSize);
+            return out.toByteArray();
+        }
+
+        byte[] file(int batchSize) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write("ARROW1\0\0".getBytes("US-ASCII"));
+            writeMessages(out, batchSize);
+            byte[] footer = flatbuffer(new Table().add(0, 2, 4).ref(1,
+                    schema()));
+            out.write(footer);
+            out.write(bytes(footer.length));
+            out.write("ARROW1".getBytes("US-ASCII"));
+            return out.toByteArray();
+        }
+
+        private void writeMessages(ByteArrayOutputStream out, int batchSize)
+                throws IOException {
+            writeMessage(out, 1, schema(), new byte[0]);
+            int rows = values.isEmpty() ? 0 : values.get(0).length;
+            for (int from = 0; from < rows; from += batchSize) {
+                writeBatch(out, from, Math.min(rows, from + batchSize));
+            }
+            out.write(bytes(-1));
+            out.write(bytes(0));
+        }
+
+        private Table schema() {
+            List<Fb> fields = new ArrayList<Fb>();
+            for (int i = 0; i < names.size(); i++) {
+                Table field = new Table().ref(0, new Str(names.get(i)))
+                        .add(1, 1, 1).add(2, 1, typeIds.get(i))
+                        .ref(3, types.get(i)).ref(5, new Vec());
+                if (labels.get(i) != null) {
+                    field.ref(6, new Vec(new Table().ref(0,
+                            new Str(ArrowReader.COLUMN_METADATA_KEY)).ref(1,
+                            new Str(labels.get(i)))));
+                }
+                fields.add(field);
+            }
+            return new Table().add(0, 2, 0).ref(1,
+                    new Vec(fields.toArray(new Fb[fields.size()])));
+        }
+
+        private void writeBatch(ByteArrayOutputStream out, int from, int to)
+                throws IOException {
+            int rows = to - from;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            List<Long> nodes = new ArrayList<Long>();
+            List<Long> buffers = new ArrayList<Long>();
+            for (int c = 0; c < values.size(); c++) {
+                Object[] v = Arrays.copyOfRange(values.get(c), from, to);
+                int width = widths.get(c);
+                int nulls = 0;
+                byte[] validity = new byte[(rows + 7) / 8];
+                for (int r = 0; r < rows; r++) {
+                    if (v[r] == null) {
+                        nulls++;
+                    } else {
+                        validity[r / 8] |= 1 << (r % 8);
+                    }
+                }
+                nodes.add((long) rows);
+                nodes.add((long) (width == -2 ? rows : nulls));
+                if (width == -2) {
+                    continue;
+                }
+                buffer(body, buffers, nulls > 0 ? validity : new byte[0]);
+                ByteBuffer data;
+                if (width == -1) {
+                    ByteArrayOutputStream chars = new ByteArrayOutputStream();
+                    ByteBuffer offsets = le(4 * (rows + 1));
+                    for (int r = 0; r < rows; r++) {
+                        offsets.putInt(chars.size());
+                        if (v[r] != null) {
+                            chars.write(((String) v[r]).getBytes("UTF-8"));
+                        }
+                    }
+                    offsets.putInt(chars.size());
+                    buffer(body, buffers, offsets.array());
+                    data = ByteBuffer.wrap(chars.toByteArray());
+                } else if (width == 0) {
+                    data = le((rows + 7) / 8);
+                    for (int r = 0; r < rows; r++) {
+                        if (Boolean.TRUE.equals(v[r])) {
+                            data.put(r / 8, (byte) (data.get(r / 8) | 1 << (r % 8)));
+                        }
+                    }
+                } else {
+                    data = le(width * rows);
+                    for (int r = 0; r < rows; r++) {
+                        Object o = v[r];
+                        if (o instanceof Short) {
+                            data.putShort((Short) o);
+                        } else if (o instanceof Integer) {
+                            data.putInt((Integer) o);
+                        } else if (o instanceof Long) {
+                            data.putLong((Long) o);
+                        } else if (o instanceof Float) {
+                            data.putFloat((Float) o);
+                        } else if (o instanceof Double) {
+                            data.putDouble((Double) o);
+                        } else {
+                            data.position(data.position() + width);
+                        }
+                    }
+                }
+                buffer(body, buffers, data.array());
+            }
+            Table batch = new Table().add(0, 8, rows)
+                    .ref(1, new Structs(nodes)).ref(2, new Structs(buffers));
+            if (compressed) {
+                batch.ref(3, new Table().add(0, 1, 0));
+            }
+            writeMessage(out, 3, batch, body.toByteArray());
+        }
+
+        private static void buffer(ByteArrayOutputStream body,
+                List<Long> buffers, byte[] b) throws IOException {
+            buffers.add((long) body.size());
+            buffers.add((long) b.length);
+            body.write(b);
+            while (body.size() % 8 != 0) {
+                body.write(0);
+            }
+        }
+
+        private static void writeMessage(ByteArrayOutputStream out,
+                int headerType, Table header, byte[] body) throws IOException {
+            byte[] metadata = flatbuffer(new Table().add(0, 2, 4)
+                    .add(1, 1, headerType).ref(2, header)
+                    .add(3, 8, body.length));
+            int size = (metadata.length + 7) / 8 * 8;
+            out.write(bytes(-1));
+            out.write(bytes(size));
+            out.write(Arrays.copyOf(metadata, size));
+            out.write(body);
+        }
+
+        private static byte[] flatbuffer(Table root) {
+            ByteBuffer b = le(1 << 16);
+            b.putInt(0);
+            b.putInt(0, root.write(b));
+            return Arrays.copyOf(b.array(), b.position());
+        }
+
+        private static ByteBuffer le(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static byte[] bytes(int value) {
+            return le(4).putInt(value).array();
+        }
+    }
+
+    /**
+     * Flatbuffer object, written after the objects referencing it
+     */
+    private abstract static class Fb {
+        /**
+         * @return the position of the object
+         */
+        abstract int write(ByteBuffer b);
+
+        static void align(ByteBuffer b, int alignment) {
+            while (b.position() % alignment != 0) {
+                b.put((byte) 0);
+            }
+        }
+    }
+
+    private static class Table extends Fb {
+        private final List<long[]> scalars = new ArrayList<long[]>();
+        private final List<Object[]> refs = new ArrayList<Object[]>();
+
+        Table add(int id, int size, long value) {
+            scalars.add(new long[] { id, size, value });
+            return this;
+        }
+
+        Table ref(int id, Fb child) {
+            refs.add(new Object[] { id, child });
+            return this;
+        }
+
+        @Override
+        int write(ByteBuffer b) {
+            int fields = 0;
+            for (long[] s : scalars) {
+                fields = Math.max(fields, (int) s[0] + 1);
+            }
+            for (Object[] r : refs) {
+                fields = Math.max(fields, (Integer) r[0] + 1);
+            }
+            int[] offsets = new int[fields];
+            int size = 4;
+            for (long[] s : scalars) {
+                size = (size + (int) s[1] - 1) / (int) s[1] * (int) s[1];
+                offsets[(int) s[0]] = size;
+                size += s[1];
+            }
+            for (Object[] r : refs) {
+                size = (size + 3) / 4 * 4;
+                offsets[(Integer) r[0]] = size;
+                size += 4;
+            }
+
+            align(b, 2);
+            int vtable = b.position();
+            b.putShort((short) (4 + 2 * fields));
+            b.putShort((short) size);
+            for (int o : offsets) {
+                b.putShort((short) o);
+            }
+            align(b, 8);
+            int table = b.position();
+            b.putInt(table, table - vtable);
+            for (long[] s : scalars) {
+                int p = table + offsets[(int) s[0]];
+                switch ((int) s[1]) {
+                case 1:
+                    b.put(p, (byte) s[2]);
+                    break;
+                case 2:
+                    b.putShort(p, (short) s[2]);
+                    break;
+                case 4:
+                    b.putInt(p, (int) s[2]);
+                    break;
+                default:
+                    b.putLong(p, s[2]);
+                }
+            }
+            b.position(table + size);
+            for (Object[] r : refs) {
+                int p = table + offsets[(Integer) r[0]];
+                int child = ((Fb) r[1]).write(b);
+                b.putInt(p, child - p);
+            }
+            return table;
+        }
+    }
+
+    private static class Vec extends Fb {
+        private final Fb[] elements;
+
+        Vec(Fb... elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        int write(ByteBuffer b) {
+            align(b, 4);
+            int ret = b.position();
+            b.putInt(elements.length);
+            b.position(ret + 4 + 4 * elements.length);
+            for (int i = 0; i < elements.length; i++) {
+                int p = ret + 4 + 4 * i;
+                b.putInt(p, elements[i].write(b) - p);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Vector of structs of two longs
+     */
+    private static class Structs extends Fb {
+        private final List<Long> values;
+
+        Structs(List<Long> values) {
+            this.values = values;
+        }
+
+        @Override
+        int write(ByteBuffer b) {
+            while ((b.position() + 4) % 8 != 0) {
+                b.put((byte) 0);
+            }
+            int ret = b.position();
+            b.putInt(values.size() / 2);
+            for (long v : values) {
+                b.putLong(v);
+            }
+            return ret;
+        }
+    }
+
+    private static class Str extends Fb {
+        private final byte[] bytes;
+
+        Str(String s) {
+            try {
+                bytes = s.getBytes("UTF-8");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        int write(ByteBuffer b) {
+            align(b, 4);
+            int ret = b.position();
+            b.putInt(bytes.length);
+            b.put(bytes);
+            b.put((byte) 0);
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.selventa.whistle.data.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.model.Namespace;
+import org.openbel.framework.common.model.Parameter;
+import org.openbel.framework.common.model.Term;
+
+import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.data.model.MeasurementTable;
+
+public class DefaultCollapsingStrategyTest {
+    private static final Namespace NAMESPACE = new Namespace("EG",
+            "http://resource.belframework.org/namespace/entrez-gene-ids.belns");
+    private static final double[] FOLD_CHANGES = { -2, -1, -0.5, 0, 0.5, 1, 2,
+            Double.NaN };
+    private static final double[] ABUNDANCES = { 1, 2, 3, Double.NaN };
+
+    private final Term[] terms = { term("a"), term("b"), term("c"), term("d") };
+
+    @Test
+    public void testSinglePassMatchesCascade() {
+        Random random = new Random(19);
+        for (int i = 0; i < 20000; i++) {
+            boolean respect = random.nextBoolean();
+            DefaultCollapsingStrategy strategy = new DefaultCollapsingStrategy(
+                    respect);
+            List<Measurement> measurements = random(random);
+            String message = respect + " " + measurements;
+            assertEquals(message, collapse(strategy, measurements, true),
+                    collapse(strategy, measurements, false));
+
+            List<Measurement> rows = MeasurementTable.of(measurements)
+                    .asList();
+            assertEquals(message, collapse(strategy, rows, true),
+                    collapse(strategy, rows, false));
+        }
+    }
+
+    /**
+     * @param strategy
+     * @param measurements
+     * @param cascade
+     * @return the collapsed measurement, or the class of the exception
+     *         thrown, as the cascade fails on some missing abundances
+     */
+    private static Object collapse(DefaultCollapsingStrategy strategy,
+            List<Measurement> measurements, boolean cascade) {
+        try {
+            return cascade ? strategy.collapseCascade(measurements) : strategy
+                    .collapse(measurements);
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    @Test
+    public void testLowestFoldChangeThenHighestAbundance() {
+        Measurement expected = new Measurement(terms[1], -2d, 0.5, 3d, false);
+        List<Measurement> measurements = Arrays.asList(new Measurement(
+                terms[0], 1d, 0.01, 9d, false), new Measurement(terms[2], -2d,
+                0.5, 1d, false), expected);
+
+        assertSame(expected,
+                new DefaultCollapsingStrategy(false).collapse(measurements));
+    }
+
+    @Test
+    public void testSingleAnalystSelection() {
+        Measurement expected = new Measurement(terms[0], 1d, 0.5, 1d, true);
+        List<Measurement> measurements = Arrays.asList(new Measurement(
+                terms[1], -2d, 0.01, 9d, false), expected);
+
+        assertSame(expected,
+                new DefaultCollapsingStrategy(true).collapse(measurements));
+    }
+
+    @Test
+    public void testNonUniqueId() {
+        List<Measurement> measurements = Arrays.asList(new Measurement(
+                terms[0], 1d, 0.5, 1d, false), new Measurement(terms[0], 1d,
+                0.01, 1d, false));
+
+        assertNull(new DefaultCollapsingStrategy(false).collapse(measurements));
+    }
+
+    /**
+     * @param random
+     * @return two to six measurements drawn from small domains so that ties
+     *         are frequent; abundances are present for all, none or some of
+     *         them
+     */
+    private List<Measurement> random(Random random) {
+        int size = 2 + random.nextInt(5);
+        int abundance = random.nextInt(3);
+        List<Measurement> ret = new ArrayList<Measurement>(size);
+        for (int i = 0; i < size; i++) {
+            double fc = FOLD_CHANGES[random.nextInt(FOLD_CHANGES.length
+                    - (random.nextInt(8) == 0 ? 0 : 1))];
+            Double ab = null;
+            if (abundance == 1 || (abundance == 2 && random.nextBoolean())) {
+                ab = ABUNDANCES[random.nextInt(ABUNDANCES.length
+                        - (random.nextInt(8) == 0 ? 0 : 1))];
+            }
+            ret.add(new Measurement(terms[random.nextInt(terms.length)], fc,
+                    random.nextInt(3) * 0.25, ab, random.nextInt(3) == 0));
+        }
+        return ret;
+    }
+
+    private static Term term(String id) {
+        Term ret = new Term(FunctionEnum.RNA_ABUNDANCE);
+        ret.addFunctionArgument(new Parameter(NAMESPACE, id));
+        return ret;
+    }
+}
@@ -0,0 +1,487 @@
+package com.selventa.whistle.data.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbel.framework.common.model.Namespace;
+import org.openbel.framework.common.model.Term;
+
+import com.selventa.whistle.data.model.Comparison;
+import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.data.service.DataFileService.DataFileException;
+
+public class IdAMPDataFileServiceTest {
+    private static final String DATA = "[Id],[A][cmp],[M][cmp],[P][cmp]\n"
+            + "a,9.5,-0.5,0.01\n" + "b,8.25,1.5,0.5\n" + "c,7,0,1\n";
+    /**
+     * Comparisons <tt>x</tt>, valid, and <tt>y</tt>, with an invalid
+     * direction on line 2
+     */
+    private static final String TWO_COMPARISONS = "[Id],[A][x],[M][x],[P][x],[A][y],[M][y],[P][y]\n"
+            + "a,9.5,-0.5,0.01,1,1,1\n"
+            + "b,8.25,1.5,0.5,1,bad,1\n"
+            + "c,7,0,1,1,1,1\n";
+
+    private final Namespace namespace = new Namespace("EG",
+            "http://resource.belframework.org/namespace/entrez-gene-ids.belns");
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("idamp", "");
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "data.csv");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testGzipStreamIsNotClosed() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(DATA.getBytes("UTF-8"));
+        out.close();
+        CloseTrackingInputStream in = new CloseTrackingInputStream(
+                bytes.toByteArray());
+
+        Collection<Comparison> comps = new DefaultIdAMPDataFileService()
+                .process(in, namespace, ComparisonSelector.ALL);
+
+        assertFalse("stream was closed", in.closed);
+        assertEquals(1, comps.size());
+        assertEquals(3, toList(comps.iterator().next()).size());
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        write(file, DATA.replace("b,8.25", "\"b\",\"8.25\"") + "\n");
+
+        assertEquals("[a -0.5 0.01 9.5, b 1.5 0.5 8.25, c 0.0 1.0 7.0]",
+                describe(toList(process(new DefaultIdAMPDataFileService(),
+                        file))));
+    }
+
+    @Test
+    public void testErrorLine() throws Exception {
+        write(file, DATA + "\n" + "d,1,x,1\n");
+        try {
+            process(new DefaultIdAMPDataFileService(), file);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals("Line 5: Invalid Direction: x", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOnlySelectedComparisonIsParsed() throws Exception {
+        write(file, TWO_COMPARISONS);
+        String expected = "[a -0.5 0.01 9.5, b 1.5 0.5 8.25, c 0.0 1.0 7.0]";
+
+        for (ComparisonSelector selector : new ComparisonSelector[] {
+                ComparisonSelector.byName("X"), ComparisonSelector.byIndex(1) }) {
+            for (int threads = 1; threads <= 2; threads++) {
+                IdAMPDataFileService service = new DefaultIdAMPDataFileService();
+                service.setParallelism(threads);
+                Collection<Comparison> comps = service.process(file,
+                        namespace, selector);
+                assertEquals(1, comps.size());
+                assertEquals("x", comps.iterator().next().getName());
+                assertEquals(expected, describe(toList(comps.iterator()
+                        .next())));
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                Collection<Comparison> comps = new DefaultIdAMPDataFileService()
+                        .process(in, namespace, selector);
+                assertEquals(1, comps.size());
+                assertEquals(expected, describe(toList(comps.iterator()
+                        .next())));
+            } finally {
+                in.close();
+            }
+        }
+
+        try {
+            new DefaultIdAMPDataFileService().process(file, namespace,
+                    ComparisonSelector.byName("y"));
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals("Line 2: Invalid Direction: bad", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSelectorSeesComparisonNames() throws Exception {
+        write(file, TWO_COMPARISONS);
+        final List<String> seen = new ArrayList<String>();
+        Collection<Comparison> comps = new DefaultIdAMPDataFileService()
+                .process(file, namespace, new ComparisonSelector() {
+                    @Override
+                    public int[] select(List<String> names) {
+                        seen.addAll(names);
+                        return new int[0];
+                    }
+                });
+
+        assertEquals(Arrays.asList("x", "y"), seen);
+        assertTrue(comps.isEmpty());
+    }
+
+    @Test
+    public void testInvalidSelection() throws Exception {
+        write(file, TWO_COMPARISONS);
+        assertSelectionRejected(ComparisonSelector.byName("z"),
+                "Comparison z is not defined in the data file");
+        assertSelectionRejected(ComparisonSelector.byIndex(3),
+                "Comparison 3 is not defined in the data file; found 2 comparisons");
+        assertSelectionRejected(new ComparisonSelector() {
+            @Override
+            public int[] select(List<String> names) {
+                return new int[] { 2 };
+            }
+        }, "Invalid comparison selection: 2");
+    }
+
+    @Test
+    public void testCachedSelection() throws Exception {
+        write(file, TWO_COMPARISONS.replace("bad", "2"));
+        cached().process(file, namespace, ComparisonSelector.byName("y"));
+        assertTrue(DataFileCache.getSidecar(file).isFile());
+
+        Collection<Comparison> comps = cached().process(file, namespace,
+                ComparisonSelector.byName("x"));
+        assertEquals(1, comps.size());
+        assertEquals("x", comps.iterator().next().getName());
+        assertEquals("[a -0.5 0.01 9.5, b 1.5 0.5 8.25, c 0.0 1.0 7.0]",
+                describe(toList(comps.iterator().next())));
+    }
+
+    @Test
+    public void testArrowFile() throws Exception {
+        String csv = describe(toList(process(new DefaultIdAMPDataFileService(),
+                writeCsv())));
+        for (int batch : new int[] { 1, 2, 3 }) {
+            write(file, arrow().file(batch));
+            assertEquals(csv, describe(toList(process(
+                    new DefaultIdAMPDataFileService(), file))));
+        }
+    }
+
+    @Test
+    public void testArrowStream() throws Exception {
+        String csv = describe(toList(process(new DefaultIdAMPDataFileService(),
+                writeCsv())));
+        Collection<Comparison> comps = new DefaultIdAMPDataFileService()
+                .process(new ByteArrayInputStream(arrow().stream(2)),
+                        namespace, ComparisonSelector.ALL);
+        assertEquals(1, comps.size());
+        assertEquals(csv, describe(toList(comps.iterator().next())));
+    }
+
+    @Test
+    public void testArrowSelection() throws Exception {
+        write(file, new ArrowReaderTest.Writer()
+                .int64("[ID]", 10L, 20L)
+                .float64("[M][x]", null, 1.0)
+                .float64("[M][y]", 2.0, -1.0)
+                .int32("[AS][y]", 1, 0)
+                .utf8("[M][z]", "not", "numeric").file(2));
+
+        Collection<Comparison> comps = new DefaultIdAMPDataFileService()
+                .process(file, namespace, ComparisonSelector.byName("y"));
+
+        assertEquals(1, comps.size());
+        List<Measurement> y = toList(comps.iterator().next());
+        assertEquals("[10 2.0 null null, 20 -1.0 null null]", describe(y));
+        assertTrue(y.get(0).isAnalystSelection());
+        assertFalse(y.get(1).isAnalystSelection());
+    }
+
+    @Test
+    public void testArrowErrorLine() throws Exception {
+        write(file, new ArrowReaderTest.Writer().utf8("[ID]", "a", "b", "c")
+                .float64("[M][cmp]", 1.0, 2.0, Double.NaN)
+                .float64("[P][cmp]", 0.1, null, 0.1).file(1));
+        try {
+            process(new DefaultIdAMPDataFileService(), file);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals("Line 2: Missing p-value", e.getMessage());
+        }
+
+        write(file, new ArrowReaderTest.Writer().utf8("[ID]", "a", "b", "c")
+                .float64("[M][cmp]", 1.0, 2.0, Double.NaN).file(2));
+        try {
+            process(new DefaultIdAMPDataFileService(), file);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals("Line 3: Invalid Direction: NaN", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testArrowColumnType() throws Exception {
+        write(file, new ArrowReaderTest.Writer().utf8("[ID]", "a")
+                .utf8("[M][cmp]", "1.0").file(1));
+        try {
+            process(new DefaultIdAMPDataFileService(), file);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals(
+                    "Column [M][cmp] must be an integer or floating point column",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        write(file, large(100000, -1));
+        String sequential = describe(toList(process(
+                new DefaultIdAMPDataFileService(), file)));
+
+        for (int threads = 2; threads <= 4; threads++) {
+            IdAMPDataFileService parallel = new DefaultIdAMPDataFileService();
+            parallel.setParallelism(threads);
+            assertEquals(sequential, describe(toList(process(parallel, file))));
+        }
+    }
+
+    @Test
+    public void testParallelErrorLine() throws Exception {
+        for (int bad : new int[] { 10, 50000, 99990 }) {
+            write(file, large(100000, bad));
+            String expected = null;
+            for (int threads = 1; threads <= 4; threads++) {
+                IdAMPDataFileService service = new DefaultIdAMPDataFileService();
+                service.setParallelism(threads);
+                try {
+                    process(service, file);
+                    fail("expected DataFileException");
+                } catch (DataFileException e) {
+                    if (expected == null) {
+                        expected = e.getMessage();
+                        assertEquals("Line " + bad + ": Invalid p-value: x",
+                                expected);
+                    }
+                    assertEquals(expected, e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCacheRoundTrip() throws Exception {
+        write(file, DATA);
+        List<Measurement> parsed = toList(process(cached(), file));
+        assertTrue(DataFileCache.getSidecar(file).isFile());
+
+        List<Measurement> loaded = toList(process(cached(), file));
+        assertEquals(describe(parsed), describe(loaded));
+        assertEquals("[a -0.5 0.01 9.5, b 1.5 0.5 8.25, c 0.0 1.0 7.0]",
+                describe(loaded));
+    }
+
+    @Test
+    public void testCacheInvalidatedByChange() throws Exception {
+        write(file, DATA);
+        process(cached(), file);
+        write(file, DATA.replace("8.25", "8.5"));
+
+        assertEquals("[a -0.5 0.01 9.5, b 1.5 0.5 8.5, c 0.0 1.0 7.0]",
+                describe(toList(process(cached(), file))));
+    }
+
+    @Test
+    public void testCorruptCacheIgnored() throws Exception {
+        write(file, DATA);
+        process(cached(), file);
+        File sidecar = DataFileCache.getSidecar(file);
+        RandomAccessFile raf = new RandomAccessFile(sidecar, "rw");
+        try {
+            raf.seek(raf.length() - 8);
+            raf.write(raf.read() ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals("[a -0.5 0.01 9.5, b 1.5 0.5 8.25, c 0.0 1.0 7.0]",
+                describe(toList(process(cached(), file))));
+    }
+
+    @Test
+    public void testCachedConversionErrorHasLine() throws Exception {
+        write(file, DATA + "b,1,1,1\n");
+        process(cached(), file);
+
+        try {
+            process(rejecting("b"), file);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals("Line 2: Cannot convert ID to BEL: b", e.getMessage());
+            assertNotNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void testCachedConversionErrorHasLineAfterParallelParse()
+            throws Exception {
+        write(file, large(100000, -1));
+        IdAMPDataFileService parallel = cached();
+        parallel.setParallelism(4);
+        process(parallel, file);
+
+        try {
+            process(rejecting("g99995"), file);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals("Line 99995: Cannot convert ID to BEL: g99995",
+                    e.getMessage());
+        }
+    }
+
+    private void assertSelectionRejected(ComparisonSelector selector,
+            String message) {
+        try {
+            new DefaultIdAMPDataFileService().process(file, namespace,
+                    selector);
+            fail("expected DataFileException");
+        } catch (DataFileException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    /**
+     * @param rejected identifier that fails to convert
+     * @return a caching service
+     */
+    private static IdAMPDataFileService rejecting(final String rejected) {
+        IdAMPDataFileService ret = new DefaultIdAMPDataFileService() {
+            @Override
+            protected Term convertIdToBel(String id, Namespace ns) {
+                if (id.equals(rejected)) {
+                    throw new IllegalArgumentException(id);
+                }
+                return super.convertIdToBel(id, ns);
+            }
+        };
+        ret.setCacheEnabled(true);
+        return ret;
+    }
+
+    /**
+     * @return the columns of {@link #DATA}
+     */
+    private static ArrowReaderTest.Writer arrow() {
+        return new ArrowReaderTest.Writer().utf8("[Id]", "a", "b", "c")
+                .float64("[A][cmp]", 9.5, 8.25, 7.0)
+                .float64("[M][cmp]", -0.5, 1.5, 0.0)
+                .float64("[P][cmp]", 0.01, 0.5, 1.0);
+    }
+
+    private File writeCsv() throws IOException {
+        File ret = new File(directory, "data-csv.csv");
+        write(ret, DATA);
+        return ret;
+    }
+
+    private static IdAMPDataFileService cached() {
+        IdAMPDataFileService ret = new DefaultIdAMPDataFileService();
+        ret.setCacheEnabled(true);
+        return ret;
+    }
+
+    private Comparison process(IdAMPDataFileService service, File f)
+            throws DataFileException {
+        Collection<Comparison> comps = service.process(f, namespace);
+        assertEquals(1, comps.size());
+        return comps.iterator().next();
+    }
+
+    static String describe(List<Measurement> measurements) {
+        List<String> ret = new ArrayList<String>();
+        for (Measurement m : measurements) {
+            ret.add(m.getTerm().getParameters().get(0).getValue() + " "
+                    + m.getFoldChange() + " " + m.getpValue() + " "
+                    + m.getAbundance());
+        }
+        return ret.toString();
+    }
+
+    /**
+     * @param rows
+     * @param bad line with an invalid p-value, or -1
+     * @return a data file of several megabytes whose identifiers recur
+     *         throughout the file
+     */
+    private static String large(int rows, int bad) {
+        StringBuilder ret = new StringBuilder("[Id],[A][cmp],[M][cmp],[P][cmp]\n");
+        for (int i = 1; i <= rows; i++) {
+            ret.append(i % 7 == 0 ? "g" + i : "g" + (i * 31 % 997))
+                    .append(',').append(i % 1000).append('.').append(i % 7)
+                    .append(",-").append(i % 13).append(".25,")
+                    .append(i == bad ? "x" : "0.0" + i % 100)
+                    .append(",padding to make the file larger\n");
+        }
+        return ret.toString();
+    }
+
+    static void write(File f, String contents) throws IOException {
+        write(f, contents.getBytes("UTF-8"));
+    }
+
+    static void write(File f, byte[] contents) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    static List<Measurement> toList(Comparison comparison) {
+        return new ArrayList<Measurement>(comparison.getMeasurements());
+    }
+
+    private static class CloseTrackingInputStream extends ByteArrayInputStream {
+        private boolean closed;
+
+        CloseTrackingInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.selventa.whistle.data.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbel.framework.common.InvalidArgument;
+
+public class MappedCsvReaderTest {
+    private static final List<String> VALUES = Arrays.asList("0", "-0", "+3",
+            "1.5", "-2.25", ".5", "5.", "007.10", " 1.5 ", "1e5", "-1.5E-3",
+            "NaN", "-Infinity", "0.1", "0.3", "123456789012345",
+            "1234567890123456789", "0.1234567890123456789012345",
+            "0.000000000000000000000012345", "9007199254740993",
+            "4.35", "2.675");
+
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("mapped", ".csv");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (raf != null) {
+            raf.close();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testDoublesMatchParseDouble() throws IOException {
+        List<String> values = new ArrayList<String>(VALUES);
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            values.add(randomDecimal(random));
+        }
+        StringBuilder csv = new StringBuilder();
+        for (String v : values) {
+            csv.append(v).append(",\"").append(v).append("\"\n");
+        }
+
+        MappedCsvReader reader = open(csv.toString());
+        for (String v : values) {
+            assertTrue(reader.next());
+            double expected = Double.parseDouble(v);
+            assertSame(v, expected, reader.getDouble(0));
+            assertSame(v, expected, reader.getDouble(1));
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testInvalidDoubles() throws IOException {
+        MappedCsvReader reader = open("1.2.3,,-,abc,1.5x\n");
+        assertTrue(reader.next());
+        for (int i = 0; i < reader.getFieldCount(); i++) {
+            try {
+                reader.getDouble(i);
+                fail("expected NumberFormatException for "
+                        + reader.getString(i));
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testQuotedFields() throws IOException {
+        String csv = "a,\"b,c\",\"say \"\"hi\"\"\",\"\"\r\n"
+                + "\"multi\nline\",x\r\r\n" + "last,1";
+        String[][] expected = { { "a", "b,c", "say \"hi\"", "" },
+                { "multi\nline", "x" }, {}, { "last", "1" } };
+
+        MappedCsvReader mapped = open(csv);
+        MappedCsvReader stream = new MappedCsvReader(
+                Channels.newChannel(new ByteArrayInputStream(csv
+                        .getBytes("UTF-8"))));
+        for (MappedCsvReader reader : Arrays.asList(mapped, stream)) {
+            for (String[] record : expected) {
+                assertTrue(reader.next());
+                if (record.length == 0) {
+                    assertTrue(reader.isBlank());
+                } else {
+                    assertArrayEquals(record, reader.getRecord());
+                }
+            }
+            assertFalse(reader.next());
+        }
+        assertTrue(stream.isChar(1, '1'));
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        String csv = "h\n1,a\n2,b\n3,c\n";
+        open(csv);
+        MappedCsvReader reader = new MappedCsvReader(raf.getChannel(), csv.indexOf('2'),
+                csv.indexOf('3'));
+        assertTrue(reader.next());
+        assertArrayEquals(new String[] { "2", "b" }, reader.getRecord());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testNonBlockingChannelRejected() throws IOException {
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            try {
+                new MappedCsvReader(pipe.source());
+                fail("expected InvalidArgument");
+            } catch (InvalidArgument e) {
+                // expected
+            }
+
+            // a blocking pipe is read as any other stream
+            pipe.source().configureBlocking(true);
+            pipe.sink().write(ByteBuffer.wrap("a,b\n".getBytes("UTF-8")));
+            pipe.sink().close();
+            MappedCsvReader reader = new MappedCsvReader(pipe.source());
+            assertTrue(reader.next());
+            assertArrayEquals(new String[] { "a", "b" }, reader.getRecord());
+            assertFalse(reader.next());
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    private MappedCsvReader open(String csv) throws IOException {
+        IdAMPDataFileServiceTest.write(file, csv);
+        raf = new RandomAccessFile(file, "r");
+        return new MappedCsvReader(raf.getChannel(), 0L, raf.length());
+    }
+
+    private static void assertSame(String value, double expected,
+            double actual) {
+        assertEquals(value, Double.doubleToLongBits(expected),
+                Double.doubleToLongBits(actual));
+    }
+
+    private static String randomDecimal(Random random) {
+        StringBuilder ret = new StringBuilder();
+        if (random.nextBoolean()) {
+            ret.append('-');
+        }
+        int digits = 1 + random.nextInt(20);
+        int point = random.nextInt(digits + 1);
+        for (int i = 0; i < digits; i++) {
+            if (i == point) {
+                ret.append('.');
+            }
+            ret.append((char) ('0' + random.nextInt(10)));
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package com.selventa.whistle.data.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.openbel.framework.common.InvalidArgument;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.model.Namespace;
+import org.openbel.framework.common.model.Term;
+
+public class TermInternerTest {
+    private static final Namespace EG = new Namespace("EG",
+            "http://resource.belframework.org/namespace/entrez-gene-ids.belns");
+    private static final Namespace HGNC = new Namespace("HGNC",
+            "http://resource.belframework.org/namespace/hgnc-approved-symbols.belns");
+
+    @Test
+    public void testInternReturnsCanonicalTerm() {
+        TermInterner interner = new TermInterner(10);
+        Term first = term();
+        Term second = term();
+
+        assertSame(first, interner.intern(EG, "1", first));
+        assertSame(first, interner.intern(EG, "1", second));
+        assertSame(first, interner.get(EG, "1"));
+        // the namespace is part of the key
+        assertSame(second, interner.intern(HGNC, "1", second));
+        assertSame(second, interner.intern(null, "1", second));
+        assertSame(second, interner.get(null, "1"));
+        assertEquals(3, interner.size());
+    }
+
+    @Test
+    public void testFullInternerReturnsTermsAsGiven() {
+        TermInterner interner = new TermInterner(2);
+        Term a = term(), b = term(), c = term();
+        interner.intern(EG, "a", a);
+        interner.intern(EG, "b", b);
+
+        assertSame(c, interner.intern(EG, "c", c));
+        assertEquals(2, interner.size());
+        assertNull(interner.get(EG, "c"));
+        // cached terms are still canonical
+        assertSame(a, interner.intern(EG, "a", term()));
+
+        assertSame(a, new TermInterner(0).intern(EG, "a", a));
+        assertEquals(0, new TermInterner(0).size());
+    }
+
+    @Test
+    public void testCounters() {
+        TermInterner interner = new TermInterner(10);
+        assertNull(interner.get(EG, "1"));
+        interner.intern(EG, "1", term());
+        interner.get(EG, "1");
+        interner.get(EG, "1");
+        // intern does not count as a lookup
+        interner.intern(EG, "1", term());
+
+        assertEquals(2, interner.getHits());
+        assertEquals(1, interner.getMisses());
+        assertEquals("TermInterner [size=1, hits=2, misses=1]",
+                interner.toString());
+
+        interner.clear();
+        assertEquals(0, interner.size());
+        assertEquals(0, interner.getHits());
+        assertEquals(0, interner.getMisses());
+    }
+
+    @Test
+    public void testConcurrentInternAgreesOnTerm() throws Exception {
+        final TermInterner interner = new TermInterner(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Term[]>> results = new ArrayList<Future<Term[]>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Term[]>() {
+                    @Override
+                    public Term[] call() {
+                        Term[] ret = new Term[500];
+                        for (int i = 0; i < ret.length; i++) {
+                            ret[i] = interner.intern(EG, Integer.toString(i),
+                                    term());
+                        }
+                        return ret;
+                    }
+                }));
+            }
+            Term[] expected = results.get(0).get();
+            for (Future<Term[]> f : results) {
+                Term[] terms = f.get();
+                for (int i = 0; i < terms.length; i++) {
+                    assertSame(expected[i], terms[i]);
+                }
+            }
+            assertEquals(500, interner.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = InvalidArgument.class)
+    public void testNegativeMaxSize() {
+        new TermInterner(-1);
+    }
+
+    private static Term term() {
+        return new Term(FunctionEnum.RNA_ABUNDANCE);
+    }
+}
@@ -0,0 +1,79 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openbel.framework.api.EdgeFilter;
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.common.enums.RelationshipType;
+
+public class BasicHypothesisFinderTest {
+
+    @Test
+    public void testDiamondMatchesDepthFirstSearch() {
+        TestKam kam = diamond();
+        List<String> expected = TestKam.describe(kam.findByDepthFirstSearch(4));
+        assertEquals("[1@4 {6=UP, 10=UP, 11=UP, 12=UP}]", expected.toString());
+        assertEquals(expected, TestKam.describe(finder().findAll(kam.getKam(), 4,
+                null)));
+    }
+
+    @Test
+    public void testRandomGraphsMatchDepthFirstSearch() {
+        Random random = new Random(17);
+        for (int i = 0; i < 500; i++) {
+            TestKam kam = TestKam.random(random, 12 + random.nextInt(30),
+                    20 + random.nextInt(80));
+            int maxDepth = 2 + random.nextInt(4);
+            assertEquals("graph " + i, TestKam.describe(kam
+                    .findByDepthFirstSearch(maxDepth)), TestKam.describe(finder()
+                    .findAll(kam.getKam(), maxDepth, null)));
+        }
+    }
+
+    /**
+     * S reaches R through X on two paths and through Y on one. The
+     * depth-first search compounds the paths in edge order: A-X-R (UP),
+     * A-Y-R (DOWN), B-X-R (UP).
+     *
+     * @return
+     */
+    static TestKam diamond() {
+        TestKam kam = new TestKam();
+        int s = 1, a = 2, b = 3, x = 4, y = 5, r = 6;
+        kam.protein(s);
+        kam.protein(a);
+        kam.protein(b);
+        kam.protein(x);
+        kam.protein(y);
+        kam.rna(r);
+        kam.edge(s, RelationshipType.INCREASES, a);
+        kam.edge(s, RelationshipType.INCREASES, b);
+        kam.edge(a, RelationshipType.INCREASES, x);
+        kam.edge(a, RelationshipType.INCREASES, y);
+        kam.edge(b, RelationshipType.INCREASES, x);
+        kam.edge(x, RelationshipType.INCREASES, r);
+        kam.edge(y, RelationshipType.DECREASES, r);
+        // three direct downstreams, so R completes a hypothesis at depth 4
+        for (int i = 10; i < 13; i++) {
+            kam.rna(i);
+            kam.edge(s, RelationshipType.INCREASES, i);
+        }
+        return kam;
+    }
+
+    /**
+     * @return a finder following every edge of a {@link TestKam}
+     */
+    static BasicHypothesisFinder finder() {
+        return new BasicHypothesisFinder() {
+            @Override
+            protected EdgeFilter getEdgeFilter(Kam kam) {
+                return null;
+            }
+        };
+    }
+}
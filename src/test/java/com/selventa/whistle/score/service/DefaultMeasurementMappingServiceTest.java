@@ -0,0 +1,149 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openbel.framework.api.KAMStore;
+import org.openbel.framework.api.Kam.KamNode;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.model.Namespace;
+import org.openbel.framework.common.model.Parameter;
+import org.openbel.framework.common.model.Term;
+import org.openbel.framework.common.protonetwork.model.SkinnyUUID;
+
+import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.score.service.MeasurementMappingService.IdentifierMapping;
+
+public class DefaultMeasurementMappingServiceTest {
+    private static final Namespace NAMESPACE = new Namespace("EG",
+            "http://resource.belframework.org/namespace/entrez-gene-ids.belns");
+    private static final int VALUES = 400;
+
+    private final TestKam kam = new TestKam();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicBoolean concurrent = new AtomicBoolean();
+
+    @Test
+    public void testSequential() throws Exception {
+        assertResolved(service(1, null));
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        assertResolved(service(4, new KAMStoreFactory() {
+            @Override
+            public KAMStore createKamStore() {
+                return store();
+            }
+        }));
+    }
+
+    @Test
+    public void testFailingFactoryFallsBackToSharedStore() throws Exception {
+        assertResolved(service(4, new KAMStoreFactory() {
+            @Override
+            public KAMStore createKamStore() throws Exception {
+                throw new Exception("too many connections");
+            }
+        }));
+        assertFalse("shared KAMStore used concurrently", concurrent.get());
+    }
+
+    @Test
+    public void testPartiallyFailingFactory() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        assertResolved(service(4, new KAMStoreFactory() {
+            @Override
+            public KAMStore createKamStore() throws Exception {
+                if (created.incrementAndGet() % 2 == 0) {
+                    throw new Exception("too many connections");
+                }
+                return store();
+            }
+        }));
+    }
+
+    private DefaultMeasurementMappingService service(int parallelism,
+            KAMStoreFactory factory) {
+        EquivalenceIndex.Builder index = new EquivalenceIndex.Builder();
+        for (int i = 0; i < VALUES; i++) {
+            kam.rna(i);
+            index.add(NAMESPACE.getResourceLocation(), "v" + i,
+                    new SkinnyUUID(0L, i));
+        }
+        DefaultMeasurementMappingService ret = new DefaultMeasurementMappingService();
+        ret.setKamStore(store());
+        ret.setEquivalenceIndex(index.build());
+        ret.setParallelism(parallelism);
+        ret.setKamStoreFactory(factory);
+        return ret;
+    }
+
+    /**
+     * Resolve a measurement of every value and check it maps to its node.
+     */
+    private void assertResolved(DefaultMeasurementMappingService service)
+            throws Exception {
+        List<Measurement> measurements = new ArrayList<Measurement>();
+        for (int i = 0; i < VALUES; i++) {
+            Term term = new Term(FunctionEnum.RNA_ABUNDANCE);
+            term.addFunctionArgument(new Parameter(NAMESPACE, "v" + i));
+            measurements.add(new Measurement(term, 1d, 0.01, 1d));
+        }
+        IdentifierMapping mapping = service.resolve(kam.getKam(), measurements);
+        for (int i = 0; i < VALUES; i++) {
+            List<KamNode> nodes = mapping.getKamNodes(measurements.get(i));
+            assertEquals("v" + i, Collections.singletonList(kam.getKam()
+                    .findNode(i)), nodes);
+        }
+    }
+
+    /**
+     * @return a store resolving the equivalence <tt>(0, i)</tt> to node
+     *         <tt>i</tt>
+     */
+    private KAMStore store() {
+        return (KAMStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { KAMStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args) {
+                        String name = m.getName();
+                        if (name.equals("getNamespaces")) {
+                            return Collections.emptyList();
+                        } else if (name.equals("getKamNodes")) {
+                            return lookup((SkinnyUUID) args[2]);
+                        } else if (name.equals("teardown")) {
+                            return null;
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private List<KamNode> lookup(SkinnyUUID uuid) {
+        if (active.incrementAndGet() > 1) {
+            concurrent.set(true);
+        }
+        try {
+            Thread.yield();
+            return Collections.singletonList(kam.getKam().findNode(
+                    (int) uuid.getLeastSignificantBits()));
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openbel.framework.common.protonetwork.model.SkinnyUUID;
+
+public class EquivalenceIndexTest {
+    private static final String EG = "http://resource.belframework.org/namespace/entrez-gene-ids.belns";
+    private static final String HGNC = "http://resource.belframework.org/namespace/hgnc-approved-symbols.belns";
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("equivalenceindex", "");
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "index");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testOpenWrittenIndex() throws IOException {
+        EquivalenceIndex.Builder builder = new EquivalenceIndex.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add(EG, Integer.toString(i), new SkinnyUUID(1L, i));
+        }
+        builder.add(HGNC, "A\u00e9", new SkinnyUUID(2L, 0L));
+        builder.build().write(file);
+
+        EquivalenceIndex index = EquivalenceIndex.open(file);
+        assertEquals(1001, index.size());
+        assertEquals(new HashSet<String>(Arrays.asList(EG, HGNC)),
+                new HashSet<String>(index.getNamespaces()));
+        assertTrue(index.covers(EG));
+        assertFalse(index.covers("other"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(new SkinnyUUID(1L, i),
+                    index.getUUID(EG, Integer.toString(i)));
+        }
+        assertEquals(new SkinnyUUID(2L, 0L), index.getUUID(HGNC, "A\u00e9"));
+        assertNull(index.getUUID(EG, "1000"));
+        assertNull(index.getUUID(HGNC, "1"));
+        assertNull(index.getUUID("other", "1"));
+    }
+
+    @Test
+    public void testReadEquivalenceDocument() throws IOException {
+        File beleq = new File(directory, "eg.beleq");
+        OutputStream out = new FileOutputStream(beleq);
+        try {
+            out.write(("[Values]\n" + "1|00000000-0000-0001-0000-000000000002\n"
+                    + "a|b|00000000-0000-0003-0000-000000000004\n")
+                    .getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        EquivalenceIndex index = new EquivalenceIndex.Builder()
+                .read(EG, beleq).build();
+
+        assertEquals(new SkinnyUUID(1L, 2L), index.getUUID(EG, "1"));
+        assertEquals(new SkinnyUUID(3L, 4L), index.getUUID(EG, "a|b"));
+    }
+
+    @Test
+    public void testCorruptFileIsRejected() throws IOException {
+        new EquivalenceIndex.Builder().add(EG, "1", new SkinnyUUID(1L, 2L))
+                .build().write(file);
+        byte[] bytes = read();
+
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x10;
+            assertRejected(corrupt);
+        }
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1));
+        assertRejected(new byte[0]);
+    }
+
+    /**
+     * Header errors are reported as {@link IOException}s even when the
+     * checksum matches.
+     */
+    @Test
+    public void testMalformedHeaderIsRejected() throws IOException {
+        new EquivalenceIndex.Builder().add(EG, "1", new SkinnyUUID(1L, 2L))
+                .build().write(file);
+        byte[] bytes = read();
+
+        // location length, entries, capacity and offset
+        int[] fields = { 12, 16 + EG.length(), 20 + EG.length(),
+                24 + EG.length() };
+        for (int field : fields) {
+            for (int value : new int[] { -1, 0x7fffffff, 3, 1 << 20 }) {
+                byte[] corrupt = bytes.clone();
+                ByteBuffer.wrap(corrupt).putInt(field, value);
+                assertRejected(checksummed(corrupt));
+            }
+        }
+        // namespace count
+        byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putInt(8, 2);
+        assertRejected(checksummed(corrupt));
+    }
+
+    @Test
+    public void testLookupInFullTableTerminates() throws IOException {
+        new EquivalenceIndex.Builder().add(EG, "1", new SkinnyUUID(1L, 2L))
+                .build().write(file);
+        byte[] bytes = read();
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        int capacity = b.getInt(20 + EG.length());
+        int offset = b.getInt(24 + EG.length());
+        for (int slot = 0; slot < capacity; slot++) {
+            b.putInt(offset + slot * 4, 1);
+        }
+        write(checksummed(bytes));
+
+        EquivalenceIndex index = EquivalenceIndex.open(file);
+        assertEquals(new SkinnyUUID(1L, 2L), index.getUUID(EG, "1"));
+        assertNull(index.getUUID(EG, "2"));
+    }
+
+    private void assertRejected(byte[] contents) throws IOException {
+        write(contents);
+        try {
+            EquivalenceIndex.open(file);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return the contents with their trailing CRC-32 recomputed
+     */
+    private static byte[] checksummed(byte[] contents) {
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length - 4);
+        ByteBuffer.wrap(contents).putInt(contents.length - 4,
+                (int) crc.getValue());
+        return contents;
+    }
+
+    private byte[] read() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] ret = new byte[(int) raf.length()];
+            raf.readFully(ret);
+            return ret;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void write(byte[] contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+}
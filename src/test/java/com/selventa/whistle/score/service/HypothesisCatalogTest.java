@@ -0,0 +1,162 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.selventa.whistle.score.model.Hypothesis;
+
+public class HypothesisCatalogTest {
+    private static final String FINDER = BasicHypothesisFinder.class.getName();
+    private static final String TYPES = "DECREASES,INCREASES";
+
+    private final TestKam kam = TestKam.random(new Random(41), 300, 900);
+    private List<Hypothesis> hyps;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("hypothesiscatalog", "");
+        directory.delete();
+        directory.mkdir();
+        hyps = BasicHypothesisFinderTest.finder().findAll(kam.getKam(), 3,
+                null);
+        assertFalse(hyps.isEmpty());
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        HypothesisCatalog.Key key = key("kam", 100L);
+        File file = HypothesisCatalog.write(directory, key, hyps);
+
+        HypothesisCatalog catalog = HypothesisCatalog.open(file);
+        assertEquals(key, catalog.getKey());
+        assertEquals(hyps.size(), catalog.size());
+        assertEquals(TestKam.describe(hyps), TestKam.describe(catalog
+                .getHypotheses(kam.getKam())));
+    }
+
+    @Test
+    public void testEarlierCompilationsAreRemoved() throws IOException {
+        HypothesisCatalog.write(directory, key("kam", 100L), hyps);
+        File other = HypothesisCatalog.write(directory, key("kam/9606", 100L),
+                hyps);
+        File deeper = HypothesisCatalog.write(directory, new HypothesisCatalog.Key(
+                "kam", 100L, FINDER, 4, TYPES), hyps);
+
+        File file = HypothesisCatalog.write(directory, key("kam", 200L), hyps);
+
+        // other qualifiers are kept
+        assertEquals(2, directory.list().length);
+        assertTrue(file.isFile());
+        assertTrue(other.isFile());
+        assertFalse(deeper.isFile());
+    }
+
+    @Test
+    public void testCorruptFileIsRejected() throws IOException {
+        File file = HypothesisCatalog.write(directory, key("kam", 100L),
+                hyps.subList(0, 2));
+        byte[] bytes = read(file);
+
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x10;
+            assertRejected(file, corrupt);
+        }
+        assertRejected(file, new byte[10]);
+    }
+
+    /**
+     * Inconsistent tables are reported as {@link IOException}s even when the
+     * checksum matches.
+     */
+    @Test
+    public void testInconsistentTablesAreRejected() throws IOException {
+        File file = HypothesisCatalog.write(directory, key("kam", 100L),
+                hyps.subList(0, 2));
+        byte[] bytes = read(file);
+        int table = 8 + 4 + "kam".length() + 8 + 4 + FINDER.length() + 4 + 4
+                + TYPES.length() + 8;
+        int downstreams = hyps.get(0).getDownstreams().size()
+                + hyps.get(1).getDownstreams().size();
+
+        // depth, first downstream of each hypothesis
+        int[][] corruptions = { { table + 4, 0 }, { table + 4, 4 },
+                { table + 8, -1 }, { table + 8, 1 },
+                { table + 20, downstreams + 1 }, { table + 20, -1 } };
+        for (int[] c : corruptions) {
+            byte[] corrupt = bytes.clone();
+            ByteBuffer.wrap(corrupt).putInt(c[0], c[1]);
+            assertRejected(file, checksummed(corrupt));
+        }
+        // string length of the KAM name
+        byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap(corrupt).putInt(8, Integer.MAX_VALUE);
+        assertRejected(file, checksummed(corrupt));
+    }
+
+    private static HypothesisCatalog.Key key(String name, long lastCompiled) {
+        return new HypothesisCatalog.Key(name, lastCompiled, FINDER, 3, TYPES);
+    }
+
+    private void assertRejected(File file, byte[] contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        try {
+            HypothesisCatalog.open(file).getHypotheses(kam.getKam());
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return the contents with their trailing CRC-32 recomputed
+     */
+    private static byte[] checksummed(byte[] contents) {
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length - 4);
+        ByteBuffer.wrap(contents).putInt(contents.length - 4,
+                (int) crc.getValue());
+        return contents;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] ret = new byte[(int) raf.length()];
+            raf.readFully(ret);
+            return ret;
+        } finally {
+            raf.close();
+        }
+    }
+}
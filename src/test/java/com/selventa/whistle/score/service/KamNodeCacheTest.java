@@ -0,0 +1,108 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KamNodeCacheTest {
+    private static final String NS = "http://resource.belframework.org/namespace/entrez-gene-ids.belns";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("kamnodecache", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSavedEntriesAreLoaded() throws IOException {
+        KamNodeCache cache = KamNodeCache.open(directory, "kam", 100L);
+        cache.put(NS, "1", new int[] { 3, 5 });
+        cache.put(NS, "2", new int[0]);
+        cache.save();
+
+        cache = KamNodeCache.open(directory, "kam", 100L);
+        assertEquals(2, cache.size());
+        assertArrayEquals(new int[] { 3, 5 }, cache.get(NS, "1"));
+        assertArrayEquals(new int[0], cache.get(NS, "2"));
+        assertNull(cache.get(NS, "3"));
+    }
+
+    @Test
+    public void testRecompiledKamInvalidatesEntries() throws IOException {
+        KamNodeCache cache = KamNodeCache.open(directory, "kam", 100L);
+        cache.put(NS, "1", new int[] { 3 });
+        cache.save();
+        KamNodeCache other = KamNodeCache.open(directory, "kam/9606", 100L);
+        other.put(NS, "1", new int[] { 4 });
+        other.save();
+
+        cache = KamNodeCache.open(directory, "kam", 200L);
+        assertEquals(0, cache.size());
+        cache.put(NS, "1", new int[] { 7 });
+        cache.save();
+
+        // the earlier compilation is removed, other qualifiers are kept
+        assertEquals(2, directory.list().length);
+        assertArrayEquals(new int[] { 7 }, KamNodeCache.open(directory, "kam",
+                200L).get(NS, "1"));
+        assertArrayEquals(new int[] { 4 }, KamNodeCache.open(directory,
+                "kam/9606", 100L).get(NS, "1"));
+    }
+
+    @Test
+    public void testCorruptFileIsIgnored() throws IOException {
+        KamNodeCache cache = KamNodeCache.open(directory, "kam", 100L);
+        cache.put(NS, "1", new int[] { 3, 5 });
+        cache.save();
+        File file = directory.listFiles()[0];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // flip a bit of the last node id
+            raf.seek(raf.length() - 5);
+            int b = raf.read();
+            raf.seek(raf.length() - 5);
+            raf.write(b ^ 1);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, KamNodeCache.open(directory, "kam", 100L).size());
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 6);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, KamNodeCache.open(directory, "kam", 100L).size());
+    }
+
+    @Test
+    public void testSaveWithoutChangesWritesNothing() throws IOException {
+        KamNodeCache.open(directory, "kam", 100L).save();
+        assertEquals(0, directory.list().length);
+        KamNodeCache cache = KamNodeCache.open(directory, "kam", 100L);
+        cache.put(NS, "1", new int[] { 3 });
+        cache.save();
+        assertEquals(1, directory.list().length);
+    }
+}
@@ -0,0 +1,59 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openbel.framework.api.EdgeFilter;
+import org.openbel.framework.api.Kam;
+
+public class MemoizedHypothesisFinderTest {
+
+    @Test
+    public void testDiamondMatchesDepthFirstSearch() {
+        TestKam kam = BasicHypothesisFinderTest.diamond();
+        assertEquals(TestKam.describe(kam.findByDepthFirstSearch(4)), TestKam
+                .describe(finder().findAll(kam.getKam(), 4, null)));
+    }
+
+    @Test
+    public void testRandomGraphsMatchDepthFirstSearch() {
+        Random random = new Random(31);
+        for (int i = 0; i < 500; i++) {
+            TestKam kam = TestKam.random(random, 12 + random.nextInt(30),
+                    20 + random.nextInt(80));
+            int maxDepth = 2 + random.nextInt(4);
+            assertEquals("graph " + i, TestKam.describe(kam
+                    .findByDepthFirstSearch(maxDepth)), TestKam.describe(finder()
+                    .findAll(kam.getKam(), maxDepth, null)));
+        }
+    }
+
+    @Test
+    public void testOrderMatchesBasicFinder() {
+        TestKam kam = TestKam.random(new Random(37), 2000, 5000);
+        kam.setReversed(true);
+        List<String> expected = TestKam.describe(BasicHypothesisFinderTest
+                .finder().findAll(kam.getKam(), 3, null));
+        assertEquals(expected, TestKam.describe(finder().findAll(kam.getKam(),
+                3, null)));
+    }
+
+    @Test
+    public void testCatalogFinderNameDiffersFromBasicFinder() {
+        assertFalse(new BasicHypothesisFinder().getCatalogFinderName().equals(
+                finder().getCatalogFinderName()));
+    }
+
+    private static MemoizedHypothesisFinder finder() {
+        return new MemoizedHypothesisFinder() {
+            @Override
+            protected EdgeFilter getEdgeFilter(Kam kam) {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,57 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openbel.framework.api.EdgeFilter;
+import org.openbel.framework.api.Kam;
+
+public class ParallelHypothesisFinderTest {
+
+    @Test
+    public void testMatchesDepthFirstSearch() {
+        Random random = new Random(23);
+        for (int i = 0; i < 5; i++) {
+            TestKam kam = TestKam.random(random, 1500, 3500);
+            List<String> expected = TestKam.describe(kam
+                    .findByDepthFirstSearch(3));
+            assertEquals("graph " + i, expected, TestKam.describe(finder(4)
+                    .findAll(kam.getKam(), 3, null)));
+        }
+    }
+
+    @Test
+    public void testOrderDoesNotDependOnThreads() {
+        TestKam kam = TestKam.random(new Random(29), 2000, 5000);
+        kam.setReversed(true);
+        List<String> expected = TestKam.describe(BasicHypothesisFinderTest
+                .finder().findAll(kam.getKam(), 3, null));
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            assertEquals("threads " + threads, expected, TestKam
+                    .describe(finder(threads).findAll(kam.getKam(), 3, null)));
+        }
+    }
+
+    /**
+     * Searches with one or several threads share hypothesis catalogs.
+     */
+    @Test
+    public void testCatalogFinderNameMatchesBasicFinder() {
+        String basic = new BasicHypothesisFinder().getCatalogFinderName();
+        assertEquals(basic, finder(1).getCatalogFinderName());
+        assertEquals(basic, new ParallelHypothesisFinder(4)
+                .getCatalogFinderName());
+    }
+
+    private static ParallelHypothesisFinder finder(int parallelism) {
+        return new ParallelHypothesisFinder(parallelism) {
+            @Override
+            protected EdgeFilter getEdgeFilter(Kam kam) {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,189 @@
+package com.selventa.whistle.score.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openbel.framework.api.KAMStore;
+import org.openbel.framework.api.Kam.KamNode;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.model.Namespace;
+import org.openbel.framework.common.model.Parameter;
+import org.openbel.framework.common.model.Term;
+import org.openbel.framework.common.protonetwork.model.SkinnyUUID;
+
+import com.selventa.whistle.data.model.Measurement;
+import com.selventa.whistle.score.service.MeasurementMappingService.IdentifierMapping;
+
+public class PipelinedResolverTest {
+    private static final Namespace NAMESPACE = new Namespace("EG",
+            "http://resource.belframework.org/namespace/entrez-gene-ids.belns");
+    private static final int VALUES = 400;
+    /**
+     * More terms than fit in the queue, so that parsing blocks
+     */
+    private static final int TERMS = 20000;
+
+    private final TestKam kam = new TestKam();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger tornDown = new AtomicInteger();
+
+    @Test
+    public void testResolvesParsedTerms() throws Exception {
+        PipelinedResolver pipeline = new PipelinedResolver(service(4, null)
+                .openResolver(kam.getKam()));
+        List<Measurement> measurements = new ArrayList<Measurement>(TERMS);
+        for (int i = 0; i < TERMS; i++) {
+            Term term = term(i % VALUES);
+            measurements.add(new Measurement(term, 1d, 0.01, 1d));
+            pipeline.termParsed(term);
+        }
+        IdentifierMapping mapping = pipeline.finish();
+
+        assertEquals(VALUES, mapping.size());
+        for (int i = 0; i < TERMS; i++) {
+            assertEquals(Collections.singletonList(kam.getKam().findNode(
+                    i % VALUES)), mapping.getKamNodes(measurements.get(i)));
+        }
+        assertEquals(created.get(), tornDown.get());
+        pipeline.close();
+        assertEquals(created.get(), tornDown.get());
+    }
+
+    @Test
+    public void testCloseReleasesResolver() throws Exception {
+        PipelinedResolver pipeline = new PipelinedResolver(service(4, null)
+                .openResolver(kam.getKam()));
+        for (int i = 0; i < TERMS; i++) {
+            pipeline.termParsed(term(i % VALUES));
+        }
+        pipeline.close();
+        assertEquals(created.get(), tornDown.get());
+
+        try {
+            pipeline.termParsed(term(0));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        pipeline.close();
+    }
+
+    @Test
+    public void testExceptionIsRethrown() throws Exception {
+        assertFailureRethrown(new IllegalArgumentException("bad value"));
+    }
+
+    /**
+     * An {@link Error} on the resolver thread must not leave the parser
+     * blocked on the full queue.
+     */
+    @Test
+    public void testErrorIsRethrown() throws Exception {
+        assertFailureRethrown(new OutOfMemoryError("test"));
+    }
+
+    /**
+     * Parse while every lookup fails and check that parsing stops and
+     * {@link PipelinedResolver#finish()} rethrows the failure.
+     */
+    private void assertFailureRethrown(Throwable failure) throws Exception {
+        PipelinedResolver pipeline = new PipelinedResolver(service(1,
+                failure).openResolver(kam.getKam()));
+        try {
+            for (int i = 0; i < TERMS; i++) {
+                pipeline.termParsed(term(i % VALUES));
+            }
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        Throwable thrown = null;
+        try {
+            pipeline.finish();
+        } catch (Throwable t) {
+            thrown = t;
+        }
+        assertSame(failure, thrown);
+        // closing after a failed finish has no effect
+        pipeline.close();
+    }
+
+    /**
+     * @param parallelism
+     * @param failure thrown by every lookup, may be <code>null</code>
+     */
+    private DefaultMeasurementMappingService service(int parallelism,
+            final Throwable failure) {
+        EquivalenceIndex.Builder index = new EquivalenceIndex.Builder();
+        for (int i = 0; i < VALUES; i++) {
+            kam.rna(i);
+            index.add(NAMESPACE.getResourceLocation(), "v" + i,
+                    new SkinnyUUID(0L, i));
+        }
+        DefaultMeasurementMappingService ret = new DefaultMeasurementMappingService();
+        ret.setKamStore(store(failure));
+        ret.setEquivalenceIndex(index.build());
+        ret.setParallelism(parallelism);
+        ret.setKamStoreFactory(new KAMStoreFactory() {
+            @Override
+            public KAMStore createKamStore() {
+                created.incrementAndGet();
+                return store(failure);
+            }
+        });
+        return ret;
+    }
+
+    private static Term term(int i) {
+        Term ret = new Term(FunctionEnum.RNA_ABUNDANCE);
+        ret.addFunctionArgument(new Parameter(NAMESPACE, "v" + i));
+        return ret;
+    }
+
+    /**
+     * @return a store resolving the equivalence <tt>(0, i)</tt> to node
+     *         <tt>i</tt>, or failing with <tt>failure</tt>
+     */
+    private KAMStore store(final Throwable failure) {
+        return (KAMStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { KAMStore.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args)
+                            throws Throwable {
+                        String name = m.getName();
+                        if (name.equals("getNamespaces")) {
+                            return Collections.emptyList();
+                        } else if (name.equals("getKamNodes")) {
+                            if (failure != null) {
+                                throw failure;
+                            }
+                            return lookup((SkinnyUUID) args[2]);
+                        } else if (name.equals("teardown")) {
+                            tornDown.incrementAndGet();
+                            return null;
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private List<KamNode> lookup(SkinnyUUID uuid) {
+        return Collections.singletonList(kam.getKam().findNode(
+                (int) uuid.getLeastSignificantBits()));
+    }
+}
@@ -0,0 +1,235 @@
+package com.selventa.whistle.score.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.openbel.framework.api.EdgeDirectionType;
+import org.openbel.framework.api.Kam;
+import org.openbel.framework.api.Kam.KamEdge;
+import org.openbel.framework.api.Kam.KamNode;
+import org.openbel.framework.api.internal.KAMCatalogDao.KamInfo;
+import org.openbel.framework.common.enums.FunctionEnum;
+import org.openbel.framework.common.enums.RelationshipType;
+
+import com.selventa.whistle.data.enums.DirectionType;
+import com.selventa.whistle.score.model.Downstream;
+import com.selventa.whistle.score.model.Hypothesis;
+
+/**
+ * In-memory {@link Kam} for tests. Only the methods used to find hypotheses
+ * are implemented: nodes, forward adjacent edges (edge filters are ignored),
+ * {@link Kam#findNode(Integer)} and {@link Kam#getKamInfo()}.
+ */
+class TestKam {
+    private static final RelationshipType[] RELATIONSHIPS = {
+            RelationshipType.INCREASES, RelationshipType.DECREASES,
+            RelationshipType.DIRECTLY_INCREASES,
+            RelationshipType.DIRECTLY_DECREASES,
+            RelationshipType.RATE_LIMITING_STEP_OF };
+
+    private final Map<Integer, KamNode> nodes = new TreeMap<Integer, KamNode>();
+    private final Map<KamNode, Set<KamEdge>> edges = new HashMap<KamNode, Set<KamEdge>>();
+    private final Kam kam;
+    private KamInfo kamInfo;
+    private boolean reversed;
+    private int edgeIds;
+
+    TestKam() {
+        kam = proxy(Kam.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) {
+                String name = m.getName();
+                if (name.equals("getNodes")) {
+                    List<KamNode> ret = new ArrayList<KamNode>(nodes.values());
+                    if (reversed) {
+                        Collections.reverse(ret);
+                    }
+                    return ret;
+                } else if (name.equals("getAdjacentEdges")) {
+                    if (args[1] != EdgeDirectionType.FORWARD) {
+                        throw new UnsupportedOperationException();
+                    }
+                    Set<KamEdge> ret = edges.get(args[0]);
+                    return ret == null ? Collections.<KamEdge> emptySet()
+                            : ret;
+                } else if (name.equals("findNode")) {
+                    return nodes.get(args[0]);
+                } else if (name.equals("getKamInfo")) {
+                    return kamInfo;
+                }
+                return object(proxy, m, args, "kam");
+            }
+        });
+    }
+
+    /**
+     * @param random
+     * @param size number of nodes
+     * @param edgeCount
+     * @return a KAM of random RNA and protein nodes and causal edges
+     */
+    static TestKam random(Random random, int size, int edgeCount) {
+        TestKam ret = new TestKam();
+        for (int i = 0; i < size; i++) {
+            ret.node(i * 3 + 1, random.nextInt(3) == 0
+                    ? FunctionEnum.PROTEIN_ABUNDANCE
+                    : FunctionEnum.RNA_ABUNDANCE);
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            ret.edge(random.nextInt(size) * 3 + 1,
+                    RELATIONSHIPS[random.nextInt(RELATIONSHIPS.length)],
+                    random.nextInt(size) * 3 + 1);
+        }
+        return ret;
+    }
+
+    Kam getKam() {
+        return kam;
+    }
+
+    /**
+     * @param reversed <code>true</code> to return nodes in descending id
+     *            order rather than ascending
+     */
+    void setReversed(boolean reversed) {
+        this.reversed = reversed;
+    }
+
+    void setKamInfo(KamInfo kamInfo) {
+        this.kamInfo = kamInfo;
+    }
+
+    KamNode node(final int id, final FunctionEnum function) {
+        KamNode node = proxy(KamNode.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) {
+                String name = m.getName();
+                if (name.equals("getId")) {
+                    return id;
+                } else if (name.equals("getFunctionType")) {
+                    return function;
+                } else if (name.equals("getKam")) {
+                    return kam;
+                }
+                return object(proxy, m, args, "node " + id);
+            }
+        });
+        nodes.put(id, node);
+        return node;
+    }
+
+    KamNode rna(int id) {
+        return node(id, FunctionEnum.RNA_ABUNDANCE);
+    }
+
+    KamNode protein(int id) {
+        return node(id, FunctionEnum.PROTEIN_ABUNDANCE);
+    }
+
+    void edge(int source, final RelationshipType relationship, int target) {
+        final KamNode sourceNode = nodes.get(source);
+        final KamNode targetNode = nodes.get(target);
+        final int id = ++edgeIds;
+        KamEdge edge = proxy(KamEdge.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) {
+                String name = m.getName();
+                if (name.equals("getId")) {
+                    return id;
+                } else if (name.equals("getSourceNode")) {
+                    return sourceNode;
+                } else if (name.equals("getTargetNode")) {
+                    return targetNode;
+                } else if (name.equals("getRelationshipType")) {
+                    return relationship;
+                } else if (name.equals("getKam")) {
+                    return kam;
+                }
+                return object(proxy, m, args, "edge " + id);
+            }
+        });
+        Set<KamEdge> adjacent = edges.get(sourceNode);
+        if (adjacent == null) {
+            adjacent = new LinkedHashSet<KamEdge>();
+            edges.put(sourceNode, adjacent);
+        }
+        adjacent.add(edge);
+    }
+
+    /**
+     * Find hypotheses as {@link BasicHypothesisFinder} did before it searched
+     * a {@link CausalGraph}: a depth-first search per source node and depth.
+     *
+     * @param maxDepth
+     * @return the hypotheses in node id order
+     */
+    List<Hypothesis> findByDepthFirstSearch(int maxDepth) {
+        BasicHypothesisFinder finder = new BasicHypothesisFinder();
+        List<Hypothesis> ret = new ArrayList<Hypothesis>();
+        Map<KamNode, DirectionType> downstreams = new HashMap<KamNode, DirectionType>();
+        for (KamNode sourceNode : nodes.values()) {
+            for (int currentDepth = 1; currentDepth < maxDepth; currentDepth++) {
+                downstreams.clear();
+                finder.find(kam, sourceNode, 1, downstreams, null, currentDepth);
+                if (downstreams.size() > 3) {
+                    Hypothesis hypothesis = new Hypothesis(sourceNode,
+                            DirectionType.UP, currentDepth + 1);
+                    for (Map.Entry<KamNode, DirectionType> e : downstreams
+                            .entrySet()) {
+                        hypothesis.getDownstreams().add(
+                                new Downstream(e.getKey(), e.getValue()));
+                    }
+                    ret.add(hypothesis);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param hyps
+     * @return each hypothesis as its node id, depth and downstream directions
+     *         by node id
+     */
+    static List<String> describe(List<Hypothesis> hyps) {
+        List<String> ret = new ArrayList<String>(hyps.size());
+        for (Hypothesis h : hyps) {
+            Map<Integer, DirectionType> downstreams = new TreeMap<Integer, DirectionType>();
+            for (Downstream d : h.getDownstreams()) {
+                downstreams.put(d.getKamNode().getId(), d.getDirectionType());
+            }
+            ret.add(h.getKamNode().getId() + "@" + h.getDepth() + " "
+                    + downstreams);
+        }
+        return ret;
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(TestKam.class.getClassLoader(),
+                new Class<?>[] { type }, handler));
+    }
+
+    private static Object object(Object proxy, Method m, Object[] args,
+            String description) {
+        String name = m.getName();
+        if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("toString")) {
+            return description;
+        }
+        throw new UnsupportedOperationException(name);
+    }
+}
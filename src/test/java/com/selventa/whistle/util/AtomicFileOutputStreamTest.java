@@ -0,0 +1,124 @@
+package com.selventa.whistle.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AtomicFileOutputStreamTest {
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("atomic", "");
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "data");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCommitReplacesFile() throws IOException {
+        write(file, "old");
+        AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        try {
+            out.write("new".getBytes("UTF-8"));
+            assertEquals("old", read(file));
+            out.commit();
+        } finally {
+            out.close();
+        }
+        assertEquals("new", read(file));
+        assertEquals(Arrays.asList("data"), list());
+    }
+
+    @Test
+    public void testCloseWithoutCommitKeepsFile() throws IOException {
+        write(file, "old");
+        AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        out.write("partial".getBytes("UTF-8"));
+        out.close();
+        assertEquals("old", read(file));
+        assertEquals(Arrays.asList("data"), list());
+    }
+
+    @Test
+    public void testConcurrentWritersUseSeparateFiles() throws IOException {
+        AtomicFileOutputStream first = new AtomicFileOutputStream(file);
+        AtomicFileOutputStream second = new AtomicFileOutputStream(file);
+        try {
+            first.write("first".getBytes("UTF-8"));
+            second.write("second, longer".getBytes("UTF-8"));
+            second.commit();
+            assertEquals("second, longer", read(file));
+            first.commit();
+        } finally {
+            first.close();
+            second.close();
+        }
+        assertEquals("first", read(file));
+        assertEquals(Arrays.asList("data"), list());
+    }
+
+    @Test
+    public void testCommitAfterCloseFails() throws IOException {
+        AtomicFileOutputStream out = new AtomicFileOutputStream(file);
+        out.close();
+        try {
+            out.commit();
+            fail("commit after close");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(file.exists());
+    }
+
+    private List<String> list() {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static void write(File f, String s) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(s.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] b = new byte[(int) f.length()];
+            int n = 0;
+            while (n < b.length) {
+                n += in.read(b, n, b.length - n);
+            }
+            return new String(b, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}